@@ -0,0 +1,200 @@
+package io.grpc.proxy;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.Status;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Call counts, status codes, message sizes and latencies of one RPC method, as recorded by
+ * {@link HeaderServerInterceptor} or {@link HeaderClientInterceptor}.
+ *
+ * <p>All figures live in {@link StripedCounters}, so recording takes no lock. Latencies go into
+ * power-of-two buckets of microseconds and percentiles are reported as the upper bound of the
+ * bucket they fall in.
+ */
+public final class CallMetrics implements CallMetricsMXBean {
+    static final int LATENCY_BUCKETS = 40;
+
+    private static final Status.Code[] CODES = Status.Code.values();
+    private static final int STARTED = 0;
+    private static final int COMPLETED = 1;
+    private static final int MESSAGES_SENT = 2;
+    private static final int MESSAGES_RECEIVED = 3;
+    private static final int BYTES_SENT = 4;
+    private static final int BYTES_RECEIVED = 5;
+    private static final int STATUS = 6;
+    private static final int LATENCY = STATUS + CODES.length;
+
+    private final String method;
+    private final StripedCounters counters = new StripedCounters(LATENCY + LATENCY_BUCKETS);
+
+    CallMetrics(String method) {
+        this.method = method;
+    }
+
+    /**
+     * Records the start of a call; the returned handle records its completion once.
+     */
+    Call start() {
+        counters.increment(STARTED);
+        return new Call(System.nanoTime());
+    }
+
+    void messageSent(Object message) {
+        counters.increment(MESSAGES_SENT);
+        counters.add(BYTES_SENT, sizeOf(message));
+    }
+
+    void messageReceived(Object message) {
+        counters.increment(MESSAGES_RECEIVED);
+        counters.add(BYTES_RECEIVED, sizeOf(message));
+    }
+
+    /**
+     * Serialized size of a protobuf message, or length of a message passed through as bytes.
+     * Protobuf remembers the size, so the marshaller does not compute it again.
+     */
+    private static int sizeOf(Object message) {
+        if (message instanceof MessageLite) {
+            return ((MessageLite) message).getSerializedSize();
+        }
+        return message instanceof byte[] ? ((byte[]) message).length : 0;
+    }
+
+    static int bucket(long micros) {
+        return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public long getStartedCalls() {
+        return counters.sum(STARTED);
+    }
+
+    @Override
+    public long getCompletedCalls() {
+        return counters.sum(COMPLETED);
+    }
+
+    @Override
+    public long getInFlightCalls() {
+        // Read completions first so a call finishing in between cannot make the gauge negative.
+        long completed = counters.sum(COMPLETED);
+        return counters.sum(STARTED) - completed;
+    }
+
+    @Override
+    public Map<String, Long> getStatusCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Status.Code code : CODES) {
+            long count = counters.sum(STATUS + code.ordinal());
+            if (count > 0) {
+                counts.put(code.name(), count);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return counters.sum(MESSAGES_SENT);
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return counters.sum(MESSAGES_RECEIVED);
+    }
+
+    @Override
+    public long getBytesSent() {
+        return counters.sum(BYTES_SENT);
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return counters.sum(BYTES_RECEIVED);
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return latencyPercentile(50);
+    }
+
+    @Override
+    public long getLatencyP90Micros() {
+        return latencyPercentile(90);
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return latencyPercentile(99);
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        long[] histogram = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            histogram[i] = counters.sum(LATENCY + i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Upper bound in microseconds of the bucket holding the given percentile, or 0 without calls.
+     */
+    long latencyPercentile(double percentile) {
+        long[] histogram = getLatencyHistogram();
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return method + ": " + getCompletedCalls() + " calls, " + getInFlightCalls() + " in flight, "
+                + getStatusCounts() + ", p50 " + getLatencyP50Micros() + " us, p99 " + getLatencyP99Micros() + " us";
+    }
+
+    /**
+     * One call in progress.
+     */
+    final class Call {
+        private final long startNanos;
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private Call(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Records the outcome. Only the first completion of a call counts, so a call that is both
+         * closed and cancelled is not counted twice.
+         */
+        void complete(Status.Code code) {
+            if (completed.compareAndSet(false, true)) {
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+                counters.increment(STATUS + code.ordinal());
+                counters.increment(LATENCY + bucket(micros));
+                counters.increment(COMPLETED);
+            }
+        }
+    }
+}
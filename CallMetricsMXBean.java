@@ -0,0 +1,44 @@
+package io.grpc.proxy;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link CallMetrics} of one RPC method.
+ */
+public interface CallMetricsMXBean {
+
+    String getMethod();
+
+    long getStartedCalls();
+
+    long getCompletedCalls();
+
+    /**
+     * Calls started and not yet completed.
+     */
+    long getInFlightCalls();
+
+    /**
+     * Completed calls by status code name, leaving out codes never seen.
+     */
+    Map<String, Long> getStatusCounts();
+
+    long getMessagesSent();
+
+    long getMessagesReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP90Micros();
+
+    long getLatencyP99Micros();
+
+    /**
+     * Calls per latency bucket; bucket {@code i > 0} counts latencies in [2^(i-1), 2^i) us.
+     */
+    long[] getLatencyHistogram();
+}
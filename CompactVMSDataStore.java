@@ -0,0 +1,210 @@
+package io.grpc.proxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Heap {@link VMSDataStore} keeping the records in columns of primitives instead of protobuf
+ * objects.
+ *
+ * <p>Numeric guids are stored as longs, owners as codes into a dictionary of the distinct owner
+ * strings, and messagetype and sourceid as ints, so a record costs about 20 bytes plus its index
+ * slot rather than the few hundred bytes of a parsed {@link VMSDataResponse} with its strings.
+ * Guids that are not plain decimal numbers are kept as strings in a side map. The protobuf
+ * message is only built when a record is returned, so {@link #get(int)} allocates it anew on
+ * every call.
+ */
+public final class CompactVMSDataStore implements VMSDataStore {
+
+    private static final int EMPTY = -1;
+
+    private final int size;
+    // Numeric guid of each record, or -1 when the guid is in otherGuids.
+    private final long[] guids;
+    private final Map<Integer, String> otherGuids;
+    private final int[] owners;
+    private final String[] ownerNames;
+    private final int[] messagetypes;
+    private final int[] sourceids;
+
+    // Linear probing table of record indexes, keyed on the record's numeric guid and sourceid.
+    private final int[] slots;
+    private final int mask;
+    private final Map<IndexedVMSDataStore.Key, Integer> fallback;
+    private final VMSKeyFilter filter;
+
+    private CompactVMSDataStore(Builder builder) {
+        this.size = builder.size;
+        this.guids = Arrays.copyOf(builder.guids, size);
+        this.otherGuids = builder.otherGuids;
+        this.owners = Arrays.copyOf(builder.owners, size);
+        this.ownerNames = builder.ownerNames.toArray(new String[builder.ownerNames.size()]);
+        this.messagetypes = Arrays.copyOf(builder.messagetypes, size);
+        this.sourceids = Arrays.copyOf(builder.sourceids, size);
+        int capacity = IndexedVMSDataStore.tableSize(size);
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+        this.fallback = new HashMap<>();
+        this.filter = VMSKeyFilter.create(size);
+        Arrays.fill(slots, EMPTY);
+
+        for (int i = 0; i < size; i++) {
+            index(i);
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Builds a store holding {@code responses} in iteration order.
+     */
+    public static CompactVMSDataStore of(Collection<VMSDataResponse> responses) {
+        Builder builder = newBuilder();
+        for (VMSDataResponse response : responses) {
+            builder.add(response);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Copies the records of {@code store} into a compact store, keeping their positions.
+     */
+    public static CompactVMSDataStore copyOf(VMSDataStore store) {
+        Builder builder = newBuilder();
+        for (int i = 0; i < store.size(); i++) {
+            builder.add(store.get(i));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public VMSDataResponse get(String guid, int sourceid) {
+        int index = indexOf(guid, sourceid);
+        return index < 0 ? null : get(index);
+    }
+
+    @Override
+    public int indexOf(String guid, int sourceid) {
+        long numericGuid = FarmUtil.guidToLong(guid);
+        if (numericGuid < 0) {
+            Integer index = fallback.get(new IndexedVMSDataStore.Key(guid, sourceid));
+            return index == null ? -1 : index;
+        }
+        for (int slot = IndexedVMSDataStore.hash(numericGuid, sourceid) & mask; ; slot = (slot + 1) & mask) {
+            int index = slots[slot];
+            if (index == EMPTY || (guids[index] == numericGuid && sourceids[index] == sourceid)) {
+                return index;
+            }
+        }
+    }
+
+    @Override
+    public boolean mightContain(String guid, int sourceid) {
+        return filter.mightContain(guid, sourceid);
+    }
+
+    @Override
+    public VMSDataResponse get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        Item item = Item.newBuilder()
+                .setGuid(guid(index))
+                .setOwner(ownerNames[owners[index]])
+                .setMessagetype(messagetypes[index])
+                .setSourceid(sourceids[index])
+                .build();
+        return VMSDataResponse.newBuilder().setItem(item).build();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of distinct owners.
+     */
+    public int ownerCount() {
+        return ownerNames.length;
+    }
+
+    private String guid(int index) {
+        long guid = guids[index];
+        return guid >= 0 ? Long.toString(guid) : otherGuids.get(index);
+    }
+
+    private void index(int index) {
+        int sourceid = sourceids[index];
+        long numericGuid = guids[index];
+        filter.put(guid(index), sourceid);
+        if (numericGuid < 0) {
+            IndexedVMSDataStore.Key key = new IndexedVMSDataStore.Key(otherGuids.get(index), sourceid);
+            // Keep the first record for a key, like the other stores.
+            if (!fallback.containsKey(key)) {
+                fallback.put(key, index);
+            }
+            return;
+        }
+        int slot = IndexedVMSDataStore.hash(numericGuid, sourceid) & mask;
+        while (slots[slot] != EMPTY) {
+            int other = slots[slot];
+            if (guids[other] == numericGuid && sourceids[other] == sourceid) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = index;
+    }
+
+    public static final class Builder {
+        private int size;
+        private long[] guids = new long[16];
+        private final Map<Integer, String> otherGuids = new HashMap<>();
+        private int[] owners = new int[16];
+        private final Map<String, Integer> ownerCodes = new HashMap<>();
+        private final List<String> ownerNames = new ArrayList<>();
+        private int[] messagetypes = new int[16];
+        private int[] sourceids = new int[16];
+
+        private Builder() {
+        }
+
+        public Builder add(VMSDataResponse response) {
+            if (size == guids.length) {
+                int capacity = size + (size >> 1);
+                guids = Arrays.copyOf(guids, capacity);
+                owners = Arrays.copyOf(owners, capacity);
+                messagetypes = Arrays.copyOf(messagetypes, capacity);
+                sourceids = Arrays.copyOf(sourceids, capacity);
+            }
+            Item item = response.getItem();
+            long guid = FarmUtil.guidToLong(item.getGuid());
+            guids[size] = guid;
+            if (guid < 0) {
+                otherGuids.put(size, item.getGuid());
+            }
+            Integer owner = ownerCodes.get(item.getOwner());
+            if (owner == null) {
+                owner = ownerNames.size();
+                ownerCodes.put(item.getOwner(), owner);
+                ownerNames.add(item.getOwner());
+            }
+            owners[size] = owner;
+            messagetypes[size] = item.getMessagetype();
+            sourceids[size] = item.getSourceid();
+            size++;
+            return this;
+        }
+
+        public CompactVMSDataStore build() {
+            return new CompactVMSDataStore(this);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package io.grpc.proxy;
+
+import io.grpc.Attributes;
+import io.grpc.CallOptions;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes each call to the FarmServer replica owning its {@link #ROUTING_KEY}, placed on a
+ * {@link ConsistentHashRing} by address.
+ *
+ * <p>If the owner is not connected the call goes to the next replica along the ring, the one that
+ * would own the key without it. Calls without a routing key go to the connected replica with the
+ * fewest outstanding calls, counted by a stream tracer on each subchannel.
+ */
+public final class ConsistentHashLoadBalancer extends LoadBalancer {
+
+    /**
+     * Guid the call is about. Calls carrying it are sent to the replica owning the guid.
+     */
+    public static final CallOptions.Key<String> ROUTING_KEY = CallOptions.Key.createWithDefault("farm-routing-key", null);
+
+    private static final Attributes.Key<Replica> REPLICA = Attributes.Key.create("farm-replica");
+
+    private final Helper helper;
+    private final Map<EquivalentAddressGroup, Replica> replicas = new HashMap<>();
+    private List<Replica> ordered = new ArrayList<>();
+    private ConsistentHashRing ring;
+    private Status lastError = Status.UNAVAILABLE.withDescription("No replica connected yet");
+
+    private ConsistentHashLoadBalancer(Helper helper) {
+        this.helper = helper;
+    }
+
+    public static LoadBalancer.Factory factory() {
+        return new LoadBalancer.Factory() {
+            @Override
+            public LoadBalancer newLoadBalancer(Helper helper) {
+                return new ConsistentHashLoadBalancer(helper);
+            }
+        };
+    }
+
+    @Override
+    public void handleResolvedAddressGroups(List<EquivalentAddressGroup> groups, Attributes attributes) {
+        Map<EquivalentAddressGroup, Replica> removed = new HashMap<>(replicas);
+        List<Replica> current = new ArrayList<>(groups.size());
+        List<String> names = new ArrayList<>(groups.size());
+        for (EquivalentAddressGroup group : groups) {
+            // Address groups from the resolver carry no attributes of their own; key on addresses only.
+            EquivalentAddressGroup key = new EquivalentAddressGroup(group.getAddresses());
+            Replica replica = removed.remove(key);
+            if (replica == null) {
+                replica = new Replica(ConsistentHashRing.nodeName(group.getAddresses().get(0)));
+                replica.subchannel = helper.createSubchannel(key, Attributes.newBuilder().set(REPLICA, replica).build());
+                replica.subchannel.requestConnection();
+                replicas.put(key, replica);
+            }
+            current.add(replica);
+            names.add(replica.name);
+        }
+        for (Map.Entry<EquivalentAddressGroup, Replica> gone : removed.entrySet()) {
+            replicas.remove(gone.getKey());
+            gone.getValue().subchannel.shutdown();
+        }
+        ordered = current;
+        ring = current.isEmpty() ? null : new ConsistentHashRing(names);
+        updateBalancingState();
+    }
+
+    @Override
+    public void handleNameResolutionError(Status error) {
+        lastError = error;
+        if (ordered.isEmpty()) {
+            helper.updateBalancingState(ConnectivityState.TRANSIENT_FAILURE, new ErrorPicker(error));
+        }
+    }
+
+    @Override
+    public void handleSubchannelState(Subchannel subchannel, ConnectivityStateInfo stateInfo) {
+        Replica replica = subchannel.getAttributes().get(REPLICA);
+        if (replica == null || replica.subchannel != subchannel || stateInfo.getState() == ConnectivityState.SHUTDOWN) {
+            return;
+        }
+        if (stateInfo.getState() == ConnectivityState.IDLE) {
+            subchannel.requestConnection();
+        }
+        if (stateInfo.getState() == ConnectivityState.TRANSIENT_FAILURE) {
+            lastError = stateInfo.getStatus();
+        }
+        replica.state = stateInfo.getState();
+        updateBalancingState();
+    }
+
+    @Override
+    public void shutdown() {
+        for (Replica replica : replicas.values()) {
+            replica.subchannel.shutdown();
+        }
+        replicas.clear();
+    }
+
+    private void updateBalancingState() {
+        boolean[] ready = new boolean[ordered.size()];
+        boolean anyReady = false;
+        boolean anyConnecting = false;
+        for (int i = 0; i < ready.length; i++) {
+            ConnectivityState state = ordered.get(i).state;
+            ready[i] = state == ConnectivityState.READY;
+            anyReady |= ready[i];
+            anyConnecting |= state == ConnectivityState.CONNECTING || state == ConnectivityState.IDLE;
+        }
+        if (anyReady) {
+            helper.updateBalancingState(ConnectivityState.READY, new HashPicker(ring, ordered, ready));
+        } else if (anyConnecting) {
+            helper.updateBalancingState(ConnectivityState.CONNECTING, new WaitingPicker());
+        } else {
+            helper.updateBalancingState(ConnectivityState.TRANSIENT_FAILURE, new ErrorPicker(lastError));
+        }
+    }
+
+    /**
+     * One replica: its subchannel, last state and outstanding calls.
+     */
+    private static final class Replica {
+        private final String name;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final ClientStreamTracer.Factory tracerFactory = new ClientStreamTracer.Factory() {
+            @Override
+            public ClientStreamTracer newClientStreamTracer(CallOptions callOptions, Metadata headers) {
+                outstanding.incrementAndGet();
+                return new ClientStreamTracer() {
+                    @Override
+                    public void streamClosed(Status status) {
+                        outstanding.decrementAndGet();
+                    }
+                };
+            }
+        };
+        private Subchannel subchannel;
+        private ConnectivityState state = ConnectivityState.IDLE;
+
+        Replica(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class HashPicker extends SubchannelPicker {
+        private final ConsistentHashRing ring;
+        private final Replica[] replicas;
+        private final boolean[] ready;
+
+        HashPicker(ConsistentHashRing ring, List<Replica> replicas, boolean[] ready) {
+            this.ring = ring;
+            this.replicas = replicas.toArray(new Replica[replicas.size()]);
+            this.ready = ready;
+        }
+
+        @Override
+        public PickResult pickSubchannel(PickSubchannelArgs args) {
+            String key = args.getCallOptions().getOption(ROUTING_KEY);
+            Replica replica = key != null ? owner(key) : leastLoaded();
+            return PickResult.withSubchannel(replica.subchannel, replica.tracerFactory);
+        }
+
+        /**
+         * First connected replica at or after the key's point on the ring.
+         */
+        private Replica owner(String key) {
+            int point = ring.pointOf(key);
+            for (int step = 0; step < ring.pointCount(); step++) {
+                int node = ring.ownerAt(point, step);
+                if (ready[node]) {
+                    return replicas[node];
+                }
+            }
+            return leastLoaded();
+        }
+
+        private Replica leastLoaded() {
+            Replica best = null;
+            int bestLoad = Integer.MAX_VALUE;
+            for (int i = 0; i < replicas.length; i++) {
+                int load = replicas[i].outstanding.get();
+                if (ready[i] && load < bestLoad) {
+                    best = replicas[i];
+                    bestLoad = load;
+                }
+            }
+            return best;
+        }
+    }
+
+    private static final class WaitingPicker extends SubchannelPicker {
+        @Override
+        public PickResult pickSubchannel(PickSubchannelArgs args) {
+            return PickResult.withNoResult();
+        }
+    }
+
+    private static final class ErrorPicker extends SubchannelPicker {
+        private final Status error;
+
+        ErrorPicker(Status error) {
+            this.error = error;
+        }
+
+        @Override
+        public PickResult pickSubchannel(PickSubchannelArgs args) {
+            return PickResult.withError(error);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package io.grpc.proxy;
+
+import com.google.common.base.Charsets;
+import com.google.common.net.HostAndPort;
+import com.google.common.hash.Hashing;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Consistent hash ring assigning guids to a list of nodes, each placed on the ring at
+ * {@code virtualNodes} points.
+ *
+ * <p>A guid belongs to the node of the first point at or after its hash, wrapping around. Adding
+ * or removing a node only moves the guids next to that node's points, about 1/N of them, and the
+ * virtual nodes keep the share of each node close to even. Node positions depend only on the
+ * node names, so every client builds the same ring for the same replicas.
+ */
+public final class ConsistentHashRing {
+    static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final long[] points;
+    private final int[] owners;
+    private final int nodeCount;
+
+    public ConsistentHashRing(List<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("Need at least one node and one virtual node per node");
+        }
+        this.nodeCount = nodes.size();
+        // Point p belongs to node p / virtualNodes until the points are sorted by hash.
+        final long[] hashes = new long[nodes.size() * virtualNodes];
+        Integer[] order = new Integer[hashes.length];
+        for (int point = 0; point < hashes.length; point++) {
+            hashes[point] = hash(nodes.get(point / virtualNodes) + "#" + point % virtualNodes);
+            order[point] = point;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(hashes[a], hashes[b]);
+            }
+        });
+        this.points = new long[order.length];
+        this.owners = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / virtualNodes;
+        }
+    }
+
+    /**
+     * Stable name of a replica address: {@code host:port} for socket addresses, with IPv6
+     * literals in brackets as in {@code [::1]:8980}.
+     */
+    public static String nodeName(SocketAddress address) {
+        if (address instanceof InetSocketAddress) {
+            InetSocketAddress inet = (InetSocketAddress) address;
+            return HostAndPort.fromParts(inet.getHostString(), inet.getPort()).toString();
+        }
+        return address.toString();
+    }
+
+    /**
+     * Index of the node owning {@code guid}.
+     */
+    public int ownerOf(String guid) {
+        return owners[pointOf(guid)];
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Index of the first point at or after the hash of {@code guid}.
+     */
+    int pointOf(String guid) {
+        int found = Arrays.binarySearch(points, hash(guid));
+        int point = found >= 0 ? found : -found - 1;
+        return point == points.length ? 0 : point;
+    }
+
+    /**
+     * Owner of the point {@code steps} after {@code point}, wrapping around the ring.
+     */
+    int ownerAt(int point, int steps) {
+        return owners[(point + steps) % owners.length];
+    }
+
+    int pointCount() {
+        return points.length;
+    }
+
+    private static long hash(String key) {
+        return Hashing.murmur3_128().hashString(key, Charsets.UTF_8).asLong();
+    }
+}
@@ -0,0 +1,200 @@
+package io.grpc.proxy;
+
+import io.grpc.Channel;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Backend FarmServers of a {@link FarmProxy}, each reached over a few channels and guarded by a
+ * circuit breaker.
+ *
+ * <p>A backend's circuit opens after {@code failureThreshold} failed calls in a row and stays
+ * open for {@code openMillis}, during which no call is sent to it. After that a single trial
+ * call is let through; if it succeeds the circuit closes, otherwise it opens again. Calls sent
+ * before the circuit opened that finish while it is open do not change it. Only
+ * UNAVAILABLE, DEADLINE_EXCEEDED and RESOURCE_EXHAUSTED count as failures, since other statuses
+ * are answers from a healthy backend.
+ */
+public final class FarmBackendPool {
+    private static final Logger logger = Logger.getLogger(FarmBackendPool.class.getName());
+
+    private final Backend[] backends;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public FarmBackendPool(List<InetSocketAddress> addresses, int channelsPerBackend, int failureThreshold,
+                           long openMillis) {
+        if (addresses.isEmpty() || channelsPerBackend < 1 || failureThreshold < 1) {
+            throw new IllegalArgumentException("Need at least one backend, channel and allowed failure");
+        }
+        this.backends = new Backend[addresses.size()];
+        for (int i = 0; i < backends.length; i++) {
+            backends[i] = new Backend(addresses.get(i), channelsPerBackend, failureThreshold, openMillis);
+        }
+    }
+
+    /**
+     * Picks backends round-robin, skipping {@code exclude} and those whose circuit is open.
+     * Returns null if none can take the call. The caller must report the outcome of the call
+     * with {@link Lease#onClose}.
+     */
+    Lease pick(Backend exclude) {
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < backends.length; i++) {
+            Backend backend = backends[(start + i) % backends.length];
+            if (backend != exclude) {
+                Lease lease = backend.tryAcquire();
+                if (lease != null) {
+                    return lease;
+                }
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return backends.length;
+    }
+
+    public void shutdown() {
+        for (Backend backend : backends) {
+            for (ManagedChannel channel : backend.channels) {
+                channel.shutdown();
+            }
+        }
+    }
+
+    public void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Backend backend : backends) {
+            for (ManagedChannel channel : backend.channels) {
+                channel.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * One call picked for a backend. Only the lease of a half-open circuit's trial call
+     * settles the trial.
+     */
+    static final class Lease {
+        private final Backend backend;
+        private final boolean trial;
+
+        private Lease(Backend backend, boolean trial) {
+            this.backend = backend;
+            this.trial = trial;
+        }
+
+        Backend backend() {
+            return backend;
+        }
+
+        Channel channel() {
+            return backend.channel();
+        }
+
+        /**
+         * Records the outcome of the call.
+         */
+        void onClose(Status.Code code) {
+            backend.onClose(code, trial);
+        }
+    }
+
+    /**
+     * One backend server and its circuit breaker.
+     */
+    static final class Backend {
+        private final String name;
+        private final ManagedChannel[] channels;
+        private final AtomicInteger nextChannel = new AtomicInteger();
+        private final int failureThreshold;
+        private final long openNanos;
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        // System.nanoTime() until which the circuit is open; 0 while closed.
+        private volatile long openUntil;
+        private final AtomicBoolean trialInFlight = new AtomicBoolean();
+        private final Lease regular = new Lease(this, false);
+
+        Backend(InetSocketAddress address, int channelCount, int failureThreshold, long openMillis) {
+            this.name = ConsistentHashRing.nodeName(address);
+            this.channels = new ManagedChannel[channelCount];
+            for (int i = 0; i < channelCount; i++) {
+                channels[i] = ManagedChannelBuilder.forAddress(address.getHostString(), address.getPort())
+                        .usePlaintext()
+                        .build();
+            }
+            this.failureThreshold = failureThreshold;
+            this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        }
+
+        /**
+         * Next channel to this backend, round-robin.
+         */
+        Channel channel() {
+            return channels[(nextChannel.getAndIncrement() & Integer.MAX_VALUE) % channels.length];
+        }
+
+        private Lease tryAcquire() {
+            long until = openUntil;
+            if (until == 0) {
+                return regular;
+            }
+            // Half open once the wait is over: let exactly one trial call through.
+            if (System.nanoTime() - until >= 0 && trialInFlight.compareAndSet(false, true)) {
+                return new Lease(this, true);
+            }
+            return null;
+        }
+
+        private void onClose(Status.Code code, boolean trial) {
+            if (code == Status.Code.CANCELLED) {
+                // Cancelled by the client or as the losing hedge; says nothing about the backend.
+                if (trial) {
+                    trialInFlight.set(false);
+                }
+                return;
+            }
+            if (!trial && openUntil != 0) {
+                // Sent before the circuit opened; only the trial decides when it closes.
+                return;
+            }
+            boolean failed = code == Status.Code.UNAVAILABLE || code == Status.Code.DEADLINE_EXCEEDED
+                    || code == Status.Code.RESOURCE_EXHAUSTED;
+            if (!failed) {
+                consecutiveFailures.set(0);
+                if (openUntil != 0) {
+                    openUntil = 0;
+                    logger.info("Circuit to backend " + name + " closed");
+                }
+            } else if (consecutiveFailures.incrementAndGet() >= failureThreshold || trial) {
+                if (openUntil == 0) {
+                    logger.warning("Circuit to backend " + name + " opened after " + consecutiveFailures.get()
+                            + " failures, last " + code);
+                }
+                openUntil = System.nanoTime() + openNanos;
+            }
+            if (trial) {
+                trialInFlight.set(false);
+            }
+        }
+
+        boolean isOpen() {
+            return openUntil != 0;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
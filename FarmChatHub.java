@@ -0,0 +1,543 @@
+package io.grpc.proxy;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Topic-based fan-out of FarmChat notes between the open FarmChat streams.
+ *
+ * <p>A note's topic is the owner or the sourceid of its item. The first note a stream sends on
+ * a topic subscribes it: the stream gets the last {@value #HISTORY} notes of the topic, then
+ * every note others publish on it until the stream ends. A note with an empty message only
+ * subscribes. Notes of one topic reach every subscriber in the same order. A topic nobody
+ * subscribes to any more keeps its history until it is one of more than
+ * {@value #MAX_IDLE_TOPICS} such topics and the longest idle.
+ *
+ * <p>Publishing never blocks on a subscriber. Each subscriber has a bounded {@link RingBuffer}
+ * that publishers add to, and its notes are written to the call only while the transport is
+ * ready, from its onReady handler or from a shared pool of delivery threads. When the ring is
+ * full the {@link SlowConsumerPolicy} decides what the subscriber loses.
+ */
+public final class FarmChatHub {
+    private static final Logger logger = Logger.getLogger(FarmChatHub.class.getName());
+
+    private static final int HISTORY = 64;
+    private static final int MAX_IDLE_TOPICS = 1024;
+
+    public enum Topic {
+        OWNER,
+        SOURCEID
+    }
+
+    public enum SlowConsumerPolicy {
+        /**
+         * The oldest waiting notes make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Notes that do not fit wait in a map holding only the latest note per item (guid and
+         * sourceid), delivered after the ring. The subscriber sees every item's last state, not
+         * every step, and no longer in publishing order.
+         */
+        COALESCE,
+        /**
+         * The call is closed with RESOURCE_EXHAUSTED.
+         */
+        DISCONNECT
+    }
+
+    private final Topic topic;
+    private final int queueCapacity;
+    private final SlowConsumerPolicy policy;
+    private final ExecutorService deliveryExecutor;
+    private final ConcurrentMap<String, TopicState> topics = new ConcurrentHashMap<>();
+    // Topics whose last subscriber left, longest idle first; guarded by itself.
+    private final Map<String, TopicState> idleTopics = new LinkedHashMap<>();
+
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+
+    public FarmChatHub(Topic topic, int queueCapacity, SlowConsumerPolicy policy) {
+        this.topic = topic;
+        this.queueCapacity = queueCapacity;
+        this.policy = policy;
+        this.deliveryExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "farm-chat-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Owner topics, 128 notes per subscriber, dropping the oldest.
+     */
+    public static FarmChatHub defaults() {
+        return new FarmChatHub(Topic.OWNER, 128, SlowConsumerPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Takes over the FarmChat call {@code call} and returns the observer of its notes.
+     */
+    public StreamObserver<ItemNote> subscribe(ServerCallStreamObserver<ItemNote> call) {
+        return new Subscriber(call);
+    }
+
+    /**
+     * Open FarmChat streams.
+     */
+    public int subscriberCount() {
+        return subscribers.get();
+    }
+
+    public long publishedCount() {
+        return published.get();
+    }
+
+    /**
+     * Notes dropped or replaced because a subscriber's ring was full.
+     */
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    public long disconnectedCount() {
+        return disconnected.get();
+    }
+
+    public void shutdown() {
+        deliveryExecutor.shutdown();
+    }
+
+    private String topicOf(Item item) {
+        return topic == Topic.OWNER ? item.getOwner() : Integer.toString(item.getSourceid());
+    }
+
+    /**
+     * Number of topics, idle ones included.
+     */
+    public int topicCount() {
+        return topics.size();
+    }
+
+    private TopicState topicState(String name) {
+        TopicState state = topics.get(name);
+        if (state == null) {
+            TopicState created = new TopicState(name);
+            state = topics.putIfAbsent(name, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Remembers {@code state}, which just lost its last subscriber, and drops the longest idle
+     * topic if there are too many.
+     */
+    private void idle(TopicState state) {
+        TopicState evicted = null;
+        synchronized (idleTopics) {
+            idleTopics.remove(state.name);
+            idleTopics.put(state.name, state);
+            if (idleTopics.size() > MAX_IDLE_TOPICS) {
+                Iterator<TopicState> eldest = idleTopics.values().iterator();
+                evicted = eldest.next();
+                eldest.remove();
+            }
+        }
+        // It may have been subscribed again meanwhile, in which case it stays.
+        if (evicted != null && evicted.retireIfIdle()) {
+            topics.remove(evicted.name, evicted);
+        }
+    }
+
+    /**
+     * Subscribers and recent notes of one topic.
+     *
+     * <p>Publishing only numbers the note and queues it under the lock; the notes are handed to
+     * the subscribers outside it, by one publisher at a time in number order, so every
+     * subscriber sees them in the same order. A subscriber gets the history under the lock and
+     * then only the notes numbered from there on, so none is missed or repeated.
+     */
+    private static final class TopicState {
+        private static final Member[] NO_MEMBERS = new Member[0];
+
+        private final String name;
+        // Copy-on-write, replaced under the lock.
+        private volatile Member[] members = NO_MEMBERS;
+        private final ArrayDeque<ItemNote> history = new ArrayDeque<>();
+        private long nextNumber;
+        // Set under the lock once the hub dropped this topic; it takes no subscribers then.
+        private boolean retired;
+        private final ConcurrentLinkedQueue<Published> published = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger wip = new AtomicInteger();
+
+        TopicState(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns false if the topic was retired and a new one must be looked up.
+         */
+        synchronized boolean subscribe(Subscriber subscriber) {
+            if (retired) {
+                return false;
+            }
+            for (Member member : members) {
+                if (member.subscriber == subscriber) {
+                    return true;
+                }
+            }
+            for (ItemNote note : history) {
+                subscriber.offer(note);
+            }
+            Member[] grown = Arrays.copyOf(members, members.length + 1);
+            grown[members.length] = new Member(subscriber, nextNumber);
+            members = grown;
+            subscriber.signal(false);
+            return true;
+        }
+
+        void publish(Subscriber from, ItemNote note) {
+            synchronized (this) {
+                if (history.size() == HISTORY) {
+                    history.removeFirst();
+                }
+                history.addLast(note);
+                published.add(new Published(from, note, nextNumber++));
+            }
+            deliver();
+        }
+
+        /**
+         * Hands the queued notes to the subscribers, unless another publisher is already at it,
+         * in which case that one goes round once more.
+         */
+        private void deliver() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                Published next;
+                while ((next = published.poll()) != null) {
+                    for (Member member : members) {
+                        if (member.subscriber != next.from && next.number >= member.from) {
+                            member.subscriber.offer(next.note);
+                            member.subscriber.signal(false);
+                        }
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Returns true if this was the last subscriber.
+         */
+        synchronized boolean unsubscribe(Subscriber subscriber) {
+            for (int i = 0; i < members.length; i++) {
+                if (members[i].subscriber == subscriber) {
+                    Member[] shrunk = new Member[members.length - 1];
+                    System.arraycopy(members, 0, shrunk, 0, i);
+                    System.arraycopy(members, i + 1, shrunk, i, shrunk.length - i);
+                    members = shrunk;
+                    return shrunk.length == 0;
+                }
+            }
+            return false;
+        }
+
+        synchronized boolean retireIfIdle() {
+            retired = members.length == 0;
+            return retired;
+        }
+    }
+
+    /**
+     * A subscriber of a topic and the number of the first note it gets live.
+     */
+    private static final class Member {
+        private final Subscriber subscriber;
+        private final long from;
+
+        Member(Subscriber subscriber, long from) {
+            this.subscriber = subscriber;
+            this.from = from;
+        }
+    }
+
+    private static final class Published {
+        private final Subscriber from;
+        private final ItemNote note;
+        private final long number;
+
+        Published(Subscriber from, ItemNote note, long number) {
+            this.from = from;
+            this.note = note;
+            this.number = number;
+        }
+    }
+
+    /**
+     * One FarmChat stream. Only the drain loop calls methods of the call, and the work-in-progress
+     * counter lets a single thread run it at a time: whoever raises the counter from zero runs
+     * the loop, everyone else just makes it go round once more.
+     */
+    private final class Subscriber implements StreamObserver<ItemNote>, Runnable {
+        private final ServerCallStreamObserver<ItemNote> call;
+        private final RingBuffer<ItemNote> queue;
+        // Latest note per item that did not fit, with SlowConsumerPolicy.COALESCE.
+        private final ConcurrentMap<IndexedVMSDataStore.Key, ItemNote> coalesced;
+        private final Set<TopicState> subscriptions =
+                Collections.newSetFromMap(new ConcurrentHashMap<TopicState, Boolean>());
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean requestPending;
+        private volatile boolean halfClosed;
+        private volatile boolean cancelled;
+        private volatile boolean overflowed;
+        // Only touched by the drain loop.
+        private boolean closed;
+
+        Subscriber(ServerCallStreamObserver<ItemNote> call) {
+            this.call = call;
+            this.queue = new RingBuffer<>(queueCapacity);
+            this.coalesced = policy == SlowConsumerPolicy.COALESCE
+                    ? new ConcurrentHashMap<IndexedVMSDataStore.Key, ItemNote>()
+                    : null;
+            subscribers.incrementAndGet();
+            call.disableAutoInboundFlowControl();
+            call.setOnReadyHandler(this);
+            call.setOnCancelHandler(new Runnable() {
+                @Override
+                public void run() {
+                    cancel();
+                }
+            });
+            call.request(1);
+        }
+
+        @Override
+        public void onNext(ItemNote note) {
+            TopicState state = subscribe(topicOf(note.getItem()));
+            if (!note.getMessage().isEmpty()) {
+                published.incrementAndGet();
+                state.publish(this, note);
+            }
+            requestPending = true;
+            signal(true);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.log(Level.FINE, "farmChat cancelled", t);
+            cancel();
+        }
+
+        @Override
+        public void onCompleted() {
+            // Stop receiving, but deliver what is waiting before completing.
+            unsubscribe();
+            halfClosed = true;
+            signal(true);
+        }
+
+        /**
+         * onReady handler.
+         */
+        @Override
+        public void run() {
+            signal(true);
+        }
+
+        private void cancel() {
+            cancelled = true;
+            unsubscribe();
+            signal(true);
+        }
+
+        private TopicState subscribe(String name) {
+            while (true) {
+                TopicState state = topicState(name);
+                if (subscriptions.contains(state)) {
+                    return state;
+                }
+                subscriptions.add(state);
+                if (state.subscribe(this)) {
+                    if (cancelled || halfClosed) {
+                        // Ended while subscribing, so unsubscribe() may have missed this topic.
+                        unsubscribe();
+                    }
+                    return state;
+                }
+                // Retired by the hub after the lookup; the next lookup makes a fresh one.
+                subscriptions.remove(state);
+            }
+        }
+
+        private void unsubscribe() {
+            for (TopicState state : subscriptions) {
+                if (state.unsubscribe(this)) {
+                    idle(state);
+                }
+            }
+        }
+
+        /**
+         * Queues {@code note}, applying the slow consumer policy if the ring is full.
+         */
+        void offer(ItemNote note) {
+            if (queue.offer(note)) {
+                return;
+            }
+            switch (policy) {
+                case DROP_OLDEST:
+                    do {
+                        if (queue.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                    } while (!queue.offer(note));
+                    break;
+                case COALESCE:
+                    Item item = note.getItem();
+                    if (coalesced.put(new IndexedVMSDataStore.Key(item.getGuid(), item.getSourceid()), note) != null) {
+                        dropped.incrementAndGet();
+                    }
+                    break;
+                default:
+                    dropped.incrementAndGet();
+                    overflowed = true;
+                    break;
+            }
+        }
+
+        /**
+         * Makes the drain loop run, on this thread if {@code inline} and nobody runs it yet, or
+         * on a delivery thread.
+         */
+        void signal(boolean inline) {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            if (inline) {
+                drainLoop();
+                return;
+            }
+            try {
+                deliveryExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drainLoop();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Shutting down.
+                wip.set(0);
+            }
+        }
+
+        private void drainLoop() {
+            int missed = 1;
+            do {
+                try {
+                    drain();
+                } catch (RuntimeException e) {
+                    // The call was cancelled while writing to it.
+                    logger.log(Level.FINE, "farmChat delivery failed", e);
+                    close();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (closed) {
+                return;
+            }
+            if (cancelled) {
+                close();
+                return;
+            }
+            if (overflowed) {
+                close();
+                disconnected.incrementAndGet();
+                call.onError(Status.RESOURCE_EXHAUSTED
+                        .withDescription("Subscriber fell " + queue.capacity() + " notes behind")
+                        .asRuntimeException());
+                return;
+            }
+            while (call.isReady()) {
+                ItemNote note = queue.poll();
+                if (note == null) {
+                    note = pollCoalesced();
+                    if (note == null) {
+                        break;
+                    }
+                }
+                call.onNext(note);
+            }
+            if (requestPending && !halfClosed) {
+                requestPending = false;
+                call.request(1);
+            }
+            if (halfClosed && queue.isEmpty() && (coalesced == null || coalesced.isEmpty())) {
+                close();
+                call.onCompleted();
+            }
+        }
+
+        private ItemNote pollCoalesced() {
+            if (coalesced == null || coalesced.isEmpty()) {
+                return null;
+            }
+            Iterator<Map.Entry<IndexedVMSDataStore.Key, ItemNote>> entries = coalesced.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<IndexedVMSDataStore.Key, ItemNote> entry = entries.next();
+                if (coalesced.remove(entry.getKey(), entry.getValue())) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+
+        private void close() {
+            if (!closed) {
+                closed = true;
+                unsubscribe();
+                subscribers.decrementAndGet();
+                while (queue.poll() != null) {
+                    // Let the notes go.
+                }
+            }
+        }
+    }
+}
@@ -1,18 +1,24 @@
 package io.grpc.proxy;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import io.grpc.*;
-import io.grpc.netty.shaded.io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.netty.channel.ChannelOption;
 import io.grpc.stub.MetadataUtils;
 import io.grpc.stub.StreamObserver;
 
 import javax.net.ssl.SSLException;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,19 +29,63 @@ public class FarmClient {
     private final ManagedChannel originChannel;
     private final FarmGrpc.FarmBlockingStub blockingStub;
     private final FarmGrpc.FarmStub asyncStub;
+    private final FarmGrpc.FarmFutureStub futureStub;
+    // Placement of guids on the replicas, or null when talking to a single server.
+    private final ConsistentHashRing ring;
+    private volatile FarmLookupBatcher lookupBatcher;
+    private volatile FarmResponseCache responseCache;
+    // Runs the blocking calls of getFarmMessages, one virtual thread each where there are any.
+    private ExecutorService callers;
 
     public FarmClient(String host, int port) {
         this(ManagedChannelBuilder.forAddress(host, port).usePlaintext());
     }
+
+    /**
+     * Construct client for FarmServer replicas that each hold a part of the data. Every lookup
+     * goes to the replica owning its guid on a {@link ConsistentHashRing} of the replicas.
+     */
+    public FarmClient(List<InetSocketAddress> replicas) {
+        this(ManagedChannelBuilder.forTarget(FarmNameResolver.target(replicas))
+                        .nameResolverFactory(FarmNameResolver.factory())
+                        .loadBalancerFactory(ConsistentHashLoadBalancer.factory())
+                        .usePlaintext(),
+                ring(replicas), FarmCompression.none());
+    }
+
     /**
      * Construct client for accessing Farm server using the existing channel.
      * With metadata and header interceptor
      */
     public FarmClient(ManagedChannelBuilder<?> channelBuilder) {
-        originChannel = channelBuilder.build();
+        this(channelBuilder, null, FarmCompression.none());
+    }
+
+    /**
+     * Construct client for accessing Farm server using the existing channel, compressing
+     * requests by the {@code compression} rules where the server accepts their encoding.
+     */
+    public FarmClient(ManagedChannelBuilder<?> channelBuilder, FarmCompression compression) {
+        this(channelBuilder, null, compression);
+    }
+
+    private FarmClient(ManagedChannelBuilder<?> channelBuilder, ConsistentHashRing ring, FarmCompression compression) {
+        this.ring = ring;
+        if (VirtualThreads.isAvailable() && channelBuilder instanceof NettyChannelBuilder) {
+            // getFarmMessages sends from virtual threads.
+            ((NettyChannelBuilder) channelBuilder).withOption(ChannelOption.ALLOCATOR, VirtualThreads.allocator());
+        }
+        // Lets the server answer in snappy as well as gzip.
+        originChannel = channelBuilder
+                .compressorRegistry(FarmCompression.compressors())
+                .decompressorRegistry(FarmCompression.decompressors())
+                .build();
 
         ClientInterceptor interceptor = new HeaderClientInterceptor();
         Channel channel = ClientInterceptors.intercept(originChannel, interceptor);
+        if (compression != FarmCompression.none()) {
+            channel = ClientInterceptors.intercept(channel, compression.clientInterceptor());
+        }
 
         Metadata metadata = new Metadata();
         Metadata.Key<String> key = Metadata.Key.of("farm-request-metadata", Metadata.ASCII_STRING_MARSHALLER);
@@ -43,6 +93,7 @@ public class FarmClient {
 
         blockingStub = MetadataUtils.attachHeaders(FarmGrpc.newBlockingStub(channel), metadata);
         asyncStub = FarmGrpc.newStub(channel);
+        futureStub = MetadataUtils.attachHeaders(FarmGrpc.newFutureStub(channel), metadata);
     }
 
     /**
@@ -54,23 +105,13 @@ public class FarmClient {
     }*/
 
     /**
-     * Construct client for accessing Farm server using the existing channel.
+     * Construct client for accessing Farm server using the existing channel, over TLS trusting
+     * {@code target/classes/root.pem}. Clients share one context, so a new client resumes the
+     * TLS sessions of earlier ones. The channel is otherwise set up as a plaintext one.
      */
     public FarmClient(NettyChannelBuilder channelBuilder) throws SSLException {
-        Path rootsPath = Paths.get("target/classes/root.pem");
-        originChannel = channelBuilder
-                .sslContext(GrpcSslContexts.forClient().trustManager(rootsPath.toFile()).build())
-                .build();
-
-        ClientInterceptor interceptor = new HeaderClientInterceptor();
-        Channel channel = ClientInterceptors.intercept(originChannel, interceptor);
-
-        Metadata metadata = new Metadata();
-        Metadata.Key<String> key = Metadata.Key.of("farm-request-metadata", Metadata.ASCII_STRING_MARSHALLER);
-        metadata.put(key, "Message created in client!! This is the very important metadata from the very important farm");
-
-        blockingStub = MetadataUtils.attachHeaders(FarmGrpc.newBlockingStub(channel), metadata);
-        asyncStub = FarmGrpc.newStub(channel);
+        this(channelBuilder.sslContext(FarmTls.clientContext(new File("target/classes/root.pem"))), null,
+                FarmCompression.none());
     }
 
     /**
@@ -85,12 +126,17 @@ public class FarmClient {
             return;
         }
 
+        FarmMetrics.client().export();
         FarmClient client = new FarmClient("127.0.0.1", 8980);
         try {
             client.getVMSDataResponse("407838352", 456124);
 
             client.getVMSDataResponse("0", 0);
 
+            List<VMSDataResponse> batch = client.getVMSDataResponses(Arrays.asList(
+                    createRequest("407838351", 456123), createRequest("0", 0), createRequest("407838353", 456125)));
+            client.info("Batch lookup returned {0}", batch);
+
             client.listVMSDataResponseBySmallWrapper(createRequest("407838351", 456123));
 
             List<Item> items = new ArrayList<>();
@@ -110,21 +156,145 @@ public class FarmClient {
         }
     }
 
+    private static ConsistentHashRing ring(List<InetSocketAddress> replicas) {
+        List<String> names = new ArrayList<>(replicas.size());
+        for (InetSocketAddress replica : replicas) {
+            names.add(ConsistentHashRing.nodeName(replica));
+        }
+        return new ConsistentHashRing(names);
+    }
+
     private static VMSDataRequest createRequest(String guid, int sourceid) {
         return VMSDataRequest.newBuilder().setItem(Item.newBuilder().setGuid(guid).setSourceid(sourceid)).build();
     }
 
+    /**
+     * Async stub on this client's channel, with the header interceptor applied.
+     */
+    FarmGrpc.FarmStub getAsyncStub() {
+        return asyncStub;
+    }
+
     public void shutdown() throws InterruptedException {
+        synchronized (this) {
+            if (lookupBatcher != null) {
+                lookupBatcher.close();
+            }
+            if (callers != null) {
+                callers.shutdownNow();
+            }
+        }
         originChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
     }
 
+    /**
+     * Serve repeated {@link #getFarmMessage} requests from memory for {@code ttl}, keeping at most
+     * {@code maximumSize} responses.
+     */
+    public FarmResponseCache enableResponseCache(long maximumSize, long ttl, TimeUnit unit) {
+        responseCache = new FarmResponseCache(blockingStub, maximumSize, ttl, unit);
+        return responseCache;
+    }
+
+    /**
+     * Calls GetFarmMessage, through the response cache if it is enabled.
+     *
+     * @throws StatusRuntimeException if the call fails
+     */
+    public VMSDataResponse getFarmMessage(VMSDataRequest request) {
+        FarmResponseCache cache = responseCache;
+        return cache != null ? cache.get(request)
+                : blockingStub.withOption(ConsistentHashLoadBalancer.ROUTING_KEY, request.getItem().getGuid())
+                        .getFarmMessage(request);
+    }
+
+    /**
+     * Calls {@link #getFarmMessage} for every request at once, each on its own virtual thread
+     * (see {@link VirtualThreads}), and waits for all of them. The result is in request order.
+     * Without virtual threads, before Java 21, the calls go out through the future stub instead,
+     * bypassing the response cache, rather than holding a platform thread each.
+     *
+     * @throws StatusRuntimeException if a call fails
+     */
+    public List<VMSDataResponse> getFarmMessages(List<VMSDataRequest> requests) throws InterruptedException {
+        if (!VirtualThreads.isAvailable()) {
+            List<ListenableFuture<VMSDataResponse>> calls = new ArrayList<>(requests.size());
+            for (VMSDataRequest request : requests) {
+                calls.add(futureStub.withOption(ConsistentHashLoadBalancer.ROUTING_KEY, request.getItem().getGuid())
+                        .getFarmMessage(request));
+            }
+            try {
+                return Futures.allAsList(calls).get();
+            } catch (ExecutionException e) {
+                throw Status.fromThrowable(e.getCause()).asRuntimeException();
+            }
+        }
+        ExecutorService executor;
+        synchronized (this) {
+            if (callers == null) {
+                callers = VirtualThreads.newExecutor("farm-caller");
+            }
+            executor = callers;
+        }
+        List<Future<VMSDataResponse>> calls = new ArrayList<>(requests.size());
+        for (final VMSDataRequest request : requests) {
+            calls.add(executor.submit(new Callable<VMSDataResponse>() {
+                @Override
+                public VMSDataResponse call() {
+                    return getFarmMessage(request);
+                }
+            }));
+        }
+        List<VMSDataResponse> responses = new ArrayList<>(calls.size());
+        try {
+            for (Future<VMSDataResponse> call : calls) {
+                responses.add(call.get());
+            }
+        } catch (ExecutionException e) {
+            throw Status.fromThrowable(e.getCause()).asRuntimeException();
+        } finally {
+            for (Future<VMSDataResponse> call : calls) {
+                call.cancel(true);
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Coalesce {@link #lookup} calls arriving within {@code window} into one batch call of at
+     * most {@code maxBatchSize} keys. Defaults to 1 ms and 512 keys.
+     */
+    public synchronized void setLookupBatching(long window, TimeUnit unit, int maxBatchSize) {
+        if (lookupBatcher != null) {
+            lookupBatcher.close();
+        }
+        lookupBatcher = new FarmLookupBatcher(futureStub, window, unit, maxBatchSize, ring);
+    }
+
+    /**
+     * Looks up one item asynchronously. Concurrent lookups are sent together as one
+     * BatchGetFarmMessage call; the future holds {@code null} if the item does not exist.
+     */
+    public ListenableFuture<VMSDataResponse> lookup(String guid, int sourceid) {
+        FarmLookupBatcher batcher = lookupBatcher;
+        if (batcher == null) {
+            synchronized (this) {
+                if (lookupBatcher == null) {
+                    lookupBatcher = new FarmLookupBatcher(futureStub, 1, TimeUnit.MILLISECONDS, 512, ring);
+                }
+                batcher = lookupBatcher;
+            }
+        }
+        return batcher.lookup(guid, sourceid);
+    }
+
     public void getVMSDataResponse(String guid, int sourceid) {
         info("*** getVMSDataResponse: guid={0} sourceid={1}", guid, sourceid);
         VMSDataRequest request = VMSDataRequest.newBuilder().setItem(Item.newBuilder().setGuid(guid).setSourceid(sourceid)).build();
 
         VMSDataResponse vmsDataResponse;
         try {
-            vmsDataResponse = blockingStub.getFarmMessage(request);
+            vmsDataResponse = getFarmMessage(request);
         } catch (StatusRuntimeException e) {
             warning("RPC failed: {0}", e.getStatus());
             return;
@@ -136,6 +306,61 @@ public class FarmClient {
         }
     }
 
+    /**
+     * Looks up all requests in one call, or one call per replica owning some of them. The result
+     * has one entry per request, in the same order, and {@code null} where nothing matched.
+     *
+     * @throws StatusRuntimeException if a call fails
+     */
+    public List<VMSDataResponse> getVMSDataResponses(List<VMSDataRequest> requests) {
+        if (ring == null || ring.nodeCount() == 1 || requests.isEmpty()) {
+            BatchVMSDataResponse batch = blockingStub.batchGetFarmMessage(
+                    BatchVMSDataRequest.newBuilder().addAllRequests(requests).build());
+            List<VMSDataResponse> responses = new ArrayList<>(batch.getResponsesCount());
+            for (int i = 0; i < batch.getResponsesCount(); i++) {
+                responses.add(batch.getFound(i) ? batch.getResponses(i) : null);
+            }
+            return responses;
+        }
+
+        List<List<Integer>> byReplica = new ArrayList<>();
+        for (int i = 0; i < ring.nodeCount(); i++) {
+            byReplica.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            byReplica.get(ring.ownerOf(requests.get(i).getItem().getGuid())).add(i);
+        }
+        List<List<Integer>> sent = new ArrayList<>();
+        List<ListenableFuture<BatchVMSDataResponse>> calls = new ArrayList<>();
+        for (List<Integer> positions : byReplica) {
+            if (positions.isEmpty()) {
+                continue;
+            }
+            BatchVMSDataRequest.Builder batch = BatchVMSDataRequest.newBuilder();
+            for (int position : positions) {
+                batch.addRequests(requests.get(position));
+            }
+            String routingKey = requests.get(positions.get(0)).getItem().getGuid();
+            calls.add(futureStub.withOption(ConsistentHashLoadBalancer.ROUTING_KEY, routingKey)
+                    .batchGetFarmMessage(batch.build()));
+            sent.add(positions);
+        }
+        VMSDataResponse[] responses = new VMSDataResponse[requests.size()];
+        for (int call = 0; call < calls.size(); call++) {
+            BatchVMSDataResponse batch;
+            try {
+                batch = Uninterruptibles.getUninterruptibly(calls.get(call));
+            } catch (ExecutionException e) {
+                throw Status.fromThrowable(e.getCause()).asRuntimeException();
+            }
+            List<Integer> positions = sent.get(call);
+            for (int i = 0; i < positions.size(); i++) {
+                responses[positions.get(i)] = i < batch.getFoundCount() && batch.getFound(i) ? batch.getResponses(i) : null;
+            }
+        }
+        return Arrays.asList(responses);
+    }
+
     public void listVMSDataResponseBySmallWrapper(VMSDataRequest req1) {
         info("*** listVMSDataResponse: req1={0}", req1);
 
@@ -156,6 +381,20 @@ public class FarmClient {
         }
     }
 
+    /**
+     * Returns every item matching the query, in server order.
+     *
+     * @throws StatusRuntimeException if the call fails
+     */
+    public List<VMSDataResponse> queryFarmMessages(FarmQuery query) {
+        List<VMSDataResponse> responses = new ArrayList<>();
+        Iterator<VMSDataResponse> matches = blockingStub.queryFarmMessages(query);
+        while (matches.hasNext()) {
+            responses.add(matches.next());
+        }
+        return responses;
+    }
+
     public void getFarmsSummaryMessage(List<Item> items, int numRequests) throws InterruptedException {
         info("*** getFarmsSummaryMessage");
         final CountDownLatch finishLatch = new CountDownLatch(1);
@@ -185,8 +424,6 @@ public class FarmClient {
             for (int i = 0; i < numRequests; ++i) {
                 Item item = items.get(i);
                 streamObserver.onNext(item);
-                // Sleep for a bit before sending the next one.
-                 Thread.sleep(5);
                 info("Sending " + item);
                 if (finishLatch.getCount() == 0) {
                     // RPC completed or errored before we finished sending.
@@ -0,0 +1,305 @@
+package io.grpc.proxy;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which Farm methods compress their messages, with which encoding, and from what size on.
+ *
+ * <p>Each method may have a rule naming an encoding, {@code gzip} or {@code snappy}, and the
+ * smallest serialized message worth compressing; messages below it, like single records, go out
+ * as they are and cost no CPU. gRPC compresses every message on its own, so a stream of small
+ * records gains nothing, while a batch response of many records sharing owners shrinks several
+ * times.
+ *
+ * <p>The encoding is negotiated: a server only compresses a response with an encoding the
+ * client listed in its {@code grpc-accept-encoding} header, and a client only compresses
+ * requests with an encoding the server listed in its response headers, sending the first call
+ * uncompressed. Both sides must use {@link #compressors} and {@link #decompressors} for
+ * {@code snappy} to be known.
+ */
+public final class FarmCompression {
+    public static final String IDENTITY = Codec.Identity.NONE.getMessageEncoding();
+    public static final String GZIP = "gzip";
+    public static final String SNAPPY = SnappyCodec.ENCODING;
+
+    private static final Metadata.Key<String> ACCEPT_ENCODING =
+            Metadata.Key.of("grpc-accept-encoding", Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final CompressorRegistry COMPRESSORS = CompressorRegistry.newEmptyInstance();
+    private static final DecompressorRegistry DECOMPRESSORS;
+
+    static {
+        SnappyCodec snappy = new SnappyCodec();
+        COMPRESSORS.register(Codec.Identity.NONE);
+        COMPRESSORS.register(new Codec.Gzip());
+        COMPRESSORS.register(snappy);
+        DECOMPRESSORS = DecompressorRegistry.getDefaultInstance().with(snappy, true);
+    }
+
+    private static final FarmCompression NONE = new FarmCompression(Collections.<String, Rule>emptyMap(), null);
+
+    // Rules by full method name, and the rule of methods without one.
+    private final Map<String, Rule> rules;
+    private final Rule defaultRule;
+
+    private FarmCompression(Map<String, Rule> rules, Rule defaultRule) {
+        this.rules = rules;
+        this.defaultRule = defaultRule;
+    }
+
+    /**
+     * Nothing compressed, as grpc-java does by default.
+     */
+    public static FarmCompression none() {
+        return NONE;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Parses comma-separated {@code method=encoding:minBytes} rules, where the method is a Farm
+     * method name like {@code BatchGetFarmMessage} or {@code *} for every other method, and
+     * {@code :minBytes} may be left out to compress messages of any size. For example
+     * {@code BatchGetFarmMessage=snappy:1024,QueryFarmMessages=gzip:4096}.
+     */
+    public static FarmCompression parse(String spec) {
+        Builder builder = new Builder();
+        for (String rule : spec.split(",")) {
+            rule = rule.trim();
+            if (rule.isEmpty()) {
+                continue;
+            }
+            int equals = rule.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected method=encoding:minBytes: " + rule);
+            }
+            String method = rule.substring(0, equals).trim();
+            String encoding = rule.substring(equals + 1).trim();
+            int minBytes = 0;
+            int colon = encoding.indexOf(':');
+            if (colon >= 0) {
+                minBytes = Integer.parseInt(encoding.substring(colon + 1).trim());
+                encoding = encoding.substring(0, colon).trim();
+            }
+            if ("*".equals(method)) {
+                builder.otherMethods(encoding, minBytes);
+            } else {
+                builder.method(FarmGrpc.SERVICE_NAME + "/" + method, encoding, minBytes);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * gzip and snappy, for {@code ServerBuilder.compressorRegistry} and
+     * {@code ManagedChannelBuilder.compressorRegistry}.
+     */
+    public static CompressorRegistry compressors() {
+        return COMPRESSORS;
+    }
+
+    /**
+     * gzip and snappy, advertised in {@code grpc-accept-encoding}.
+     */
+    public static DecompressorRegistry decompressors() {
+        return DECOMPRESSORS;
+    }
+
+    /**
+     * Rule of {@code fullMethodName}, or null if its messages are not compressed.
+     */
+    private Rule rule(String fullMethodName) {
+        Rule rule = rules.get(fullMethodName);
+        if (rule == null) {
+            rule = defaultRule;
+        }
+        return rule == null || IDENTITY.equals(rule.encoding) ? null : rule;
+    }
+
+    /**
+     * Compresses the responses of the server's calls by their rules.
+     */
+    public ServerInterceptor serverInterceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                final Rule rule = rule(call.getMethodDescriptor().getFullMethodName());
+                if (rule == null) {
+                    return next.startCall(call, headers);
+                }
+                // Falls back to identity when the client does not accept the encoding.
+                call.setCompression(rule.encoding);
+                return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+                    @Override
+                    public void sendMessage(RespT message) {
+                        delegate().setMessageCompression(rule.compresses(message));
+                        super.sendMessage(message);
+                    }
+                }, headers);
+            }
+        };
+    }
+
+    /**
+     * Compresses the requests of a channel's calls by their rules, once the server has said it
+     * accepts the encoding. Use one interceptor per channel.
+     */
+    public ClientInterceptor clientInterceptor() {
+        return new ClientInterceptor() {
+            // Encodings the server accepts, learnt from the headers of its first response.
+            private volatile Set<String> accepted;
+
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                       CallOptions callOptions, Channel next) {
+                final Rule rule = rule(method.getFullMethodName());
+                Set<String> accepted = this.accepted;
+                if (accepted != null && (rule == null || callOptions.getCompressor() != null)) {
+                    return next.newCall(method, callOptions);
+                }
+                final boolean compress = rule != null && accepted != null && accepted.contains(rule.encoding);
+                ClientCall<ReqT, RespT> call = next.newCall(method,
+                        compress ? callOptions.withCompression(rule.encoding) : callOptions);
+                return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(call) {
+                    @Override
+                    public void start(Listener<RespT> responseListener, Metadata headers) {
+                        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                            @Override
+                            public void onHeaders(Metadata headers) {
+                                learn(headers);
+                                super.onHeaders(headers);
+                            }
+                        }, headers);
+                    }
+
+                    @Override
+                    public void sendMessage(ReqT message) {
+                        if (compress) {
+                            delegate().setMessageCompression(rule.compresses(message));
+                        }
+                        super.sendMessage(message);
+                    }
+                };
+            }
+
+            private void learn(Metadata headers) {
+                if (accepted == null) {
+                    String encodings = headers.get(ACCEPT_ENCODING);
+                    accepted = encodings == null
+                            ? Collections.<String>emptySet()
+                            : new HashSet<>(Arrays.asList(encodings.split("\\s*,\\s*")));
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Rule> rule : rules.entrySet()) {
+            if (text.length() > 0) {
+                text.append(',');
+            }
+            text.append(rule.getKey().substring(rule.getKey().indexOf('/') + 1)).append('=').append(rule.getValue());
+        }
+        if (defaultRule != null) {
+            text.append(text.length() > 0 ? "," : "").append("*=").append(defaultRule);
+        }
+        return text.length() > 0 ? text.toString() : IDENTITY;
+    }
+
+    private static final class Rule {
+        final String encoding;
+        final int minBytes;
+
+        Rule(String encoding, int minBytes) {
+            this.encoding = encoding;
+            this.minBytes = minBytes;
+        }
+
+        boolean compresses(Object message) {
+            return minBytes == 0 || !(message instanceof MessageLite)
+                    || ((MessageLite) message).getSerializedSize() >= minBytes;
+        }
+
+        @Override
+        public String toString() {
+            return encoding + ":" + minBytes;
+        }
+    }
+
+    public static final class Builder {
+        private final Map<String, Rule> rules = new HashMap<>();
+        private Rule defaultRule;
+
+        private Builder() {
+        }
+
+        /**
+         * Compresses the messages of {@code method} of at least {@code minBytes} with
+         * {@code encoding}; {@code identity} leaves them uncompressed.
+         */
+        public Builder method(MethodDescriptor<?, ?> method, String encoding, int minBytes) {
+            return method(method.getFullMethodName(), encoding, minBytes);
+        }
+
+        /**
+         * Rule of the methods that have none of their own.
+         */
+        public Builder otherMethods(String encoding, int minBytes) {
+            this.defaultRule = rule(encoding, minBytes);
+            return this;
+        }
+
+        private Builder method(String fullMethodName, String encoding, int minBytes) {
+            boolean known = false;
+            for (MethodDescriptor<?, ?> method : FarmGrpc.getServiceDescriptor().getMethods()) {
+                known |= method.getFullMethodName().equals(fullMethodName);
+            }
+            if (!known) {
+                throw new IllegalArgumentException("Unknown Farm method " + fullMethodName);
+            }
+            rules.put(fullMethodName, rule(encoding, minBytes));
+            return this;
+        }
+
+        private static Rule rule(String encoding, int minBytes) {
+            if (minBytes < 0) {
+                throw new IllegalArgumentException("minBytes must not be negative: " + minBytes);
+            }
+            if (COMPRESSORS.lookupCompressor(encoding) == null) {
+                throw new IllegalArgumentException("Unknown encoding " + encoding + ", expected gzip, snappy or identity");
+            }
+            return new Rule(encoding, minBytes);
+        }
+
+        public FarmCompression build() {
+            return new FarmCompression(new HashMap<>(rules), defaultRule);
+        }
+    }
+}
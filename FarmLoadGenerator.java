@@ -0,0 +1,414 @@
+package io.grpc.proxy;
+
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load generator driving a mix of the four Farm RPCs through {@link FarmClient}s.
+ *
+ * <p>With {@code --rate} above zero it runs open-loop: calls are scheduled at a constant arrival
+ * rate and each latency is measured from the time the call was scheduled to start, not from
+ * when it actually went out. When the server falls behind, the queueing delay therefore shows
+ * up in the percentiles instead of being hidden by a slowed-down generator (coordinated
+ * omission). With {@code --rate=0} it runs closed-loop: every one of the channels × streams
+ * slots issues its next call as soon as the previous one completes.
+ *
+ * <pre>
+ * java io.grpc.proxy.FarmLoadGenerator --server=embedded --channels=4 --streams=32 \
+ *     --rate=20000 --duration=60 --warmup=10 --mix=get=70,list=10,summary=10,chat=10
+ * </pre>
+ *
+ * <p>With {@code --heap-interval} above zero it also collects garbage every that many seconds
+ * and prints the heap left in use, which stays flat while the streams hold nothing back. Long
+ * GetFarmsSummaryMessage and FarmChat streams only send while the call is ready, so with a large
+ * {@code --summary-items} or {@code --chat-notes} any growth is on the server:
+ *
+ * <pre>
+ * java -Xmx256m io.grpc.proxy.FarmLoadGenerator --server=embedded --rate=0 --channels=2 --streams=2 \
+ *     --mix=summary=1,chat=1 --summary-items=1000000 --chat-notes=1000000 --duration=120 --heap-interval=10
+ * </pre>
+ * The collections pause the load, so latencies of such a run are not comparable to others.
+ */
+public final class FarmLoadGenerator {
+    private static final Logger logger = Logger.getLogger(FarmLoadGenerator.class.getName());
+
+    private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    enum Operation { GET, LIST, SUMMARY, CHAT }
+
+    private final List<FarmGrpc.FarmStub> stubs;
+    private final List<Item> items;
+    private final Operation[] mix;
+    private final int summaryItems;
+    private final int chatNotes;
+
+    private final Recorder[] recorders = new Recorder[Operation.values().length];
+    private final AtomicLong[] errors = new AtomicLong[Operation.values().length];
+    private volatile long measureFrom;
+
+    FarmLoadGenerator(List<FarmGrpc.FarmStub> stubs, List<Item> items, Map<Operation, Integer> weights,
+                      int summaryItems, int chatNotes) {
+        this.stubs = stubs;
+        this.items = items;
+        this.summaryItems = summaryItems;
+        this.chatNotes = chatNotes;
+        List<Operation> table = new ArrayList<>();
+        for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+            for (int i = 0; i < weight.getValue(); i++) {
+                table.add(weight.getKey());
+            }
+        }
+        if (table.isEmpty()) {
+            throw new IllegalArgumentException("The operation mix is empty");
+        }
+        this.mix = table.toArray(new Operation[table.size()]);
+        for (int i = 0; i < recorders.length; i++) {
+            recorders[i] = new Recorder(HIGHEST_MICROS, 3);
+            errors[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Runs for {@code warmupSeconds} plus {@code durationSeconds} and returns the histograms of the
+     * measured part, indexed by {@link Operation#ordinal()}.
+     */
+    Histogram[] run(long rate, int concurrency, int warmupSeconds, int durationSeconds) throws InterruptedException {
+        Semaphore slots = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+
+        for (long i = 0; ; i++) {
+            long intended;
+            if (rate > 0) {
+                intended = start + i * interval;
+                if (intended - end >= 0) {
+                    break;
+                }
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                // Waiting for a slot counts against this call's latency.
+                slots.acquire();
+            } else {
+                slots.acquire();
+                intended = System.nanoTime();
+                if (intended - end >= 0) {
+                    slots.release();
+                    break;
+                }
+            }
+            issue(mix[ThreadLocalRandom.current().nextInt(mix.length)], stubs.get((int) (i % stubs.size())), intended, slots);
+        }
+        if (!slots.tryAcquire(concurrency, 30, TimeUnit.SECONDS)) {
+            logger.warning("Calls still outstanding after 30 seconds");
+        }
+
+        Histogram[] histograms = new Histogram[recorders.length];
+        for (int i = 0; i < recorders.length; i++) {
+            histograms[i] = recorders[i].getIntervalHistogram();
+        }
+        return histograms;
+    }
+
+    private void issue(final Operation operation, FarmGrpc.FarmStub stub, final long intended, final Semaphore slots) {
+        final Item item = items.get(ThreadLocalRandom.current().nextInt(items.size()));
+        final Completion completion = new Completion(operation, intended, slots);
+        switch (operation) {
+            case GET:
+                stub.getFarmMessage(VMSDataRequest.newBuilder().setItem(item).build(), completion.<VMSDataResponse>observer());
+                break;
+            case LIST:
+                stub.listFarmMessageBySmallWrapper(RequestWrapperSmall.newBuilder()
+                        .setReq1(VMSDataRequest.newBuilder().setItem(Item.newBuilder().setOwner(item.getOwner())))
+                        .build(), completion.<VMSDataResponse>observer());
+                break;
+            case SUMMARY:
+                stub.getFarmsSummaryMessage(new ClientResponseObserver<Item, FarmsSummary>() {
+                    private int sent;
+
+                    @Override
+                    public void beforeStart(final ClientCallStreamObserver<Item> call) {
+                        call.setOnReadyHandler(new Runnable() {
+                            @Override
+                            public void run() {
+                                while (sent < summaryItems && call.isReady()) {
+                                    call.onNext(items.get((int) ((intended + sent++) & Integer.MAX_VALUE) % items.size()));
+                                }
+                                if (sent == summaryItems) {
+                                    sent++;
+                                    call.onCompleted();
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onNext(FarmsSummary summary) {
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        completion.done(false);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        completion.done(true);
+                    }
+                });
+                break;
+            case CHAT:
+                stub.farmChat(new ClientResponseObserver<ItemNote, ItemNote>() {
+                    private int sent;
+
+                    @Override
+                    public void beforeStart(final ClientCallStreamObserver<ItemNote> call) {
+                        call.setOnReadyHandler(new Runnable() {
+                            @Override
+                            public void run() {
+                                while (sent < chatNotes && call.isReady()) {
+                                    call.onNext(ItemNote.newBuilder().setItem(item).setMessage("load " + sent++).build());
+                                }
+                                if (sent == chatNotes) {
+                                    sent++;
+                                    call.onCompleted();
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onNext(ItemNote note) {
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        completion.done(false);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        completion.done(true);
+                    }
+                });
+                break;
+            default:
+                throw new AssertionError(operation);
+        }
+    }
+
+    private final class Completion {
+        private final Operation operation;
+        private final long intended;
+        private final Semaphore slots;
+
+        Completion(Operation operation, long intended, Semaphore slots) {
+            this.operation = operation;
+            this.intended = intended;
+            this.slots = slots;
+        }
+
+        <T> StreamObserver<T> observer() {
+            return new StreamObserver<T>() {
+                @Override
+                public void onNext(T value) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    done(false);
+                }
+
+                @Override
+                public void onCompleted() {
+                    done(true);
+                }
+            };
+        }
+
+        void done(boolean ok) {
+            long now = System.nanoTime();
+            if (intended - measureFrom >= 0) {
+                if (ok) {
+                    long micros = TimeUnit.NANOSECONDS.toMicros(now - intended);
+                    recorders[operation.ordinal()].recordValue(Math.min(micros, HIGHEST_MICROS));
+                } else {
+                    errors[operation.ordinal()].incrementAndGet();
+                }
+            }
+            slots.release();
+        }
+    }
+
+    void report(Histogram[] histograms, int durationSeconds, PrintStream out) {
+        out.printf(Locale.ROOT, "%-8s %10s %8s %10s %9s %9s %9s %9s %9s%n",
+                "rpc", "calls", "errors", "calls/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        Histogram total = new Histogram(HIGHEST_MICROS, 3);
+        long totalErrors = 0;
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = histograms[operation.ordinal()];
+            long failed = errors[operation.ordinal()].get();
+            total.add(histogram);
+            totalErrors += failed;
+            if (histogram.getTotalCount() > 0 || failed > 0) {
+                line(out, operation.name().toLowerCase(Locale.ROOT), histogram, failed, durationSeconds);
+            }
+        }
+        line(out, "all", total, totalErrors, durationSeconds);
+    }
+
+    private static void line(PrintStream out, String name, Histogram histogram, long failed, int durationSeconds) {
+        out.printf(Locale.ROOT, "%-8s %10d %8d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                name, histogram.getTotalCount(), failed, histogram.getTotalCount() / (double) durationSeconds,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    /**
+     * Collects garbage every {@code intervalSeconds} and prints the heap still in use, until the
+     * returned executor is shut down.
+     */
+    static ScheduledExecutorService sampleHeap(final int intervalSeconds, final PrintStream out) {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final long start = System.nanoTime();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                memory.gc();
+                out.printf(Locale.ROOT, "heap %5ds %10.1f MB%n", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                        memory.getHeapMemoryUsage().getUsed() / (1024.0 * 1024.0));
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return sampler;
+    }
+
+    static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new HashMap<>();
+        for (String part : mix.split(",")) {
+            String[] weight = part.split("=");
+            if (weight.length != 2) {
+                throw new IllegalArgumentException("Expected rpc=weight in --mix, got " + part);
+            }
+            weights.put(Operation.valueOf(weight[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(weight[1].trim()));
+        }
+        return weights;
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        options.put("host", "127.0.0.1");
+        options.put("port", "8980");
+        options.put("server", "remote");
+        options.put("channels", "4");
+        options.put("streams", "16");
+        options.put("rate", "1000");
+        options.put("duration", "30");
+        options.put("warmup", "5");
+        options.put("mix", "get=70,list=10,summary=10,chat=10");
+        options.put("summary-items", "100");
+        options.put("chat-notes", "4");
+        options.put("data", "");
+        options.put("heap-interval", "0");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0 || !options.containsKey(arg.substring(2, equals))) {
+                throw new IllegalArgumentException("Unknown option " + arg + ", known: " + options.keySet());
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Runs the load and prints a summary. Use {@code --server=embedded} to start a FarmServer
+     * on a loopback port in the same JVM, optionally with {@code --data=<json or snapshot>}; its
+     * transport is then tuned by the {@code farm.server.*} properties of {@link FarmServerOptions}.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        URL data = !options.get("data").isEmpty()
+                ? new File(options.get("data")).toURI().toURL()
+                : FarmUtil.getDefaultVMSDataResponseFile();
+        FarmServer server = null;
+        String host = options.get("host");
+        int port = Integer.parseInt(options.get("port"));
+        if ("embedded".equals(options.get("server"))) {
+            server = new FarmServer(NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0)), 0,
+                    FarmUtil.openStore(data), FarmServerOptions.fromSystemProperties());
+            server.start();
+            host = "127.0.0.1";
+            port = server.getPort();
+        }
+
+        List<Item> items = new ArrayList<>();
+        for (VMSDataResponse response : FarmUtil.parseResponse(data)) {
+            items.add(response.getItem());
+        }
+        int channels = Integer.parseInt(options.get("channels"));
+        FarmMetrics.client().export();
+        List<FarmClient> clients = new ArrayList<>();
+        List<FarmGrpc.FarmStub> stubs = new ArrayList<>();
+        for (int i = 0; i < channels; i++) {
+            FarmClient client = new FarmClient(host, port);
+            clients.add(client);
+            stubs.add(client.getAsyncStub());
+        }
+
+        FarmLoadGenerator generator = new FarmLoadGenerator(stubs, items, parseMix(options.get("mix")),
+                Integer.parseInt(options.get("summary-items")), Integer.parseInt(options.get("chat-notes")));
+        long rate = Long.parseLong(options.get("rate"));
+        int concurrency = channels * Integer.parseInt(options.get("streams"));
+        int duration = Integer.parseInt(options.get("duration"));
+        System.out.printf(Locale.ROOT, "%s load against %s:%d, %d channels x %s streams, %s, %ds after %ss warmup%n",
+                rate > 0 ? "Open-loop" : "Closed-loop", host, port, channels, options.get("streams"),
+                rate > 0 ? rate + " calls/s" : "unthrottled", duration, options.get("warmup"));
+        int heapInterval = Integer.parseInt(options.get("heap-interval"));
+        ScheduledExecutorService heapSampler = heapInterval > 0 ? sampleHeap(heapInterval, System.out) : null;
+        try {
+            Histogram[] histograms = generator.run(rate, concurrency, Integer.parseInt(options.get("warmup")), duration);
+            generator.report(histograms, duration, System.out);
+        } finally {
+            if (heapSampler != null) {
+                heapSampler.shutdownNow();
+            }
+            for (FarmClient client : clients) {
+                client.shutdown();
+            }
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package io.grpc.proxy;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces single-key lookups from many threads into {@code BatchGetFarmMessage} calls.
+ *
+ * <p>The first lookup after a flush opens a window; every lookup arriving within it joins the
+ * same batch, which is sent when the window closes or as soon as it holds
+ * {@code maxBatchSize} keys. A key that is already waiting or in flight shares the existing
+ * future instead of being sent again. The window therefore bounds the delay added to any
+ * lookup.
+ */
+public final class FarmLookupBatcher {
+
+    private final FarmGrpc.FarmFutureStub stub;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    // Splits each batch by owning replica when not null.
+    private final ConsistentHashRing ring;
+    private final ScheduledExecutorService scheduler;
+
+    // Every key that has not been answered yet, whether still batching or sent.
+    private final ConcurrentMap<Key, SettableFuture<VMSDataResponse>> outstanding = new ConcurrentHashMap<>();
+    private List<Key> batch = new ArrayList<>();
+    private long batchGeneration;
+    private boolean closed;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public FarmLookupBatcher(FarmGrpc.FarmFutureStub stub, long window, TimeUnit unit, int maxBatchSize) {
+        this(stub, window, unit, maxBatchSize, null);
+    }
+
+    /**
+     * Batcher for a channel balanced by {@link ConsistentHashLoadBalancer} over replicas placed on
+     * {@code ring}; each batch is split into one call per replica owning some of its keys.
+     */
+    public FarmLookupBatcher(FarmGrpc.FarmFutureStub stub, long window, TimeUnit unit, int maxBatchSize,
+                             ConsistentHashRing ring) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.stub = stub;
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatchSize = maxBatchSize;
+        this.ring = ring;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "farm-lookup-batcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns a future for the item with this guid and sourceid, completed with {@code null} if
+     * the server has no such item. Fails with {@link IllegalStateException} once the batcher is
+     * closed.
+     */
+    public ListenableFuture<VMSDataResponse> lookup(String guid, int sourceid) {
+        lookups.incrementAndGet();
+        Key key = new Key(guid, sourceid);
+        SettableFuture<VMSDataResponse> future = outstanding.get(key);
+        if (future != null) {
+            return future;
+        }
+        SettableFuture<VMSDataResponse> created = SettableFuture.create();
+        future = outstanding.putIfAbsent(key, created);
+        if (future != null) {
+            return future;
+        }
+
+        List<Key> full = null;
+        synchronized (this) {
+            if (closed) {
+                // The scheduler is shut down, so the key would never be sent.
+                outstanding.remove(key, created);
+                created.setException(new IllegalStateException("Lookup batcher is closed"));
+                return created;
+            }
+            batch.add(key);
+            if (batch.size() >= maxBatchSize) {
+                full = takeBatch();
+            } else if (batch.size() == 1) {
+                final long generation = batchGeneration;
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(generation);
+                    }
+                }, windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return created;
+    }
+
+    /**
+     * Number of lookups requested so far.
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * Number of batch calls sent so far.
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * Sends whatever is batched and stops the window timer. Later lookups fail.
+     */
+    public void close() {
+        List<Key> rest;
+        synchronized (this) {
+            closed = true;
+            rest = takeBatch();
+        }
+        if (!rest.isEmpty()) {
+            send(rest);
+        }
+        scheduler.shutdown();
+    }
+
+    private void flush(long generation) {
+        List<Key> keys;
+        synchronized (this) {
+            // The batch this timer was started for may already have been sent because it filled up.
+            if (generation != batchGeneration || batch.isEmpty()) {
+                return;
+            }
+            keys = takeBatch();
+        }
+        send(keys);
+    }
+
+    private List<Key> takeBatch() {
+        List<Key> keys = batch;
+        batch = new ArrayList<>();
+        batchGeneration++;
+        return keys;
+    }
+
+    private void send(List<Key> keys) {
+        if (ring == null || ring.nodeCount() == 1) {
+            sendTo(keys);
+            return;
+        }
+        List<List<Key>> byReplica = new ArrayList<>();
+        for (int i = 0; i < ring.nodeCount(); i++) {
+            byReplica.add(new ArrayList<Key>());
+        }
+        for (Key key : keys) {
+            byReplica.get(ring.ownerOf(key.guid)).add(key);
+        }
+        for (List<Key> replicaKeys : byReplica) {
+            if (!replicaKeys.isEmpty()) {
+                sendTo(replicaKeys);
+            }
+        }
+    }
+
+    /**
+     * Sends one batch call, routed by its first key.
+     */
+    private void sendTo(final List<Key> keys) {
+        batches.incrementAndGet();
+        BatchVMSDataRequest.Builder request = BatchVMSDataRequest.newBuilder();
+        for (Key key : keys) {
+            request.addRequests(VMSDataRequest.newBuilder()
+                    .setItem(Item.newBuilder().setGuid(key.guid).setSourceid(key.sourceid)));
+        }
+        ListenableFuture<BatchVMSDataResponse> call;
+        try {
+            call = stub.withOption(ConsistentHashLoadBalancer.ROUTING_KEY, keys.get(0).guid)
+                    .batchGetFarmMessage(request.build());
+        } catch (RuntimeException e) {
+            fail(keys, e);
+            return;
+        }
+        Futures.addCallback(call, new FutureCallback<BatchVMSDataResponse>() {
+            @Override
+            public void onSuccess(BatchVMSDataResponse result) {
+                for (int i = 0; i < keys.size(); i++) {
+                    SettableFuture<VMSDataResponse> future = outstanding.remove(keys.get(i));
+                    if (future != null) {
+                        future.set(i < result.getFoundCount() && result.getFound(i) ? result.getResponses(i) : null);
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                fail(keys, t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void fail(List<Key> keys, Throwable t) {
+        for (Key key : keys) {
+            SettableFuture<VMSDataResponse> future = outstanding.remove(key);
+            if (future != null) {
+                future.setException(t);
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String guid;
+        private final int sourceid;
+
+        Key(String guid, int sourceid) {
+            this.guid = guid;
+            this.sourceid = sourceid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return sourceid == other.sourceid && guid.equals(other.guid);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * guid.hashCode() + sourceid;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package io.grpc.proxy;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-method {@link CallMetrics} of one side of the Farm service, exported over JMX.
+ *
+ * <p>Each method appears as an MXBean named
+ * {@code io.grpc.proxy:type=FarmCalls,side=<server|client>,method="<full method name>"} once
+ * {@link #export()} has been called, including methods first called afterwards. Every server
+ * and proxy has metrics of its own, exported with {@link #export(int)} under its port; clients
+ * share {@link #client()}, which only an application exports, as the client mains do.
+ */
+public final class FarmMetrics {
+    private static final Logger logger = Logger.getLogger(FarmMetrics.class.getName());
+
+    static final String DOMAIN = "io.grpc.proxy";
+
+    private static final FarmMetrics CLIENT = new FarmMetrics("client");
+
+    private final String side;
+    private final ConcurrentMap<String, CallMetrics> methods = new ConcurrentHashMap<>();
+    private volatile boolean exported;
+    // Key properties between the side and the method, such as ",port=8980".
+    private volatile String scope = "";
+
+    FarmMetrics(String side) {
+        this.side = side;
+    }
+
+    /**
+     * Metrics shared by every {@link HeaderClientInterceptor} in this JVM.
+     */
+    public static FarmMetrics client() {
+        return CLIENT;
+    }
+
+    public CallMetrics forMethod(String fullMethodName) {
+        CallMetrics metrics = methods.get(fullMethodName);
+        if (metrics != null) {
+            return metrics;
+        }
+        CallMetrics created = new CallMetrics(fullMethodName);
+        metrics = methods.putIfAbsent(fullMethodName, created);
+        if (metrics != null) {
+            return metrics;
+        }
+        if (exported) {
+            register(created, name(fullMethodName));
+        }
+        return created;
+    }
+
+    public Collection<CallMetrics> methods() {
+        return new ArrayList<>(methods.values());
+    }
+
+    /**
+     * Registers the method MXBeans with the platform MBean server. Calling it again does nothing.
+     */
+    public synchronized void export() {
+        if (exported) {
+            return;
+        }
+        exported = true;
+        for (CallMetrics metrics : methods.values()) {
+            register(metrics, name(metrics.getMethod()));
+        }
+    }
+
+    /**
+     * Like {@link #export()}, naming the MXBeans after the server listening on {@code port} so
+     * that several servers in one JVM do not replace each other's.
+     */
+    public synchronized void export(int port) {
+        if (!exported) {
+            scope = ",port=" + port;
+            export();
+        }
+    }
+
+    /**
+     * Unregisters the method MXBeans; the metrics keep counting.
+     */
+    public synchronized void unexport() {
+        if (!exported) {
+            return;
+        }
+        exported = false;
+        for (CallMetrics metrics : methods.values()) {
+            unregister(name(metrics.getMethod()));
+        }
+    }
+
+    private String name(String fullMethodName) {
+        return DOMAIN + ":type=FarmCalls,side=" + side + scope + ",method=" + ObjectName.quote(fullMethodName);
+    }
+
+    /**
+     * Registers {@code bean} under {@code name}, replacing a bean already registered there.
+     * Failures are logged rather than thrown since metrics must not stop the service.
+     */
+    static void register(Object bean, String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(name);
+            try {
+                server.registerMBean(bean, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(objectName);
+                server.registerMBean(bean, objectName);
+            }
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not register MBean " + name, e);
+        }
+    }
+
+    static void unregister(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        } catch (InstanceNotFoundException e) {
+            // Already gone.
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not unregister MBean " + name, e);
+        }
+    }
+}
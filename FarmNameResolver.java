@@ -0,0 +1,102 @@
+package io.grpc.proxy;
+
+import com.google.common.net.HostAndPort;
+import io.grpc.Attributes;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resolves {@code farm:///host1:port1,host2:port2,...} to one address group per FarmServer
+ * replica, in the listed order. IPv6 hosts are written in brackets, percent-encoded in the
+ * target as {@link #target} does. Meant to be paired with {@link ConsistentHashLoadBalancer}.
+ */
+public final class FarmNameResolver extends NameResolver {
+    static final String SCHEME = "farm";
+
+    private final String authority;
+    private final String[] replicas;
+
+    private FarmNameResolver(String authority, String[] replicas) {
+        this.authority = authority;
+        this.replicas = replicas;
+    }
+
+    public static NameResolver.Factory factory() {
+        return new NameResolver.Factory() {
+            @Override
+            public NameResolver newNameResolver(URI targetUri, Attributes params) {
+                if (!SCHEME.equals(targetUri.getScheme())) {
+                    return null;
+                }
+                String path = targetUri.getPath();
+                if (path == null || path.length() < 2) {
+                    throw new IllegalArgumentException("No replicas in " + targetUri);
+                }
+                String[] replicas = path.substring(1).split(",");
+                return new FarmNameResolver(replicas[0], replicas);
+            }
+
+            @Override
+            public String getDefaultScheme() {
+                return SCHEME;
+            }
+        };
+    }
+
+    /**
+     * Target naming the given replicas, for {@code ManagedChannelBuilder.forTarget}.
+     */
+    public static String target(List<InetSocketAddress> replicas) {
+        StringBuilder path = new StringBuilder("/");
+        for (int i = 0; i < replicas.size(); i++) {
+            path.append(i == 0 ? "" : ",").append(ConsistentHashRing.nodeName(replicas.get(i)));
+        }
+        try {
+            // Quotes the brackets of IPv6 hosts, which a URI path cannot hold as they are.
+            return new URI(SCHEME, "", path.toString(), null).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Bad replicas " + replicas, e);
+        }
+    }
+
+    @Override
+    public String getServiceAuthority() {
+        return authority;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        List<EquivalentAddressGroup> groups = new ArrayList<>(replicas.length);
+        for (String replica : replicas) {
+            InetSocketAddress address;
+            try {
+                HostAndPort hostAndPort = HostAndPort.fromString(replica);
+                if (!hostAndPort.hasPort()) {
+                    listener.onError(Status.INVALID_ARGUMENT.withDescription("Expected host:port, got " + replica));
+                    return;
+                }
+                address = new InetSocketAddress(hostAndPort.getHost(), hostAndPort.getPort());
+            } catch (IllegalArgumentException e) {
+                listener.onError(Status.INVALID_ARGUMENT.withDescription("Bad replica " + replica).withCause(e));
+                return;
+            }
+            if (address.isUnresolved()) {
+                listener.onError(Status.UNAVAILABLE.withDescription("Cannot resolve " + address.getHostString()));
+                return;
+            }
+            groups.add(new EquivalentAddressGroup(address));
+        }
+        listener.onAddresses(groups, Attributes.EMPTY);
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
@@ -0,0 +1,499 @@
+package io.grpc.proxy;
+
+import com.google.common.io.ByteStreams;
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.KnownLength;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Serves the Farm service by forwarding every call to a {@link FarmBackendPool}.
+ *
+ * <p>Messages are passed through as the bytes received, without parsing or re-serializing them.
+ * Request headers go to the backend and the backend's response headers and trailers come back
+ * unchanged. Streaming calls are forwarded message by message, reading from one side only as
+ * fast as the other side can take it.
+ *
+ * <p>Unary calls, which are all lookups and safe to repeat, can be hedged: if the first backend
+ * has not answered within the hedge delay the same request also goes to another backend, and the
+ * first answer wins while the other attempt is cancelled. A unary call that fails with
+ * UNAVAILABLE is tried once more on another backend. Unary calls without a deadline get the
+ * proxy's default one, so a stuck backend cannot hold them forever; streaming calls, such as
+ * chats that stay open, keep the client's deadline or none.
+ */
+public final class FarmProxy {
+    private static final Logger logger = Logger.getLogger(FarmProxy.class.getName());
+
+    private static final int MAX_ATTEMPTS = 2;
+    private static final long DEFAULT_DEADLINE_MILLIS = 30000;
+
+    private final int port;
+    private final Server server;
+    private final FarmBackendPool backends;
+    private final long hedgeDelayNanos;
+    private final long defaultDeadlineNanos;
+    private final ScheduledExecutorService hedgeTimer;
+    private final FarmMetrics metrics = new FarmMetrics("proxy");
+
+    /**
+     * @param hedgeDelay how long a unary call waits for its backend before being hedged; 0 never
+     *                   hedges
+     */
+    public FarmProxy(ServerBuilder<?> serverBuilder, int port, FarmBackendPool backends, long hedgeDelay, TimeUnit unit) {
+        this(serverBuilder, port, backends, unit.toNanos(hedgeDelay), TimeUnit.MILLISECONDS.toNanos(DEFAULT_DEADLINE_MILLIS),
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param hedgeDelay      how long a unary call waits for its backend before being hedged; 0
+     *                        never hedges
+     * @param defaultDeadline deadline of unary calls the client sent without one
+     */
+    public FarmProxy(ServerBuilder<?> serverBuilder, int port, FarmBackendPool backends, long hedgeDelay,
+                     long defaultDeadline, TimeUnit unit) {
+        if (defaultDeadline <= 0) {
+            throw new IllegalArgumentException("defaultDeadline must be positive: " + defaultDeadline);
+        }
+        this.port = port;
+        this.backends = backends;
+        this.hedgeDelayNanos = unit.toNanos(hedgeDelay);
+        this.defaultDeadlineNanos = unit.toNanos(defaultDeadline);
+        this.hedgeTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "farm-proxy-hedge");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.server = serverBuilder
+                .addService(ServerInterceptors.intercept(passthroughService(), new HeaderServerInterceptor(metrics)))
+                .build();
+    }
+
+    private ServerServiceDefinition passthroughService() {
+        ServerServiceDefinition.Builder service = ServerServiceDefinition.builder(FarmGrpc.SERVICE_NAME);
+        for (MethodDescriptor<?, ?> method : FarmGrpc.getServiceDescriptor().getMethods()) {
+            MethodDescriptor<byte[], byte[]> bytes = method.toBuilder(ByteMarshaller.INSTANCE, ByteMarshaller.INSTANCE).build();
+            service.addMethod(bytes, new ForwardingHandler(bytes));
+        }
+        return service.build();
+    }
+
+    public FarmProxy start() throws IOException {
+        server.start();
+        metrics.export(server.getPort());
+        logger.info("Proxy started, listening on " + port);
+        return this;
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    public void stop() {
+        server.shutdown();
+        hedgeTimer.shutdownNow();
+        backends.shutdown();
+        metrics.unexport();
+    }
+
+    /**
+     * Usage: {@code FarmProxy <port> <host:port>[,<host:port>...]}. The hedge delay is read from
+     * {@code -Dfarm.proxy.hedgeMillis} and defaults to 0 (no hedging), the default deadline of
+     * unary calls from {@code -Dfarm.proxy.deadlineMillis}, 30 seconds by default.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: FarmProxy <port> <host:port>[,<host:port>...]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String backend : args[1].split(",")) {
+            int colon = backend.lastIndexOf(':');
+            addresses.add(new InetSocketAddress(backend.substring(0, colon), Integer.parseInt(backend.substring(colon + 1))));
+        }
+        FarmBackendPool pool = new FarmBackendPool(addresses,
+                Integer.getInteger("farm.proxy.channelsPerBackend", 2),
+                Integer.getInteger("farm.proxy.failureThreshold", 5),
+                Long.getLong("farm.proxy.openMillis", 5000));
+        final FarmProxy proxy = new FarmProxy(ServerBuilder.forPort(port), port, pool,
+                Long.getLong("farm.proxy.hedgeMillis", 0), Long.getLong("farm.proxy.deadlineMillis", DEFAULT_DEADLINE_MILLIS),
+                TimeUnit.MILLISECONDS).start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                proxy.stop();
+            }
+        });
+        proxy.server.awaitTermination();
+    }
+
+    private static CallOptions callOptions() {
+        // Keep the client's deadline on the backend call.
+        return CallOptions.DEFAULT.withDeadline(Context.current().getDeadline());
+    }
+
+    private CallOptions unaryCallOptions() {
+        Deadline deadline = Context.current().getDeadline();
+        return CallOptions.DEFAULT.withDeadline(
+                deadline != null ? deadline : Deadline.after(defaultDeadlineNanos, TimeUnit.NANOSECONDS));
+    }
+
+    private static void closeUnavailable(ServerCall<?, ?> call) {
+        call.close(Status.UNAVAILABLE.withDescription("No backend available"), new Metadata());
+    }
+
+    private final class ForwardingHandler implements ServerCallHandler<byte[], byte[]> {
+        private final MethodDescriptor<byte[], byte[]> method;
+
+        ForwardingHandler(MethodDescriptor<byte[], byte[]> method) {
+            this.method = method;
+        }
+
+        @Override
+        public ServerCall.Listener<byte[]> startCall(ServerCall<byte[], byte[]> serverCall, Metadata headers) {
+            if (method.getType() == MethodDescriptor.MethodType.UNARY) {
+                UnaryCall call = new UnaryCall(method, serverCall, headers);
+                serverCall.request(1);
+                return call;
+            }
+            FarmBackendPool.Lease lease = backends.pick(null);
+            if (lease == null) {
+                closeUnavailable(serverCall);
+                return new ServerCall.Listener<byte[]>() {
+                };
+            }
+            StreamingCall call = new StreamingCall(serverCall, lease.channel().newCall(method, callOptions()), lease);
+            call.start(headers);
+            return call.requests;
+        }
+    }
+
+    /**
+     * A streaming call forwarded to one backend. A side only asks for its next message once the
+     * other side is ready to take it, so neither direction buffers more than one message.
+     *
+     * <p>The server call's callbacks and the client call's run on different threads, and
+     * neither call is thread-safe, so every use of either call happens under the lock of this
+     * object.
+     */
+    private static final class StreamingCall {
+        private final ServerCall<byte[], byte[]> serverCall;
+        private final ClientCall<byte[], byte[]> clientCall;
+        private final FarmBackendPool.Lease lease;
+        // Guarded by this. Set when the next message of that direction waits for the receiving
+        // side to be ready.
+        private boolean requestsPaused;
+        private boolean responsesPaused;
+
+        StreamingCall(ServerCall<byte[], byte[]> serverCall, ClientCall<byte[], byte[]> clientCall,
+                      FarmBackendPool.Lease lease) {
+            this.serverCall = serverCall;
+            this.clientCall = clientCall;
+            this.lease = lease;
+        }
+
+        synchronized void start(Metadata headers) {
+            clientCall.start(responses, headers);
+            serverCall.request(1);
+            clientCall.request(1);
+        }
+
+        final ServerCall.Listener<byte[]> requests = new ServerCall.Listener<byte[]>() {
+            @Override
+            public void onMessage(byte[] message) {
+                synchronized (StreamingCall.this) {
+                    clientCall.sendMessage(message);
+                    if (clientCall.isReady()) {
+                        serverCall.request(1);
+                    } else {
+                        requestsPaused = true;
+                    }
+                }
+            }
+
+            @Override
+            public void onHalfClose() {
+                synchronized (StreamingCall.this) {
+                    clientCall.halfClose();
+                }
+            }
+
+            @Override
+            public void onCancel() {
+                synchronized (StreamingCall.this) {
+                    clientCall.cancel("Client cancelled", null);
+                }
+            }
+
+            @Override
+            public void onReady() {
+                synchronized (StreamingCall.this) {
+                    if (responsesPaused) {
+                        responsesPaused = false;
+                        clientCall.request(1);
+                    }
+                }
+            }
+        };
+
+        final ClientCall.Listener<byte[]> responses = new ClientCall.Listener<byte[]>() {
+            @Override
+            public void onHeaders(Metadata headers) {
+                synchronized (StreamingCall.this) {
+                    serverCall.sendHeaders(headers);
+                }
+            }
+
+            @Override
+            public void onMessage(byte[] message) {
+                synchronized (StreamingCall.this) {
+                    serverCall.sendMessage(message);
+                    if (serverCall.isReady()) {
+                        clientCall.request(1);
+                    } else {
+                        responsesPaused = true;
+                    }
+                }
+            }
+
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+                lease.onClose(status.getCode());
+                synchronized (StreamingCall.this) {
+                    serverCall.close(status, trailers);
+                }
+            }
+
+            @Override
+            public void onReady() {
+                synchronized (StreamingCall.this) {
+                    if (requestsPaused) {
+                        requestsPaused = false;
+                        serverCall.request(1);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * A unary call, possibly sent to two backends. The first attempt to finish with an answer
+     * completes the server call; UNAVAILABLE only counts as the answer when no other attempt
+     * can still give one.
+     */
+    private final class UnaryCall extends ServerCall.Listener<byte[]> {
+        private final MethodDescriptor<byte[], byte[]> method;
+        private final ServerCall<byte[], byte[]> serverCall;
+        private final Metadata headers;
+        private final CallOptions callOptions = unaryCallOptions();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final List<Attempt> attempts = new ArrayList<>(MAX_ATTEMPTS);
+        private byte[] request;
+        private ScheduledFuture<?> hedge;
+
+        UnaryCall(MethodDescriptor<byte[], byte[]> method, ServerCall<byte[], byte[]> serverCall, Metadata headers) {
+            this.method = method;
+            this.serverCall = serverCall;
+            this.headers = headers;
+        }
+
+        @Override
+        public void onMessage(byte[] message) {
+            request = message;
+        }
+
+        @Override
+        public void onHalfClose() {
+            if (request == null) {
+                serverCall.close(Status.INTERNAL.withDescription("Half-closed without a request"), new Metadata());
+                return;
+            }
+            final Attempt first = attempt(null);
+            if (first == null) {
+                closeUnavailable(serverCall);
+                return;
+            }
+            if (hedgeDelayNanos > 0) {
+                synchronized (this) {
+                    // The first attempt may have answered already, and cancelOthers, which
+                    // cancels the timer under this lock, run before it was set.
+                    if (done.get()) {
+                        return;
+                    }
+                    hedge = hedgeTimer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!done.get()) {
+                                attempt(first.lease.backend());
+                            }
+                        }
+                    }, hedgeDelayNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        @Override
+        public void onCancel() {
+            if (done.compareAndSet(false, true)) {
+                cancelOthers(null);
+            }
+        }
+
+        /**
+         * Sends the request to a backend other than {@code exclude}. Returns null if no backend
+         * can take it or the call already has all its attempts.
+         */
+        private Attempt attempt(FarmBackendPool.Backend exclude) {
+            Attempt attempt;
+            synchronized (this) {
+                if (attempts.size() == MAX_ATTEMPTS || done.get()) {
+                    return null;
+                }
+                FarmBackendPool.Lease lease = backends.pick(exclude);
+                if (lease == null) {
+                    return null;
+                }
+                attempt = new Attempt(lease, lease.channel().newCall(method, callOptions));
+                attempts.add(attempt);
+            }
+            // Each attempt gets its own headers since starting a call modifies them.
+            Metadata attemptHeaders = new Metadata();
+            attemptHeaders.merge(headers);
+            attempt.call.start(attempt, attemptHeaders);
+            attempt.call.request(2);
+            attempt.call.sendMessage(request);
+            attempt.call.halfClose();
+            return attempt;
+        }
+
+        private synchronized boolean othersPending(Attempt attempt) {
+            for (Attempt other : attempts) {
+                if (other != attempt && !other.closed) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void cancelOthers(Attempt winner) {
+            List<Attempt> others;
+            synchronized (this) {
+                if (hedge != null) {
+                    hedge.cancel(false);
+                }
+                others = new ArrayList<>(attempts);
+            }
+            for (Attempt other : others) {
+                if (other != winner && !other.closed) {
+                    other.call.cancel("Another attempt answered", null);
+                }
+            }
+        }
+
+        private final class Attempt extends ClientCall.Listener<byte[]> {
+            private final FarmBackendPool.Lease lease;
+            private final ClientCall<byte[], byte[]> call;
+            private Metadata responseHeaders;
+            private byte[] response;
+            private volatile boolean closed;
+
+            Attempt(FarmBackendPool.Lease lease, ClientCall<byte[], byte[]> call) {
+                this.lease = lease;
+                this.call = call;
+            }
+
+            @Override
+            public void onHeaders(Metadata headers) {
+                responseHeaders = headers;
+            }
+
+            @Override
+            public void onMessage(byte[] message) {
+                response = message;
+            }
+
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+                closed = true;
+                lease.onClose(status.getCode());
+                if (done.get()) {
+                    return;
+                }
+                if (status.getCode() == Status.Code.UNAVAILABLE
+                        && (othersPending(this) || attempt(lease.backend()) != null)) {
+                    return;
+                }
+                if (done.compareAndSet(false, true)) {
+                    cancelOthers(this);
+                    if (responseHeaders != null) {
+                        serverCall.sendHeaders(responseHeaders);
+                    }
+                    if (response != null) {
+                        serverCall.sendMessage(response);
+                    }
+                    serverCall.close(status, trailers);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marshaller handing messages through as their serialized bytes.
+     */
+    static final class ByteMarshaller implements MethodDescriptor.Marshaller<byte[]> {
+        static final ByteMarshaller INSTANCE = new ByteMarshaller();
+
+        @Override
+        public InputStream stream(byte[] value) {
+            return new KnownLengthByteStream(value);
+        }
+
+        @Override
+        public byte[] parse(InputStream stream) {
+            try {
+                if (stream instanceof KnownLength) {
+                    // Read straight into an array of the right size.
+                    byte[] bytes = new byte[((KnownLength) stream).available()];
+                    ByteStreams.readFully(stream, bytes);
+                    return bytes;
+                }
+                return ByteStreams.toByteArray(stream);
+            } catch (IOException e) {
+                throw Status.INTERNAL.withDescription("Reading message failed").withCause(e).asRuntimeException();
+            }
+        }
+    }
+
+    private static final class KnownLengthByteStream extends ByteArrayInputStream implements KnownLength {
+        KnownLengthByteStream(byte[] bytes) {
+            super(bytes);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package io.grpc.proxy;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache of {@code GetFarmMessage} results for {@link FarmClient}.
+ *
+ * <p>Entries expire {@code ttl} after they were loaded and the least recently used ones are
+ * evicted beyond {@code maximumSize}. Concurrent misses on the same request wait for a single
+ * call instead of each going to the server. Failed calls are not cached.
+ */
+public final class FarmResponseCache {
+
+    private final LoadingCache<VMSDataRequest, VMSDataResponse> cache;
+
+    public FarmResponseCache(final FarmGrpc.FarmBlockingStub stub, long maximumSize, long ttl, TimeUnit unit) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, unit)
+                .recordStats()
+                .build(new CacheLoader<VMSDataRequest, VMSDataResponse>() {
+                    @Override
+                    public VMSDataResponse load(VMSDataRequest request) {
+                        return stub.withOption(ConsistentHashLoadBalancer.ROUTING_KEY, request.getItem().getGuid())
+                                .getFarmMessage(request);
+                    }
+                });
+    }
+
+    /**
+     * Returns the cached response, calling the server on a miss.
+     *
+     * @throws io.grpc.StatusRuntimeException if the call fails
+     */
+    public VMSDataResponse get(VMSDataRequest request) {
+        try {
+            return cache.getUnchecked(request);
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Hit, miss, load and eviction counters since the cache was created.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+}
@@ -1,21 +1,32 @@
 package io.grpc.proxy;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.grpc.*;
-import io.grpc.netty.shaded.io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
-import io.grpc.netty.shaded.io.netty.handler.ssl.ClientAuth;
-import io.grpc.netty.shaded.io.netty.handler.ssl.SslContextBuilder;
-import io.grpc.netty.shaded.io.netty.handler.ssl.SslProvider;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
+import javax.management.ObjectName;
 import javax.net.ssl.SSLException;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URL;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static java.lang.Math.max;
@@ -26,6 +37,16 @@ public class FarmServer {
 
     private int port;
     private final Server server;
+    private final AtomicReference<VMSDataVersion> store;
+    private final FarmService service;
+    private final FarmMetrics metrics = new FarmMetrics("server");
+    private final FarmServerOptions.Resources transport;
+    private VMSDataReloader reloader;
+    private String reloaderName;
+    private VMSDataIngest ingest;
+    private String ingestName;
+    private final FarmTls tls;
+    private String tlsName;
 
     public FarmServer(int port, String certChainFilePath, String privateKeyFilePath, String trustCertCollectionFilePath) throws IOException {
         this(port, FarmUtil.getDefaultVMSDataResponseFile(),
@@ -37,52 +58,82 @@ public class FarmServer {
     }
 
     public FarmServer(int port, URL responseFile) throws IOException {
-        this(ServerBuilder.forPort(port), port, FarmUtil.parseResponse(responseFile));
+        this(ServerBuilder.forPort(port), port, FarmUtil.openStore(responseFile));
     }
 
     /**
      * Create a RouteGuide server using serverBuilder as a base and features as data.
      */
     public FarmServer(ServerBuilder<?> serverBuilder, int port, Collection<VMSDataResponse> response) {
+        this(serverBuilder, port, IndexedVMSDataStore.of(response));
+    }
+
+    /**
+     * Create a Farm server using serverBuilder as a base and store as data.
+     */
+    public FarmServer(ServerBuilder<?> serverBuilder, int port, VMSDataStore store) {
+        this(serverBuilder, port, store, null, null);
+    }
+
+    /**
+     * Create a Farm server on Netty tuned by {@code options}, partitioning or compacting
+     * {@code store} first if the options ask for it.
+     */
+    public FarmServer(NettyServerBuilder serverBuilder, int port, VMSDataStore store, FarmServerOptions options) {
+        this(serverBuilder, port, options.layout(store), options.configure(serverBuilder), null);
+    }
+
+    /**
+     * Create a Farm server on Netty tuned by {@code options} and serving TLS with the
+     * certificates {@code tls} keeps up to date.
+     */
+    public FarmServer(NettyServerBuilder serverBuilder, int port, VMSDataStore store, FarmServerOptions options,
+                      FarmTls tls) {
+        this(serverBuilder.sslContext(tls.sslContext()), port, options.layout(store), options.configure(serverBuilder),
+                tls);
+    }
+
+    private FarmServer(ServerBuilder<?> serverBuilder, int port, VMSDataStore store, FarmServerOptions.Resources transport,
+                       FarmTls tls) {
         this.port = port;
+        this.transport = transport;
+        this.tls = tls;
+        this.store = new AtomicReference<>(VMSDataVersion.of(store));
+        this.service = new FarmService(this.store, transport != null ? transport.chatHub() : FarmChatHub.defaults());
+        ServerServiceDefinition definition = service.bindService();
+        if (transport != null) {
+            definition = transport.compressResponses(transport.cacheResponses(definition, store));
+        }
         server = serverBuilder
-                .addService(ServerInterceptors.intercept(new FarmService(response), new HeaderServerInterceptor()))
+                .addService(ServerInterceptors.intercept(definition, new HeaderServerInterceptor(metrics)))
                 .build();
     }
 
     // ----------------- With SSL/TLS -------------------------------------------------------------
     public FarmServer(int port, URL responseFile, String certChainFilePath, String privateKeyFilePath, String trustCertCollectionFilePath) throws IOException {
         this(NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", port)),
-                port, FarmUtil.parseResponse(responseFile), certChainFilePath, privateKeyFilePath, trustCertCollectionFilePath);
+                port, FarmUtil.openStore(responseFile), certChainFilePath, privateKeyFilePath, trustCertCollectionFilePath);
     }
 
     public FarmServer(NettyServerBuilder serverBuilder, int port, Collection<VMSDataResponse> response,
                       String certChainFilePath, String privateKeyFilePath, String trustCertCollectionFilePath) throws SSLException {
-        Path certChainPath = Paths.get(certChainFilePath);
-        Path privateKeyPath = Paths.get(privateKeyFilePath);
-        Path trustCertCollectionPath = Paths.get(trustCertCollectionFilePath);
-        this.port = port;
-        if (trustCertCollectionPath != null && certChainPath != null && privateKeyPath != null) {
-            server = serverBuilder
-                    .useTransportSecurity(certChainPath.toFile(), privateKeyPath.toFile())
-                    .addService(ServerInterceptors.intercept(new FarmService(response), new HeaderServerInterceptor()))
-                    .sslContext(getSslContextBuilder(certChainPath, privateKeyPath, trustCertCollectionPath).build())
-                    .build();
-            logger.info("Server with TLS ");
-        } else {
-            server = serverBuilder
-                    .addService(ServerInterceptors.intercept(new FarmService(response), new HeaderServerInterceptor()))
-                    .build();
-        }
+        this(serverBuilder, port, IndexedVMSDataStore.of(response),
+                certChainFilePath, privateKeyFilePath, trustCertCollectionFilePath);
     }
 
-    private SslContextBuilder getSslContextBuilder(Path certChainPath, Path privateKeyPath, Path trustCertCollectionPath) {
-        SslContextBuilder sslClientContextBuilder = SslContextBuilder.forServer(certChainPath.toFile(),
-                privateKeyPath.toFile());
-        sslClientContextBuilder.trustManager(trustCertCollectionPath.toFile());
-        sslClientContextBuilder.clientAuth(ClientAuth.REQUIRE);
-        return GrpcSslContexts.configure(sslClientContextBuilder,
-                SslProvider.OPENSSL);
+    public FarmServer(NettyServerBuilder serverBuilder, int port, VMSDataStore store,
+                      String certChainFilePath, String privateKeyFilePath, String trustCertCollectionFilePath) throws SSLException {
+        this(serverBuilder, port, store, FarmTls.forServer(new File(certChainFilePath), new File(privateKeyFilePath))
+                .trustCertCollection(new File(trustCertCollectionFilePath))
+                .build());
+    }
+
+    /**
+     * Create a Farm server serving TLS with the certificates {@code tls} keeps up to date.
+     */
+    public FarmServer(NettyServerBuilder serverBuilder, int port, VMSDataStore store, FarmTls tls) {
+        this(serverBuilder.sslContext(tls.sslContext()), port, store, (FarmServerOptions.Resources) null, tls);
+        logger.info("Server with TLS " + tls);
     }
 
     /**
@@ -90,6 +141,12 @@ public class FarmServer {
      */
     public void start() throws IOException {
         server.start();
+        index();
+        metrics.export(server.getPort());
+        if (tls != null) {
+            tlsName = FarmMetrics.DOMAIN + ":type=FarmTls,port=" + server.getPort();
+            FarmMetrics.register(tls, tlsName);
+        }
         logger.info("Server started, listening on " + port);
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
@@ -102,13 +159,127 @@ public class FarmServer {
         });
     }
 
+    /**
+     * Builds the indexes of the store the server was created with on a background thread, so
+     * starting from a large snapshot is not held up by reading every record. Listings test each
+     * record until they are published. A version published meanwhile by a reload brings its own
+     * indexes; ingested overlays over the same base get these.
+     */
+    private void index() {
+        final VMSDataVersion initial = store.get();
+        if (initial.indexes() != null) {
+            return;
+        }
+        Thread indexer = new Thread("vms-data-indexer") {
+            @Override
+            public void run() {
+                VMSDataStore base = VMSDataVersion.base(initial.store());
+                VMSDataIndexes indexes = VMSDataIndexes.build(base);
+                while (true) {
+                    VMSDataVersion current = store.get();
+                    if (current.indexes() != null || VMSDataVersion.base(current.store()) != base
+                            || store.compareAndSet(current, VMSDataVersion.of(current.store(), indexes))) {
+                        return;
+                    }
+                }
+            }
+        };
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Reload the data whenever {@code source} changes, checking every {@code periodMillis}.
+     *
+     * @throws IllegalStateException if the server ingests, since a reload would drop records
+     *     already acknowledged as durable
+     */
+    public synchronized VMSDataReloader watch(File source, long periodMillis) {
+        if (ingest != null) {
+            throw new IllegalStateException("Cannot reload while ingesting");
+        }
+        if (reloader != null) {
+            reloader.stop();
+            FarmMetrics.unregister(reloaderName);
+        }
+        reloader = new VMSDataReloader(source, store).start(periodMillis);
+        reloaderName = FarmMetrics.DOMAIN + ":type=VMSDataReloader,source=" + ObjectName.quote(source.getPath());
+        FarmMetrics.register(reloader, reloaderName);
+        return reloader;
+    }
+
+    /**
+     * Log the items streamed to GetFarmsSummaryMessage in {@code directory} and serve them,
+     * committing every {@code commitMillis}. Segments left in the directory are replayed first.
+     * The summary is only answered once every item of the stream is on disk.
+     *
+     * @throws IllegalStateException if already ingesting, or if the server {@link #watch}es a
+     *     file, whose reloads would drop the ingested records
+     */
+    public synchronized VMSDataIngest ingest(File directory, long commitMillis, long segmentBytes) throws IOException {
+        if (ingest != null) {
+            throw new IllegalStateException("Already ingesting");
+        }
+        if (reloader != null) {
+            throw new IllegalStateException("Cannot ingest while reloading " + reloaderName);
+        }
+        ingest = VMSDataIngest.open(directory, store, commitMillis, TimeUnit.MILLISECONDS, segmentBytes);
+        ingestName = FarmMetrics.DOMAIN + ":type=VMSDataIngest,directory=" + ObjectName.quote(directory.getPath());
+        FarmMetrics.register(ingest, ingestName);
+        service.ingest = ingest;
+        return ingest;
+    }
+
+    /**
+     * Cache of serialized responses, or null if the server was not given one.
+     */
+    public SerializedResponseCache getResponseCache() {
+        return transport != null ? transport.responseCache() : null;
+    }
+
+    /**
+     * Port the server is bound to, or -1 if it is not listening on a socket.
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+
     /**
      * Stop serving requests and shutdown resources.
      */
     public void stop() {
+        synchronized (this) {
+            if (reloader != null) {
+                reloader.stop();
+                FarmMetrics.unregister(reloaderName);
+            }
+        }
         if (server != null) {
             server.shutdown();
         }
+        if (tls != null) {
+            tls.stop();
+            if (tlsName != null) {
+                FarmMetrics.unregister(tlsName);
+            }
+        }
+        synchronized (this) {
+            if (ingest != null) {
+                service.ingest = null;
+                try {
+                    ingest.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                FarmMetrics.unregister(ingestName);
+                ingest = null;
+            }
+        }
+        if (transport != null) {
+            transport.shutdown();
+        }
+        service.shutdown();
+        metrics.unexport();
     }
 
     /**
@@ -124,51 +295,465 @@ public class FarmServer {
      * Main method.  This comment makes the linter happy.
      */
     public static void main(String[] args) throws Exception {
-       // FarmServer server = new FarmServer(8980, "target/classes/serverchain.pem", "target/classes/server_key.pem", "target/classes/ca.crt");
-        FarmServer server = new FarmServer(8980);
+        URL data = args.length > 0 ? new File(args[0]).toURI().toURL() : FarmUtil.getDefaultVMSDataResponseFile();
+        String ingestDirectory = System.getProperty("farm.ingest.dir");
+        if (ingestDirectory != null && VMSDataIngest.snapshotFile(new File(ingestDirectory)).isFile()) {
+            // Earlier ingests have been compacted into this snapshot, data file included.
+            data = VMSDataIngest.snapshotFile(new File(ingestDirectory)).toURI().toURL();
+        }
+        FarmServerOptions options = FarmServerOptions.fromSystemProperties();
+        logger.info("Transport " + options);
+        FarmTls tls = FarmTls.fromSystemProperties();
+        FarmServer server = tls != null
+                ? new FarmServer(NettyServerBuilder.forPort(8980), 8980, options.open(data), options, tls)
+                : new FarmServer(NettyServerBuilder.forPort(8980), 8980, options.open(data), options);
+        if (ingestDirectory != null) {
+            server.ingest(new File(ingestDirectory), Long.getLong("farm.ingest.commitMillis", 2),
+                    Long.getLong("farm.ingest.segmentBytes", 64L << 20));
+        } else if (args.length > 0) {
+            server.watch(new File(args[0]), 1000);
+        }
         server.start();
         server.blockUntilShutdown();
     }
 
-    private static class FarmService extends FarmGrpc.FarmImplBase {
-        private final Collection<VMSDataResponse> responses;
+    // Package-private for the JMH benchmarks.
+    static class FarmService extends FarmGrpc.FarmImplBase {
+        private static final int SUMMARY_WINDOW = 64;
+        // Batches up to this size are resolved on the calling thread.
+        private static final int BATCH_CHUNK = 2048;
 
+        // Swapped as a whole on reload; each call reads it once and works on that version.
+        private final AtomicReference<VMSDataVersion> store;
+        private final FarmChatHub chatHub;
+        // Set while the server logs the items streamed to getFarmsSummaryMessage.
+        volatile VMSDataIngest ingest;
+        // Both started by the first call that needs them, guarded by this. Chunks of unsharded
+        // batches share a pool; each shard of a ShardedVMSDataStore always goes to the same
+        // single-thread executor.
+        private ListeningExecutorService chunkExecutor;
+        private volatile ListeningExecutorService[] lookupExecutors;
+        private volatile boolean shutdown;
 
-        FarmService(Collection<VMSDataResponse> responses) {
-            this.responses = responses;
+        FarmService(AtomicReference<VMSDataVersion> store) {
+            this(store, FarmChatHub.defaults());
         }
 
+        FarmService(AtomicReference<VMSDataVersion> store, FarmChatHub chatHub) {
+            this.store = store;
+            this.chatHub = chatHub;
+        }
+
+        /**
+         * Over a {@link ShardedVMSDataStore} the key is looked up, and the response sent, on the
+         * thread its shard is pinned to, as for large batches.
+         */
         @Override
-        public void getFarmMessage(VMSDataRequest request, StreamObserver<VMSDataResponse> responseObserver) {
+        public void getFarmMessage(final VMSDataRequest request, final StreamObserver<VMSDataResponse> responseObserver) {
+            VMSDataStore store = this.store.get().store();
+            if (store instanceof ShardedVMSDataStore) {
+                ShardedVMSDataStore sharded = (ShardedVMSDataStore) store;
+                ListeningExecutorService[] lookupExecutors = lookupExecutors(sharded.shardCount());
+                int shard = sharded.shardOf(request.getItem().getGuid(), request.getItem().getSourceid());
+                final VMSDataStore owner = sharded.shard(shard);
+                lookupExecutors[shard % lookupExecutors.length].execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        VMSDataResponse response = find(owner, request.getItem());
+                        responseObserver.onNext(response != null ? response : VMSDataResponse.getDefaultInstance());
+                        responseObserver.onCompleted();
+                    }
+                });
+                return;
+            }
             responseObserver.onNext(checkVMSDataResponse(request));
             responseObserver.onCompleted();
         }
 
+        /**
+         * Resolves every key of the batch, splitting large batches in chunks that are looked up
+         * in parallel. Over a {@link ShardedVMSDataStore} large batches are split by shard instead,
+         * each shard's keys resolved on the thread that shard is pinned to. The lookup threads are
+         * only started by the first batch that needs them. Keys that match nothing
+         * get an empty response and {@code found = false}.
+         *
+         * <p>The calling thread never waits for the other chunks: the response is sent by whichever
+         * thread finishes the last one, so this is safe on the event loop.
+         */
         @Override
-        public void listFarmMessageBySmallWrapper(RequestWrapperSmall request, StreamObserver<VMSDataResponse> responseObserver) {
-            for (VMSDataResponse response : responses) {
-                if (!FarmUtil.exists(response)) {
-                    continue;
+        public void batchGetFarmMessage(BatchVMSDataRequest request, final StreamObserver<BatchVMSDataResponse> responseObserver) {
+            final VMSDataStore store = this.store.get().store();
+            final List<VMSDataRequest> requests = request.getRequestsList();
+            final VMSDataResponse[] responses = new VMSDataResponse[requests.size()];
+            List<ListenableFuture<?>> chunks = new ArrayList<>();
+            if (store instanceof ShardedVMSDataStore && requests.size() > BATCH_CHUNK) {
+                ShardedVMSDataStore sharded = (ShardedVMSDataStore) store;
+                ListeningExecutorService[] lookupExecutors = lookupExecutors(sharded.shardCount());
+                int[][] groups = groupByShard(sharded, requests);
+                for (int shard = 0; shard < groups.length; shard++) {
+                    if (groups[shard].length > 0) {
+                        chunks.add(lookupExecutors[shard % lookupExecutors.length].submit(
+                                lookup(sharded.shard(shard), requests, responses, groups[shard])));
+                    }
                 }
-                if (request.hasReq1()) {
-                    responseObserver.onNext(response);
+            } else {
+                ListeningExecutorService chunkExecutor = requests.size() > BATCH_CHUNK ? chunkExecutor() : null;
+                for (int start = BATCH_CHUNK; start < requests.size(); start += BATCH_CHUNK) {
+                    final int from = start;
+                    chunks.add(chunkExecutor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            lookup(store, requests, responses, from, Math.min(from + BATCH_CHUNK, requests.size()));
+                        }
+                    }));
                 }
+                lookup(store, requests, responses, 0, Math.min(BATCH_CHUNK, requests.size()));
             }
-            responseObserver.onCompleted();
+            if (chunks.isEmpty()) {
+                respond(responses, responseObserver);
+                return;
+            }
+            Futures.addCallback(Futures.allAsList(chunks), new FutureCallback<List<Object>>() {
+                @Override
+                public void onSuccess(List<Object> result) {
+                    respond(responses, responseObserver);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    responseObserver.onError(Status.INTERNAL.withCause(t).asRuntimeException());
+                }
+            }, MoreExecutors.directExecutor());
         }
 
-        private VMSDataResponse checkVMSDataResponse(VMSDataRequest request) {
+        private static void respond(VMSDataResponse[] responses, StreamObserver<BatchVMSDataResponse> responseObserver) {
+            BatchVMSDataResponse.Builder batch = BatchVMSDataResponse.newBuilder();
             for (VMSDataResponse response : responses) {
-                if (response.getItem().getGuid().equals(request.getItem().getGuid())
-                        && response.getItem().getSourceid() == request.getItem().getSourceid()) {
-                    return response;
+                batch.addFound(response != null);
+                batch.addResponses(response != null ? response : VMSDataResponse.getDefaultInstance());
+            }
+            responseObserver.onNext(batch.build());
+            responseObserver.onCompleted();
+        }
+
+        private static void lookup(VMSDataStore store, List<VMSDataRequest> requests, VMSDataResponse[] responses,
+                                   int from, int to) {
+            for (int i = from; i < to; i++) {
+                responses[i] = find(store, requests.get(i).getItem());
+            }
+        }
+
+        private static Runnable lookup(final VMSDataStore shard, final List<VMSDataRequest> requests,
+                                       final VMSDataResponse[] responses, final int[] positions) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    for (int i : positions) {
+                        responses[i] = find(shard, requests.get(i).getItem());
+                    }
                 }
+            };
+        }
+
+        /**
+         * Positions of the requests owned by each shard, in request order.
+         */
+        private static int[][] groupByShard(ShardedVMSDataStore store, List<VMSDataRequest> requests) {
+            int[] owners = new int[requests.size()];
+            int[] counts = new int[store.shardCount()];
+            for (int i = 0; i < owners.length; i++) {
+                Item item = requests.get(i).getItem();
+                owners[i] = store.shardOf(item.getGuid(), item.getSourceid());
+                counts[owners[i]]++;
+            }
+            int[][] groups = new int[counts.length][];
+            for (int shard = 0; shard < counts.length; shard++) {
+                groups[shard] = new int[counts[shard]];
+                counts[shard] = 0;
+            }
+            for (int i = 0; i < owners.length; i++) {
+                groups[owners[i]][counts[owners[i]]++] = i;
             }
+            return groups;
+        }
+
+        private synchronized ListeningExecutorService chunkExecutor() {
+            checkNotShutdown();
+            if (chunkExecutor == null) {
+                chunkExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+                        Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                            private final AtomicInteger threads = new AtomicInteger();
 
-            logger.info("No VMSDataResponse was found!!");
-            return null;
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "farm-lookup-" + threads.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        }));
+            }
+            return chunkExecutor;
+        }
+
+        private ListeningExecutorService[] lookupExecutors(int shardCount) {
+            ListeningExecutorService[] lookupExecutors = this.lookupExecutors;
+            return lookupExecutors != null && !shutdown ? lookupExecutors : startLookupExecutors(shardCount);
+        }
+
+        private synchronized ListeningExecutorService[] startLookupExecutors(int shardCount) {
+            checkNotShutdown();
+            if (lookupExecutors == null) {
+                lookupExecutors = new ListeningExecutorService[min(shardCount, Runtime.getRuntime().availableProcessors())];
+                for (int i = 0; i < lookupExecutors.length; i++) {
+                    final String name = "farm-shard-lookup-" + (i + 1);
+                    lookupExecutors[i] = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, name);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }));
+                }
+            }
+            return lookupExecutors;
         }
-    }
-}
 
+        private void checkNotShutdown() {
+            if (shutdown) {
+                throw Status.UNAVAILABLE.withDescription("Server is shutting down").asRuntimeException();
+            }
+        }
+
+        void shutdown() {
+            synchronized (this) {
+                shutdown = true;
+                if (chunkExecutor != null) {
+                    chunkExecutor.shutdown();
+                }
+                if (lookupExecutors != null) {
+                    for (ExecutorService executor : lookupExecutors) {
+                        executor.shutdown();
+                    }
+                }
+            }
+            chatHub.shutdown();
+        }
 
+        /**
+         * Streams the records matching the owner, messagetype and sourceid set in {@code req1},
+         * or every record when there is no {@code req1}. With a {@code filter} mask, exactly the
+         * fields it names filter, so records with an empty owner or a 0 messagetype or sourceid
+         * can be selected; without one, empty and 0 fields do not filter. Records are only
+         * written while the transport is ready, from the onReady handler, so a slow reader does
+         * not make the result set pile up in outbound buffers. A listing that was cut off can be
+         * continued by passing the last item received as {@code resume_after}.
+         */
+        @Override
+        public void listFarmMessageBySmallWrapper(RequestWrapperSmall request, StreamObserver<VMSDataResponse> responseObserver) {
+            final ServerCallStreamObserver<VMSDataResponse> call = (ServerCallStreamObserver<VMSDataResponse>) responseObserver;
+            VMSDataVersion version = this.store.get();
+            VMSDataStore store = version.store();
+            int after = -1;
+            if (request.hasResumeAfter()) {
+                Item last = request.getResumeAfter().getItem();
+                after = store.indexOf(last.getGuid(), last.getSourceid());
+                if (after < 0) {
+                    call.onError(Status.INVALID_ARGUMENT
+                            .withDescription("resume_after item is not in the data set")
+                            .asRuntimeException());
+                    return;
+                }
+            }
+            VMSDataIndexes.Scan scan;
+            if (request.hasFilter()) {
+                try {
+                    scan = version.scan(request.getReq1().getItem(), request.getFilter(), after);
+                } catch (IllegalArgumentException e) {
+                    call.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                    return;
+                }
+            } else {
+                scan = version.scan(request.getReq1().getItem(), after);
+            }
+            stream(call, store, scan, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Streams the records matching every predicate of the query, found by intersecting the
+         * secondary index bitmaps. Flow control and resuming work as for
+         * {@link #listFarmMessageBySmallWrapper}.
+         */
+        @Override
+        public void queryFarmMessages(FarmQuery request, StreamObserver<VMSDataResponse> responseObserver) {
+            ServerCallStreamObserver<VMSDataResponse> call = (ServerCallStreamObserver<VMSDataResponse>) responseObserver;
+            VMSDataVersion version = this.store.get();
+            VMSDataStore store = version.store();
+            int after = -1;
+            if (request.hasResumeAfter()) {
+                Item last = request.getResumeAfter().getItem();
+                after = store.indexOf(last.getGuid(), last.getSourceid());
+                if (after < 0) {
+                    call.onError(Status.INVALID_ARGUMENT
+                            .withDescription("resume_after item is not in the data set")
+                            .asRuntimeException());
+                    return;
+                }
+            }
+            VMSDataIndexes.Scan scan;
+            try {
+                scan = version.query(request, after);
+            } catch (IllegalArgumentException e) {
+                call.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            stream(call, store, scan, request.getLimit() > 0 ? request.getLimit() : Integer.MAX_VALUE);
+        }
+
+        /**
+         * Sends up to {@code limit} records of {@code scan}, only while the transport is ready.
+         */
+        private static void stream(final ServerCallStreamObserver<VMSDataResponse> call, final VMSDataStore store,
+                                   final VMSDataIndexes.Scan scan, final int limit) {
+            Runnable drain = new Runnable() {
+                private boolean done;
+                private int sent;
+
+                @Override
+                public void run() {
+                    while (!done && call.isReady()) {
+                        int next = sent < limit ? scan.next() : -1;
+                        if (next < 0) {
+                            done = true;
+                            call.onCompleted();
+                        } else {
+                            VMSDataResponse response = store.get(next);
+                            if (FarmUtil.exists(response)) {
+                                call.onNext(response);
+                                sent++;
+                            }
+                        }
+                    }
+                }
+            };
+            call.setOnReadyHandler(drain);
+            // The call may already be ready, in which case no onReady follows.
+            drain.run();
+        }
+
+        /**
+         * Counts the streamed items. Inbound flow control is manual and keeps at most
+         * {@link #SUMMARY_WINDOW} items requested, so a client sending faster than they are
+         * consumed is held back by the HTTP/2 window instead of filling server buffers.
+         *
+         * <p>While the server ingests, each item is also appended to the log and the next one is
+         * only requested once it is durable, so a stream is held back while the log falls behind
+         * without blocking any thread. The summary is only sent once the last item is durable; if
+         * an append fails the call ends with {@code UNAVAILABLE}. Items of a stream that fails
+         * midway may still have been ingested.
+         */
+        @Override
+        public StreamObserver<Item> getFarmsSummaryMessage(final StreamObserver<FarmsSummary> responseObserver) {
+            final ServerCallStreamObserver<FarmsSummary> call = (ServerCallStreamObserver<FarmsSummary>) responseObserver;
+            final VMSDataIngest ingest = this.ingest;
+            call.disableAutoInboundFlowControl();
+            call.request(SUMMARY_WINDOW);
+            // Set by whichever thread ends the call first: the log's writer or the caller.
+            final AtomicBoolean finished = new AtomicBoolean();
+            return new StreamObserver<Item>() {
+                private int count;
+                // Groups commit in order, so the last item's future completes after all others.
+                private ListenableFuture<Void> lastAppend = Futures.immediateFuture(null);
+
+                @Override
+                public void onNext(Item item) {
+                    count++;
+                    if (ingest == null) {
+                        call.request(1);
+                        return;
+                    }
+                    if (finished.get()) {
+                        return;
+                    }
+                    lastAppend = ingest.append(item);
+                    Futures.addCallback(lastAppend, new FutureCallback<Void>() {
+                        @Override
+                        public void onSuccess(Void result) {
+                            if (!finished.get()) {
+                                call.request(1);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            fail(t);
+                        }
+                    }, MoreExecutors.directExecutor());
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    finished.set(true);
+                    logger.log(Level.FINE, "getFarmsSummaryMessage cancelled", t);
+                }
+
+                @Override
+                public void onCompleted() {
+                    Futures.addCallback(lastAppend, new FutureCallback<Void>() {
+                        @Override
+                        public void onSuccess(Void result) {
+                            if (finished.compareAndSet(false, true)) {
+                                responseObserver.onNext(FarmsSummary.newBuilder().setVMSDataRequestCount(count).build());
+                                responseObserver.onCompleted();
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            fail(t);
+                        }
+                    }, MoreExecutors.directExecutor());
+                }
+
+                private void fail(Throwable t) {
+                    if (finished.compareAndSet(false, true)) {
+                        responseObserver.onError(Status.UNAVAILABLE
+                                .withDescription("Items could not be ingested")
+                                .withCause(t)
+                                .asRuntimeException());
+                    }
+                }
+            };
+        }
+
+        /**
+         * Joins the {@link FarmChatHub}: notes sent are fanned out to the other streams on the same
+         * topic, and notes others send on the topics this stream sent to are streamed back.
+         */
+        @Override
+        public StreamObserver<ItemNote> farmChat(StreamObserver<ItemNote> responseObserver) {
+            return chatHub.subscribe((ServerCallStreamObserver<ItemNote>) responseObserver);
+        }
+
+        /**
+         * Returns the matching record, or an empty response when there is none. Keys the filter
+         * rules out are answered without probing the store.
+         */
+        VMSDataResponse checkVMSDataResponse(VMSDataRequest request) {
+            VMSDataResponse response = find(store.get().store(), request.getItem());
+            return response != null ? response : VMSDataResponse.getDefaultInstance();
+        }
+
+        private static VMSDataResponse find(VMSDataStore store, Item item) {
+            if (store instanceof ShardedVMSDataStore) {
+                // Hash the key once rather than in both calls below.
+                ShardedVMSDataStore sharded = (ShardedVMSDataStore) store;
+                store = sharded.shard(sharded.shardOf(item.getGuid(), item.getSourceid()));
+            }
+            if (!store.mightContain(item.getGuid(), item.getSourceid())) {
+                return null;
+            }
+            return store.get(item.getGuid(), item.getSourceid());
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package io.grpc.proxy;
+
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.ChannelOption;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.ServerChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Netty transport settings of a {@link FarmServer}: socket transport, event loop sizes, the
+ * executor running the service handlers, flow control, limits and keepalive, how the data is
+ * laid out in memory, how much memory caches serialized responses, which responses are
+ * compressed and how FarmChat fans out.
+ *
+ * <p>Every setting left unset keeps the grpc-java default. A zero thread count means Netty's
+ * default of twice the number of processors.
+ */
+public final class FarmServerOptions {
+    private static final Logger logger = Logger.getLogger(FarmServerOptions.class.getName());
+
+    private static final String EPOLL_PACKAGE = "io.grpc.netty.shaded.io.netty.channel.epoll.";
+    private static final String PROPERTY_PREFIX = "farm.server.";
+
+    public enum Transport {
+        NIO,
+        /**
+         * Native epoll, falling back to NIO where it is not available.
+         */
+        EPOLL
+    }
+
+    public enum Executor {
+        /**
+         * grpc-java's shared cached thread pool.
+         */
+        DEFAULT,
+        /**
+         * Handlers run on the Netty event loop. Only safe because no Farm handler blocks for
+         * long: large batches hand their chunks off and answer from the thread finishing the
+         * last one. It saves a thread hand-off per message.
+         */
+        DIRECT,
+        /**
+         * A fixed pool with a bounded queue. When the queue is full the event loop runs the
+         * handler itself, which stops it reading from its connections until it is done.
+         */
+        BOUNDED,
+        /**
+         * A new virtual thread per call, so handlers may block without holding a platform
+         * thread. Needs Java 21; older JVMs get a cached pool like {@link #DEFAULT}.
+         */
+        VIRTUAL
+    }
+
+    private final Transport transport;
+    private final int bossThreads;
+    private final int workerThreads;
+    private final Executor executor;
+    private final int executorThreads;
+    private final int executorQueue;
+    private final int flowControlWindow;
+    private final int maxConcurrentCallsPerConnection;
+    private final int maxInboundMessageSize;
+    private final long keepAliveTimeMillis;
+    private final long keepAliveTimeoutMillis;
+    private final long permitKeepAliveTimeMillis;
+    private final boolean permitKeepAliveWithoutCalls;
+    private final int shards;
+    private final boolean compact;
+    private final long responseCacheBytes;
+    private final FarmCompression compression;
+    private final FarmChatHub.Topic chatTopic;
+    private final int chatQueue;
+    private final FarmChatHub.SlowConsumerPolicy chatPolicy;
+
+    private FarmServerOptions(Builder builder) {
+        this.transport = builder.transport;
+        this.bossThreads = builder.bossThreads;
+        this.workerThreads = builder.workerThreads;
+        this.executor = builder.executor;
+        this.executorThreads = builder.executorThreads;
+        this.executorQueue = builder.executorQueue;
+        this.flowControlWindow = builder.flowControlWindow;
+        this.maxConcurrentCallsPerConnection = builder.maxConcurrentCallsPerConnection;
+        this.maxInboundMessageSize = builder.maxInboundMessageSize;
+        this.keepAliveTimeMillis = builder.keepAliveTimeMillis;
+        this.keepAliveTimeoutMillis = builder.keepAliveTimeoutMillis;
+        this.permitKeepAliveTimeMillis = builder.permitKeepAliveTimeMillis;
+        this.permitKeepAliveWithoutCalls = builder.permitKeepAliveWithoutCalls;
+        this.shards = builder.shards;
+        this.compact = builder.compact;
+        this.responseCacheBytes = builder.responseCacheBytes;
+        this.compression = builder.compression;
+        this.chatTopic = builder.chatTopic;
+        this.chatQueue = builder.chatQueue;
+        this.chatPolicy = builder.chatPolicy;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static FarmServerOptions defaults() {
+        return new Builder().build();
+    }
+
+    /**
+     * Reads the options from {@code farm.server.*} system properties, for example
+     * {@code -Dfarm.server.transport=epoll -Dfarm.server.executor=direct
+     * -Dfarm.server.flowControlWindow=1048576}. Durations are in milliseconds.
+     */
+    public static FarmServerOptions fromSystemProperties() {
+        Builder builder = new Builder();
+        String transport = System.getProperty(PROPERTY_PREFIX + "transport");
+        if (transport != null) {
+            builder.transport(Transport.valueOf(transport.toUpperCase(Locale.ROOT)));
+        }
+        String executor = System.getProperty(PROPERTY_PREFIX + "executor");
+        if (executor != null) {
+            builder.executor(Executor.valueOf(executor.toUpperCase(Locale.ROOT)),
+                    Integer.getInteger(PROPERTY_PREFIX + "executorThreads", builder.executorThreads),
+                    Integer.getInteger(PROPERTY_PREFIX + "executorQueue", builder.executorQueue));
+        }
+        builder.eventLoops(Integer.getInteger(PROPERTY_PREFIX + "bossThreads", builder.bossThreads),
+                Integer.getInteger(PROPERTY_PREFIX + "workerThreads", builder.workerThreads));
+        builder.flowControlWindow(Integer.getInteger(PROPERTY_PREFIX + "flowControlWindow", 0));
+        builder.maxConcurrentCallsPerConnection(Integer.getInteger(PROPERTY_PREFIX + "maxConcurrentCallsPerConnection", 0));
+        builder.maxInboundMessageSize(Integer.getInteger(PROPERTY_PREFIX + "maxInboundMessageSize", 0));
+        builder.keepAlive(Long.getLong(PROPERTY_PREFIX + "keepAliveTime", 0), Long.getLong(PROPERTY_PREFIX + "keepAliveTimeout", 0),
+                TimeUnit.MILLISECONDS);
+        builder.permitKeepAlive(Long.getLong(PROPERTY_PREFIX + "permitKeepAliveTime", 0),
+                Boolean.getBoolean(PROPERTY_PREFIX + "permitKeepAliveWithoutCalls"), TimeUnit.MILLISECONDS);
+        builder.shards(Integer.getInteger(PROPERTY_PREFIX + "shards", 1));
+        builder.compact(Boolean.getBoolean(PROPERTY_PREFIX + "compact"));
+        builder.responseCache(Long.getLong(PROPERTY_PREFIX + "responseCacheBytes", 0));
+        String compression = System.getProperty(PROPERTY_PREFIX + "compression");
+        if (compression != null) {
+            builder.compression(FarmCompression.parse(compression));
+        }
+        String chatTopic = System.getProperty(PROPERTY_PREFIX + "chatTopic");
+        String chatPolicy = System.getProperty(PROPERTY_PREFIX + "chatPolicy");
+        builder.chat(chatTopic != null ? FarmChatHub.Topic.valueOf(chatTopic.toUpperCase(Locale.ROOT)) : builder.chatTopic,
+                Integer.getInteger(PROPERTY_PREFIX + "chatQueue", builder.chatQueue),
+                chatPolicy != null
+                        ? FarmChatHub.SlowConsumerPolicy.valueOf(chatPolicy.toUpperCase(Locale.ROOT))
+                        : builder.chatPolicy);
+        return builder.build();
+    }
+
+    /**
+     * Applies the options to {@code builder} and returns the event loops, executor, response
+     * cache and chat hub created for it, which the server releases when it stops.
+     */
+    Resources configure(NettyServerBuilder builder) {
+        Resources resources = new Resources();
+        if (responseCacheBytes > 0) {
+            resources.responseCache = new SerializedResponseCache(responseCacheBytes);
+        }
+        // Snappy is known even without compressed responses, for clients compressing requests.
+        builder.compressorRegistry(FarmCompression.compressors())
+                .decompressorRegistry(FarmCompression.decompressors());
+        resources.compression = compression;
+        resources.chatHub = new FarmChatHub(chatTopic, chatQueue, chatPolicy);
+        if (transport != Transport.NIO || bossThreads != 1 || workerThreads != 0) {
+            boolean epoll = transport == Transport.EPOLL && epollAvailable();
+            resources.boss = eventLoopGroup(epoll, bossThreads, "farm-boss");
+            resources.worker = eventLoopGroup(epoll, workerThreads, "farm-worker");
+            builder.bossEventLoopGroup(resources.boss)
+                    .workerEventLoopGroup(resources.worker)
+                    .channelType(epoll ? epollChannelType() : NioServerSocketChannel.class);
+        }
+        switch (executor) {
+            case DIRECT:
+                builder.directExecutor();
+                break;
+            case BOUNDED:
+                resources.executor = new ThreadPoolExecutor(executorThreads, executorThreads, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(executorQueue), new DefaultThreadFactory("farm-app", true),
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+                builder.executor(resources.executor);
+                break;
+            case VIRTUAL:
+                resources.executor = VirtualThreads.newExecutor("farm-app");
+                builder.executor(resources.executor)
+                        .withChildOption(ChannelOption.ALLOCATOR, VirtualThreads.allocator());
+                break;
+            default:
+                break;
+        }
+        if (flowControlWindow > 0) {
+            builder.flowControlWindow(flowControlWindow);
+        }
+        if (maxConcurrentCallsPerConnection > 0) {
+            builder.maxConcurrentCallsPerConnection(maxConcurrentCallsPerConnection);
+        }
+        if (maxInboundMessageSize > 0) {
+            builder.maxInboundMessageSize(maxInboundMessageSize);
+        }
+        if (keepAliveTimeMillis > 0) {
+            builder.keepAliveTime(keepAliveTimeMillis, TimeUnit.MILLISECONDS);
+        }
+        if (keepAliveTimeoutMillis > 0) {
+            builder.keepAliveTimeout(keepAliveTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        if (permitKeepAliveTimeMillis > 0) {
+            builder.permitKeepAliveTime(permitKeepAliveTimeMillis, TimeUnit.MILLISECONDS);
+        }
+        builder.permitKeepAliveWithoutCalls(permitKeepAliveWithoutCalls);
+        return resources;
+    }
+
+    /**
+     * Returns {@code store} partitioned into a {@link ShardedVMSDataStore}, copied into a
+     * {@link CompactVMSDataStore}, or unchanged if the options ask for neither.
+     */
+    VMSDataStore layout(VMSDataStore store) {
+        if (shards > 1) {
+            return ShardedVMSDataStore.partition(store, shards);
+        }
+        if (compact && !(store instanceof CompactVMSDataStore)) {
+            return CompactVMSDataStore.copyOf(store);
+        }
+        return store;
+    }
+
+    /**
+     * Opens {@code file} the way {@link #layout} will keep it, so compact data is not loaded
+     * as protobuf objects first.
+     */
+    VMSDataStore open(URL file) throws IOException {
+        return FarmUtil.openStore(file, compact && shards == 1);
+    }
+
+    /**
+     * Whether the native epoll transport can be used. The grpc-netty-shaded artifact only ships it
+     * from some versions on, so it is looked up by name.
+     */
+    static boolean epollAvailable() {
+        try {
+            return (Boolean) Class.forName(EPOLL_PACKAGE + "Epoll").getMethod("isAvailable").invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static EventLoopGroup eventLoopGroup(boolean epoll, int threads, String name) {
+        ThreadFactory threadFactory = new DefaultThreadFactory(name, true);
+        if (epoll) {
+            try {
+                return (EventLoopGroup) Class.forName(EPOLL_PACKAGE + "EpollEventLoopGroup")
+                        .getConstructor(int.class, ThreadFactory.class)
+                        .newInstance(threads, threadFactory);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Epoll is available but its event loop could not be created", e);
+            }
+        }
+        return new NioEventLoopGroup(threads, threadFactory);
+    }
+
+    private static Class<? extends ServerChannel> epollChannelType() {
+        try {
+            return Class.forName(EPOLL_PACKAGE + "EpollServerSocketChannel").asSubclass(ServerChannel.class);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Epoll is available but its server channel is missing", e);
+        }
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public String toString() {
+        return "FarmServerOptions{transport=" + transport + ", bossThreads=" + bossThreads
+                + ", workerThreads=" + workerThreads + ", executor=" + executor
+                + (executor == Executor.BOUNDED ? "(" + executorThreads + " threads, queue " + executorQueue + ")" : "")
+                + ", flowControlWindow=" + flowControlWindow
+                + ", maxConcurrentCallsPerConnection=" + maxConcurrentCallsPerConnection
+                + ", maxInboundMessageSize=" + maxInboundMessageSize
+                + ", keepAliveTimeMillis=" + keepAliveTimeMillis + ", keepAliveTimeoutMillis=" + keepAliveTimeoutMillis
+                + ", permitKeepAliveTimeMillis=" + permitKeepAliveTimeMillis
+                + ", permitKeepAliveWithoutCalls=" + permitKeepAliveWithoutCalls + ", shards=" + shards
+                + ", compact=" + compact + ", responseCacheBytes=" + responseCacheBytes
+                + ", compression=" + compression
+                + ", chatTopic=" + chatTopic + ", chatQueue=" + chatQueue + ", chatPolicy=" + chatPolicy + "}";
+    }
+
+    /**
+     * Event loops, executor, response cache, compression and chat hub owned by one server. The
+     * service shuts the chat hub down.
+     */
+    static final class Resources {
+        private EventLoopGroup boss;
+        private EventLoopGroup worker;
+        private ExecutorService executor;
+        private SerializedResponseCache responseCache;
+        private FarmCompression compression;
+        private FarmChatHub chatHub;
+
+        /**
+         * Sends the service's VMSDataResponse messages through the response cache, if there is one.
+         * The cache is dropped over a compact or mapped {@code store}, which builds a new message
+         * for every lookup, so the cache, keyed on message identity, would never hit.
+         */
+        ServerServiceDefinition cacheResponses(ServerServiceDefinition service, VMSDataStore store) {
+            if (responseCache != null && (store instanceof CompactVMSDataStore || store instanceof MappedVMSDataStore)) {
+                logger.warning("Response cache disabled: a " + store.getClass().getSimpleName()
+                        + " builds a new message for every lookup, so it would never hit");
+                responseCache = null;
+            }
+            return responseCache != null ? responseCache.intercept(service) : service;
+        }
+
+        /**
+         * Compresses the service's responses by the compression rules.
+         */
+        ServerServiceDefinition compressResponses(ServerServiceDefinition service) {
+            return compression != FarmCompression.none()
+                    ? ServerInterceptors.intercept(service, compression.serverInterceptor())
+                    : service;
+        }
+
+        SerializedResponseCache responseCache() {
+            return responseCache;
+        }
+
+        FarmChatHub chatHub() {
+            return chatHub;
+        }
+
+        void shutdown() {
+            if (boss != null) {
+                boss.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+                worker.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+            }
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    public static final class Builder {
+        private Transport transport = Transport.NIO;
+        private int bossThreads = 1;
+        private int workerThreads;
+        private Executor executor = Executor.DEFAULT;
+        private int executorThreads = Runtime.getRuntime().availableProcessors();
+        private int executorQueue = 1024;
+        private int flowControlWindow;
+        private int maxConcurrentCallsPerConnection;
+        private int maxInboundMessageSize;
+        private long keepAliveTimeMillis;
+        private long keepAliveTimeoutMillis;
+        private long permitKeepAliveTimeMillis;
+        private boolean permitKeepAliveWithoutCalls;
+        private int shards = 1;
+        private boolean compact;
+        private long responseCacheBytes;
+        private FarmCompression compression = FarmCompression.none();
+        private FarmChatHub.Topic chatTopic = FarmChatHub.Topic.OWNER;
+        private int chatQueue = 128;
+        private FarmChatHub.SlowConsumerPolicy chatPolicy = FarmChatHub.SlowConsumerPolicy.DROP_OLDEST;
+
+        private Builder() {
+        }
+
+        public Builder transport(Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Threads accepting connections and threads serving them; 0 workers means Netty's default.
+         */
+        public Builder eventLoops(int bossThreads, int workerThreads) {
+            if (bossThreads < 1 || workerThreads < 0) {
+                throw new IllegalArgumentException("Invalid event loop sizes: " + bossThreads + ", " + workerThreads);
+            }
+            this.bossThreads = bossThreads;
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * A {@link Executor#BOUNDED bounded} executor with {@code threads} threads and room for
+         * {@code queue} waiting tasks.
+         */
+        public Builder executor(Executor executor, int threads, int queue) {
+            if (threads < 1 || queue < 1) {
+                throw new IllegalArgumentException("Invalid executor size: " + threads + ", " + queue);
+            }
+            this.executor = executor;
+            this.executorThreads = threads;
+            this.executorQueue = queue;
+            return this;
+        }
+
+        /**
+         * Initial HTTP/2 flow-control window per stream, in bytes.
+         */
+        public Builder flowControlWindow(int bytes) {
+            this.flowControlWindow = bytes;
+            return this;
+        }
+
+        public Builder maxConcurrentCallsPerConnection(int calls) {
+            this.maxConcurrentCallsPerConnection = calls;
+            return this;
+        }
+
+        public Builder maxInboundMessageSize(int bytes) {
+            this.maxInboundMessageSize = bytes;
+            return this;
+        }
+
+        /**
+         * Pings idle connections every {@code time} and closes them if no ack comes within
+         * {@code timeout}.
+         */
+        public Builder keepAlive(long time, long timeout, TimeUnit unit) {
+            this.keepAliveTimeMillis = unit.toMillis(time);
+            this.keepAliveTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Most frequent client keepalive accepted, and whether clients may ping without calls.
+         */
+        public Builder permitKeepAlive(long time, boolean withoutCalls, TimeUnit unit) {
+            this.permitKeepAliveTimeMillis = unit.toMillis(time);
+            this.permitKeepAliveWithoutCalls = withoutCalls;
+            return this;
+        }
+
+        /**
+         * Partitions the data by key into this many {@link ShardedVMSDataStore shards}; 1 keeps a
+         * single store. Reloaded data is partitioned the same way.
+         */
+        public Builder shards(int shards) {
+            if (shards < 1) {
+                throw new IllegalArgumentException("shards must be positive: " + shards);
+            }
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * Keeps the records in a {@link CompactVMSDataStore}, building protobuf messages only for
+         * responses. Ignored with more than one shard, whose shards always hold protobuf objects.
+         * Records of a compact store are new objects on every lookup, so the server drops the
+         * response cache over it.
+         */
+        public Builder compact(boolean compact) {
+            this.compact = compact;
+            return this;
+        }
+
+        /**
+         * Keeps the serialized bytes of sent records in a {@link SerializedResponseCache} of at
+         * most {@code bytes}; 0 serializes every response. Only used over stores that keep
+         * their records as messages: over a compact or mapped store the server logs a warning
+         * and serializes every response.
+         */
+        public Builder responseCache(long bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("Response cache size must not be negative: " + bytes);
+            }
+            this.responseCacheBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Which responses are compressed, with which encoding and from what size on.
+         */
+        public Builder compression(FarmCompression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * How FarmChat notes are fanned out: the item field naming a note's topic, the notes
+         * each subscriber may have waiting, and what a subscriber that falls further behind loses.
+         */
+        public Builder chat(FarmChatHub.Topic topic, int queue, FarmChatHub.SlowConsumerPolicy policy) {
+            if (queue < 1) {
+                throw new IllegalArgumentException("Chat queue must hold at least one note: " + queue);
+            }
+            this.chatTopic = topic;
+            this.chatQueue = queue;
+            this.chatPolicy = policy;
+            return this;
+        }
+
+        public FarmServerOptions build() {
+            if (transport == Transport.EPOLL && !epollAvailable()) {
+                logger.warning("Native epoll is not available, using NIO");
+            }
+            return new FarmServerOptions(this);
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package io.grpc.proxy;
+
+import io.grpc.netty.shaded.io.grpc.netty.GrpcSslContexts;
+import io.grpc.netty.shaded.io.netty.buffer.ByteBufAllocator;
+import io.grpc.netty.shaded.io.netty.handler.ssl.ClientAuth;
+import io.grpc.netty.shaded.io.netty.handler.ssl.OpenSsl;
+import io.grpc.netty.shaded.io.netty.handler.ssl.OpenSslSessionStats;
+import io.grpc.netty.shaded.io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.grpc.netty.shaded.io.netty.handler.ssl.ReferenceCountedOpenSslContext;
+import io.grpc.netty.shaded.io.netty.handler.ssl.SslContext;
+import io.grpc.netty.shaded.io.netty.handler.ssl.SslContextBuilder;
+import io.grpc.netty.shaded.io.netty.handler.ssl.SslProvider;
+import io.grpc.netty.shaded.io.netty.internal.tcnative.SSL;
+import io.grpc.netty.shaded.io.netty.internal.tcnative.SSLContext;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TLS contexts of the Farm server and its clients, tuned for many short-lived connections.
+ *
+ * <p>The native OpenSSL provider (BoringSSL from netty-tcnative) is used wherever it loads,
+ * the JDK one otherwise. A server keeps a session cache and issues session tickets, so a client
+ * coming back resumes its session in an abbreviated handshake instead of repeating the
+ * certificate exchange and key agreement. Clients only resume if they keep their context,
+ * which {@link #clientContext} does for them.
+ *
+ * <p>The server's context is rebuilt from its files while it serves: {@link #sslContext} gives
+ * Netty a context that makes every new engine from the latest build, and {@link #watch}
+ * rebuilds it when a file changes, the same way a {@link VMSDataReloader} reloads data. Open
+ * connections keep the certificates they were handshaken with. The ticket keys outlive a
+ * rebuild, so tickets issued before it still resume; cached sessions do not.
+ */
+public final class FarmTls implements FarmTlsMXBean {
+    private static final Logger logger = Logger.getLogger(FarmTls.class.getName());
+
+    private static final String PROPERTY_PREFIX = "farm.tls.";
+
+    // Client contexts by the files they were built from; a rotation replaces the entry.
+    private static final ConcurrentMap<List<Object>, ClientContext> clientContexts = new ConcurrentHashMap<>();
+
+    private final File certChain;
+    private final File privateKey;
+    private final File trustCertCollection;
+    private final SslProvider provider;
+    private final long sessionCacheSize;
+    private final long sessionTimeoutSeconds;
+    private final boolean sessionTickets;
+    private final OpenSslSessionTicketKey ticketKey;
+    private final ReloadingSslContext context;
+    private ScheduledExecutorService scheduler;
+
+    // Last loaded and last observed (modification time, length) of each file.
+    private long[] loaded;
+    private long[] seen;
+
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong failedReloads = new AtomicLong();
+
+    private FarmTls(Builder builder) throws SSLException {
+        this.certChain = builder.certChain;
+        this.privateKey = builder.privateKey;
+        this.trustCertCollection = builder.trustCertCollection;
+        this.provider = select(builder.provider);
+        this.sessionCacheSize = builder.sessionCacheSize;
+        this.sessionTimeoutSeconds = builder.sessionTimeoutSeconds;
+        this.sessionTickets = builder.sessionTickets;
+        this.ticketKey = sessionTickets && provider == SslProvider.OPENSSL ? newTicketKey() : null;
+        this.loaded = stamp();
+        this.seen = loaded;
+        this.context = new ReloadingSslContext(build());
+    }
+
+    /**
+     * Server presenting {@code certChain}, whose key is {@code privateKey}.
+     */
+    public static Builder forServer(File certChain, File privateKey) {
+        return new Builder(certChain, privateKey);
+    }
+
+    /**
+     * Reads a server's TLS settings from {@code farm.tls.*} system properties, for example
+     * {@code -Dfarm.tls.certChain=server.crt -Dfarm.tls.privateKey=server_key.pem
+     * -Dfarm.tls.trustCertCollection=client.crt -Dfarm.tls.reloadMillis=10000}. Returns null
+     * without {@code farm.tls.certChain}, for a plaintext server.
+     */
+    public static FarmTls fromSystemProperties() throws SSLException {
+        String certChain = System.getProperty(PROPERTY_PREFIX + "certChain");
+        if (certChain == null) {
+            return null;
+        }
+        Builder builder = forServer(new File(certChain), new File(System.getProperty(PROPERTY_PREFIX + "privateKey")));
+        String trustCertCollection = System.getProperty(PROPERTY_PREFIX + "trustCertCollection");
+        if (trustCertCollection != null) {
+            builder.trustCertCollection(new File(trustCertCollection));
+        }
+        String provider = System.getProperty(PROPERTY_PREFIX + "provider");
+        if (provider != null) {
+            builder.provider(SslProvider.valueOf(provider.toUpperCase(Locale.ROOT)));
+        }
+        builder.sessionCache(Long.getLong(PROPERTY_PREFIX + "sessionCacheSize", builder.sessionCacheSize),
+                Long.getLong(PROPERTY_PREFIX + "sessionTimeout", builder.sessionTimeoutSeconds), TimeUnit.SECONDS);
+        String sessionTickets = System.getProperty(PROPERTY_PREFIX + "sessionTickets");
+        if (sessionTickets != null) {
+            builder.sessionTickets(Boolean.parseBoolean(sessionTickets));
+        }
+        FarmTls tls = builder.build();
+        long reloadMillis = Long.getLong(PROPERTY_PREFIX + "reloadMillis", 0);
+        return reloadMillis > 0 ? tls.watch(reloadMillis) : tls;
+    }
+
+    /**
+     * The native OpenSSL provider if it loads on this platform, else the JDK one.
+     */
+    public static SslProvider defaultProvider() {
+        return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+    }
+
+    private static SslProvider select(SslProvider requested) {
+        if (requested == null) {
+            return defaultProvider();
+        }
+        if (requested != SslProvider.JDK && !OpenSsl.isAvailable()) {
+            logger.log(Level.WARNING, "OpenSSL is not available, using the JDK TLS provider", OpenSsl.unavailabilityCause());
+            return SslProvider.JDK;
+        }
+        return requested;
+    }
+
+    /**
+     * Context of a client trusting {@code trustCertCollection}, built once and shared by every
+     * caller so the sessions it caches are resumed by later connections. Rebuilt when the file
+     * changes.
+     */
+    public static SslContext clientContext(File trustCertCollection) throws SSLException {
+        return clientContext(trustCertCollection, null, null);
+    }
+
+    /**
+     * Like {@link #clientContext(File)}, presenting {@code certChain} to servers that require
+     * client certificates.
+     */
+    public static SslContext clientContext(File trustCertCollection, File certChain, File privateKey)
+            throws SSLException {
+        List<Object> key = Arrays.<Object>asList(trustCertCollection, certChain, privateKey);
+        List<Long> stamp = Arrays.asList(trustCertCollection.lastModified(),
+                certChain != null ? certChain.lastModified() : 0L,
+                privateKey != null ? privateKey.lastModified() : 0L);
+        while (true) {
+            ClientContext cached = clientContexts.get(key);
+            if (cached != null && cached.stamp.equals(stamp)) {
+                return cached.context;
+            }
+            ClientContext fresh = new ClientContext(stamp,
+                    newClientContext(trustCertCollection, certChain, privateKey));
+            if (cached == null ? clientContexts.putIfAbsent(key, fresh) == null
+                    : clientContexts.replace(key, cached, fresh)) {
+                return fresh.context;
+            }
+        }
+    }
+
+    /**
+     * A new client context, whose sessions are not shared with any other.
+     */
+    public static SslContext newClientContext(File trustCertCollection, File certChain, File privateKey)
+            throws SSLException {
+        SslContextBuilder builder = SslContextBuilder.forClient().trustManager(trustCertCollection);
+        if (certChain != null) {
+            builder.keyManager(certChain, privateKey);
+        }
+        // The OpenSSL client of this Netty version does not resume sessions, the JDK one does.
+        return GrpcSslContexts.configure(builder, SslProvider.JDK).build();
+    }
+
+    /**
+     * Context to give the NettyServerBuilder; it follows every rebuild.
+     */
+    public SslContext sslContext() {
+        return context;
+    }
+
+    /**
+     * Starts checking the files every {@code periodMillis}, rebuilding the context once a
+     * change looked the same on two checks in a row.
+     */
+    public synchronized FarmTls watch(long periodMillis) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Already watching");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "farm-tls-reloader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private synchronized void poll() {
+        long[] stamp = stamp();
+        if (Arrays.equals(stamp, loaded)) {
+            return;
+        }
+        if (!Arrays.equals(stamp, seen)) {
+            seen = stamp;
+            return;
+        }
+        loaded = stamp;
+        reload();
+    }
+
+    private long[] stamp() {
+        File[] files = {certChain, privateKey, trustCertCollection};
+        long[] stamp = new long[files.length * 2];
+        for (int i = 0; i < files.length; i++) {
+            if (files[i] != null) {
+                stamp[2 * i] = files[i].lastModified();
+                stamp[2 * i + 1] = files[i].length();
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * Rebuilds the context from the files now. Returns false, keeping the current context, if
+     * they do not make a valid one.
+     */
+    @Override
+    public boolean reload() {
+        SslContext rebuilt;
+        try {
+            rebuilt = build();
+        } catch (SSLException | RuntimeException e) {
+            failedReloads.incrementAndGet();
+            logger.log(Level.WARNING, "Reloading " + certChain + " failed, keeping the current certificates", e);
+            return false;
+        }
+        context.current = rebuilt;
+        reloads.incrementAndGet();
+        logger.info("Reloaded TLS certificates from " + certChain);
+        return true;
+    }
+
+    private SslContext build() throws SSLException {
+        SslContextBuilder builder = SslContextBuilder.forServer(certChain, privateKey)
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeoutSeconds);
+        if (trustCertCollection != null) {
+            builder.trustManager(trustCertCollection).clientAuth(ClientAuth.REQUIRE);
+        }
+        SslContext built = GrpcSslContexts.configure(builder, provider).build();
+        if (built instanceof ReferenceCountedOpenSslContext) {
+            ReferenceCountedOpenSslContext openSsl = (ReferenceCountedOpenSslContext) built;
+            if (ticketKey != null) {
+                openSsl.sessionContext().setTicketKeys(ticketKey);
+            } else {
+                disableTickets(openSsl);
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Stops OpenSSL from issuing session tickets. Netty 4.1.27 has no option for it, so this sets
+     * SSL_OP_NO_TICKET on the native context, whose pointer Netty deprecated as unsafe because it
+     * dies with the context. It is only used here, right after the context was built and while
+     * it is referenced.
+     */
+    @SuppressWarnings("deprecation")
+    private static void disableTickets(ReferenceCountedOpenSslContext context) {
+        SSLContext.setOptions(context.sslCtxPointer(), SSL.SSL_OP_NO_TICKET);
+    }
+
+    private static OpenSslSessionTicketKey newTicketKey() {
+        SecureRandom random = new SecureRandom();
+        byte[] name = new byte[OpenSslSessionTicketKey.NAME_SIZE];
+        byte[] hmacKey = new byte[OpenSslSessionTicketKey.HMAC_KEY_SIZE];
+        byte[] aesKey = new byte[OpenSslSessionTicketKey.AES_KEY_SIZE];
+        random.nextBytes(name);
+        random.nextBytes(hmacKey);
+        random.nextBytes(aesKey);
+        return new OpenSslSessionTicketKey(name, hmacKey, aesKey);
+    }
+
+    @Override
+    public String getProvider() {
+        return provider.name();
+    }
+
+    @Override
+    public long getReloadCount() {
+        return reloads.get();
+    }
+
+    @Override
+    public long getFailedReloadCount() {
+        return failedReloads.get();
+    }
+
+    @Override
+    public long getResumedSessionCount() {
+        SslContext current = context.current;
+        if (current instanceof ReferenceCountedOpenSslContext) {
+            OpenSslSessionStats stats = ((ReferenceCountedOpenSslContext) current).sessionContext().stats();
+            return stats.hits() + stats.ticketKeyResume();
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "FarmTls{provider=" + provider + ", certChain=" + certChain
+                + ", clientAuth=" + (trustCertCollection != null ? trustCertCollection : "none")
+                + ", sessionCacheSize=" + sessionCacheSize + ", sessionTimeoutSeconds=" + sessionTimeoutSeconds
+                + ", sessionTickets=" + sessionTickets + "}";
+    }
+
+    /**
+     * Server context handing every call to the context last built.
+     */
+    /**
+     * A shared client context and the modification times of the files it was built from.
+     */
+    private static final class ClientContext {
+        final List<Long> stamp;
+        final SslContext context;
+
+        ClientContext(List<Long> stamp, SslContext context) {
+            this.stamp = stamp;
+            this.context = context;
+        }
+    }
+
+    private static final class ReloadingSslContext extends SslContext {
+        volatile SslContext current;
+
+        ReloadingSslContext(SslContext current) {
+            this.current = current;
+        }
+
+        @Override
+        public boolean isClient() {
+            return current.isClient();
+        }
+
+        @Override
+        public List<String> cipherSuites() {
+            return current.cipherSuites();
+        }
+
+        @Override
+        public long sessionCacheSize() {
+            return current.sessionCacheSize();
+        }
+
+        @Override
+        public long sessionTimeout() {
+            return current.sessionTimeout();
+        }
+
+        // Abstract in SslContext, so a wrapper must delegate it even though Netty deprecated the type.
+        @SuppressWarnings("deprecation")
+        @Override
+        public io.grpc.netty.shaded.io.netty.handler.ssl.ApplicationProtocolNegotiator
+                applicationProtocolNegotiator() {
+            return current.applicationProtocolNegotiator();
+        }
+
+        /**
+         * Goes through a handler, for which OpenSSL makes engines that leave the JDK-compatible
+         * record-at-a-time mode of {@link SslContext#newEngine} behind.
+         */
+        @Override
+        public SSLEngine newEngine(ByteBufAllocator alloc) {
+            return current.newHandler(alloc).engine();
+        }
+
+        @Override
+        public SSLEngine newEngine(ByteBufAllocator alloc, String peerHost, int peerPort) {
+            return current.newHandler(alloc, peerHost, peerPort).engine();
+        }
+
+        @Override
+        public SSLSessionContext sessionContext() {
+            return current.sessionContext();
+        }
+    }
+
+    public static final class Builder {
+        private final File certChain;
+        private final File privateKey;
+        private File trustCertCollection;
+        private SslProvider provider;
+        private long sessionCacheSize;
+        private long sessionTimeoutSeconds;
+        private boolean sessionTickets = true;
+
+        private Builder(File certChain, File privateKey) {
+            this.certChain = certChain;
+            this.privateKey = privateKey;
+        }
+
+        /**
+         * Requires clients to present a certificate issued by one of these.
+         */
+        public Builder trustCertCollection(File trustCertCollection) {
+            this.trustCertCollection = trustCertCollection;
+            return this;
+        }
+
+        /**
+         * OPENSSL or JDK; unset picks OpenSSL where it is available. Asking for OpenSSL where
+         * it is not falls back to the JDK provider.
+         */
+        public Builder provider(SslProvider provider) {
+            this.provider = provider;
+            return this;
+        }
+
+        /**
+         * Sessions the server keeps for resumption, and for how long; 0 keeps the provider's
+         * default.
+         */
+        public Builder sessionCache(long size, long timeout, TimeUnit unit) {
+            if (size < 0 || timeout < 0) {
+                throw new IllegalArgumentException("Invalid session cache: " + size + ", " + timeout);
+            }
+            this.sessionCacheSize = size;
+            this.sessionTimeoutSeconds = unit.toSeconds(timeout);
+            return this;
+        }
+
+        /**
+         * Whether OpenSSL issues session tickets, letting clients resume without the server
+         * keeping their session. The JDK provider follows the
+         * {@code jdk.tls.server.enableSessionTicketExtension} system property instead.
+         */
+        public Builder sessionTickets(boolean sessionTickets) {
+            this.sessionTickets = sessionTickets;
+            return this;
+        }
+
+        public FarmTls build() throws SSLException {
+            return new FarmTls(this);
+        }
+    }
+}
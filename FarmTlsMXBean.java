@@ -0,0 +1,27 @@
+package io.grpc.proxy;
+
+/**
+ * JMX view of a {@link FarmTls}.
+ */
+public interface FarmTlsMXBean {
+
+    /**
+     * OPENSSL or JDK.
+     */
+    String getProvider();
+
+    long getReloadCount();
+
+    long getFailedReloadCount();
+
+    /**
+     * Handshakes that resumed a session since the certificates were last loaded, or -1 if the
+     * provider does not count them.
+     */
+    long getResumedSessionCount();
+
+    /**
+     * Rebuilds the context from the files now, as if they had changed.
+     */
+    boolean reload();
+}
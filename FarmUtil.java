@@ -1,17 +1,16 @@
 package io.grpc.proxy;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 
-import com.google.protobuf.util.JsonFormat;
-
 public class FarmUtil {
     /**
      * Gets the file from classpath.
@@ -24,21 +23,118 @@ public class FarmUtil {
      * Parses the JSON input file containing the list of features.
      */
     public static List<VMSDataResponse> parseResponse(URL file) throws IOException {
-        InputStream input = file.openStream();
-        try {
-            Reader reader = new InputStreamReader(input, Charset.forName("UTF-8"));
+        final List<VMSDataResponse> responses = new ArrayList<>();
+        new VMSDataLoader().load(file, new VMSDataLoader.Sink() {
+            @Override
+            public void accept(VMSDataResponse response) {
+                responses.add(response);
+            }
+        });
+        return responses;
+    }
+
+    /**
+     * Opens the input file as a store, mapping it if it is a {@link VMSDataSnapshot} and
+     * loading it as JSON otherwise.
+     */
+    public static VMSDataStore openStore(URL file) throws IOException {
+        return openStore(file, false);
+    }
+
+    /**
+     * Opens the input file as a store, loading JSON into a {@link CompactVMSDataStore} if
+     * {@code compact} is set. Snapshots are mapped either way.
+     */
+    public static VMSDataStore openStore(URL file, boolean compact) throws IOException {
+        if ("file".equals(file.getProtocol())) {
+            File snapshot;
             try {
-                VMSDatabase.Builder database = VMSDatabase.newBuilder();
-                JsonFormat.parser().merge(reader, database);
-                return database.getResponseList();
-            } finally {
-                reader.close();
+                snapshot = new File(file.toURI());
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid file URL " + file, e);
+            }
+            if (VMSDataSnapshot.isSnapshot(snapshot)) {
+                return VMSDataSnapshot.open(snapshot);
+            }
+        }
+        return compact ? loadCompactStore(file) : loadStore(file);
+    }
+
+    /**
+     * Streams the JSON input file straight into an indexed store.
+     */
+    public static IndexedVMSDataStore loadStore(URL file) throws IOException {
+        return loadStore(file, 1);
+    }
+
+    /**
+     * Streams the JSON input file into an indexed store, reading records on {@code parallelism}
+     * threads.
+     */
+    public static IndexedVMSDataStore loadStore(URL file, int parallelism) throws IOException {
+        final IndexedVMSDataStore.Builder store = IndexedVMSDataStore.newBuilder();
+        new VMSDataLoader(parallelism).load(file, new VMSDataLoader.Sink() {
+            @Override
+            public void accept(VMSDataResponse response) {
+                store.add(response);
+            }
+        });
+        return store.build();
+    }
+
+    /**
+     * Streams the JSON input file into a compact columnar store.
+     */
+    public static CompactVMSDataStore loadCompactStore(URL file) throws IOException {
+        final CompactVMSDataStore.Builder store = CompactVMSDataStore.newBuilder();
+        new VMSDataLoader().load(file, new VMSDataLoader.Sink() {
+            @Override
+            public void accept(VMSDataResponse response) {
+                store.add(response);
             }
+        });
+        return store.build();
+    }
+
+    /**
+     * Forces the entries of {@code directory} to disk, so that a file just created or renamed in
+     * it survives a crash. Does nothing where directories cannot be opened, as on Windows.
+     */
+    public static void syncDirectory(File directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
         } finally {
-            input.close();
+            channel.close();
         }
     }
+
     public static boolean exists(VMSDataResponse response) {
         return response != null && !response.getItem().getGuid().isEmpty();
     }
+
+    /**
+     * Returns the guid as a long if it is a plain non-negative decimal number without leading
+     * zeros, so that converting it back gives the same string. Returns -1 otherwise.
+     */
+    public static long guidToLong(String guid) {
+        int length = guid.length();
+        if (length == 0 || length > 18 || (length > 1 && guid.charAt(0) == '0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = guid.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
 }
@@ -1,9 +1,24 @@
 package io.grpc.proxy;
 
 import io.grpc.*;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.unsafe.ContextUtils;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Adds the client header to requests and records {@link CallMetrics} for every call.
+ *
+ * <p>gRPC traces every call with OpenCensus as a child of the caller's current span and sends
+ * the trace context to the server in {@code grpc-trace-bin}. When that span records events, this
+ * annotates it with each call's method and status, so the caller's trace lists the Farm calls
+ * it made.
+ *
+ * <p>Response header keys are only logged at FINE, and then for one call in
+ * {@link #HEADER_LOG_SAMPLE}.
+ */
 public class HeaderClientInterceptor implements ClientInterceptor {
 
     static final Metadata.Key<String> CLIENT_HEADER_KEY =
@@ -11,15 +26,34 @@ public class HeaderClientInterceptor implements ClientInterceptor {
 
     private static final Logger logger = Logger.getLogger(HeaderClientInterceptor.class.getName());
 
+    static final int HEADER_LOG_SAMPLE = 1000;
+
+    private final FarmMetrics metrics;
+    private final AtomicLong sampledCalls = new AtomicLong();
+
+    public HeaderClientInterceptor() {
+        this(FarmMetrics.client());
+    }
+
+    public HeaderClientInterceptor(FarmMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
-    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> methodDescriptor,
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(final MethodDescriptor<ReqT, RespT> methodDescriptor,
                                                                CallOptions callOptions, Channel channel) {
+        final CallMetrics method = metrics.forMethod(methodDescriptor.getFullMethodName());
         return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(channel.newCall(methodDescriptor, callOptions)) {
 
             @Override
             public void start(Listener<RespT> responseListener, Metadata headers) {
                 /* put custom header */
                 headers.put(CLIENT_HEADER_KEY, "customRequestValueInClientInterceptor");
+                final boolean logHeaders = logger.isLoggable(Level.FINE)
+                        && sampledCalls.getAndIncrement() % HEADER_LOG_SAMPLE == 0;
+                final CallMetrics.Call tracked = method.start();
+                final Span span = ContextUtils.CONTEXT_SPAN_KEY.get();
+                final boolean traced = span != null && span.getOptions().contains(Span.Options.RECORD_EVENTS);
                 super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
                     @Override
                     public void onHeaders(Metadata headers) {
@@ -28,11 +62,34 @@ public class HeaderClientInterceptor implements ClientInterceptor {
                          * you can use {@link io.grpc.stub.MetadataUtils#attachHeaders}
                          * directly to send header
                          */
-                        logger.info(" =========>> header keys received from server:" + headers.keys().toString());
+                        if (logHeaders) {
+                            logger.fine(" =========>> header keys received from server:" + headers.keys());
+                        }
                         super.onHeaders(headers);
                     }
+
+                    @Override
+                    public void onMessage(RespT message) {
+                        method.messageReceived(message);
+                        super.onMessage(message);
+                    }
+
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        tracked.complete(status.getCode());
+                        if (traced) {
+                            span.addAnnotation(methodDescriptor.getFullMethodName() + " " + status.getCode());
+                        }
+                        super.onClose(status, trailers);
+                    }
                 }, headers);
             }
+
+            @Override
+            public void sendMessage(ReqT message) {
+                method.messageSent(message);
+                super.sendMessage(message);
+            }
         };
     }
 }
@@ -1,9 +1,26 @@
 package io.grpc.proxy;
 
 import io.grpc.*;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.unsafe.ContextUtils;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Adds the server header to responses and records {@link CallMetrics} for every call.
+ *
+ * <p>gRPC traces every call with OpenCensus, continuing the client's trace from the
+ * {@code grpc-trace-bin} header. When the call's span records events, which takes an OpenCensus
+ * implementation on the class path, this adds the calls in flight when it started to the span
+ * and an annotation when it closes with an error, so a slow call in a trace shows whether the
+ * server was busy.
+ *
+ * <p>Request header keys are only logged at FINE, and then for one call in
+ * {@link #HEADER_LOG_SAMPLE}, since building and logging them on every call is costly under load.
+ */
 public class HeaderServerInterceptor implements ServerInterceptor {
 
     private static final Logger logger = Logger.getLogger(HeaderServerInterceptor.class.getName());
@@ -11,20 +28,78 @@ public class HeaderServerInterceptor implements ServerInterceptor {
     static final Metadata.Key<String> SERVER_HEADER_KEY =
             Metadata.Key.of("server-metadata", Metadata.ASCII_STRING_MARSHALLER);
 
+    static final int HEADER_LOG_SAMPLE = 1000;
+
+    private final FarmMetrics metrics;
+    private final AtomicLong sampledCalls = new AtomicLong();
+
+    public HeaderServerInterceptor(FarmMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
             ServerCall<ReqT, RespT> call,
             final Metadata requestHeaders,
             ServerCallHandler<ReqT, RespT> next) {
 
-        logger.info("------------->> header keys received from client:" + requestHeaders.keys().toString());
+        // The span gRPC opened for this call, blank without an OpenCensus implementation.
+        final Span span = ContextUtils.CONTEXT_SPAN_KEY.get();
+        if (logger.isLoggable(Level.FINE) && sampledCalls.getAndIncrement() % HEADER_LOG_SAMPLE == 0) {
+            logger.fine("------------->> header keys received from client:" + requestHeaders.keys()
+                    + (span != null ? ", trace " + span.getContext().getTraceId().toLowerBase16() : ""));
+        }
+
+        final CallMetrics method = metrics.forMethod(call.getMethodDescriptor().getFullMethodName());
+        final CallMetrics.Call tracked = method.start();
+        final boolean traced = span != null && span.getOptions().contains(Span.Options.RECORD_EVENTS);
+        if (traced) {
+            span.putAttribute("farm.inFlightCalls", AttributeValue.longAttributeValue(method.getInFlightCalls()));
+        }
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+                @Override
+                public void sendHeaders(Metadata responseHeaders) {
+                    // A proxied call already carries the header of the backend.
+                    if (!responseHeaders.containsKey(SERVER_HEADER_KEY)) {
+                        responseHeaders.put(SERVER_HEADER_KEY, "customRespondValueFrom ServerInterceptor");
+                    }
+                    super.sendHeaders(responseHeaders);
+                }
+
+                @Override
+                public void sendMessage(RespT message) {
+                    method.messageSent(message);
+                    super.sendMessage(message);
+                }
+
+                @Override
+                public void close(Status status, Metadata trailers) {
+                    tracked.complete(status.getCode());
+                    if (traced && !status.isOk()) {
+                        span.addAnnotation("Farm call failed: " + status.getCode());
+                    }
+                    super.close(status, trailers);
+                }
+            }, requestHeaders);
+        } catch (RuntimeException e) {
+            tracked.complete(Status.Code.UNKNOWN);
+            throw e;
+        }
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onMessage(ReqT message) {
+                method.messageReceived(message);
+                super.onMessage(message);
+            }
 
-        return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
             @Override
-            public void sendHeaders(Metadata responseHeaders) {
-                responseHeaders.put(SERVER_HEADER_KEY, "customRespondValueFrom ServerInterceptor");
-                super.sendHeaders(responseHeaders);
+            public void onCancel() {
+                tracked.complete(Status.Code.CANCELLED);
+                super.onCancel();
             }
-        }, requestHeaders);
+        };
     }
 }
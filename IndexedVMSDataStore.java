@@ -0,0 +1,185 @@
+package io.grpc.proxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Heap {@link VMSDataStore} with an open-addressing index on (guid, sourceid).
+ *
+ * <p>Numeric guids, which is what the VMS data uses in practice, are kept as primitive longs next
+ * to the sourceid in parallel arrays, so a lookup is a hash and a few array reads without touching
+ * the protobuf objects. Guids that are not plain decimal numbers go to a small fallback map.
+ */
+public final class IndexedVMSDataStore implements VMSDataStore {
+
+    private static final int EMPTY = -1;
+
+    private final VMSDataResponse[] records;
+
+    // Linear probing table. slotRecords holds the record index, or EMPTY for a free slot.
+    private final long[] slotGuids;
+    private final int[] slotSourceids;
+    private final int[] slotRecords;
+    private final int mask;
+
+    private final Map<Key, Integer> fallback;
+    private final VMSKeyFilter filter;
+
+    private IndexedVMSDataStore(List<VMSDataResponse> records) {
+        this.records = records.toArray(new VMSDataResponse[records.size()]);
+        int capacity = tableSize(this.records.length);
+        this.slotGuids = new long[capacity];
+        this.slotSourceids = new int[capacity];
+        this.slotRecords = new int[capacity];
+        this.mask = capacity - 1;
+        this.fallback = new HashMap<>();
+        this.filter = VMSKeyFilter.create(this.records.length);
+        Arrays.fill(slotRecords, EMPTY);
+
+        for (int i = 0; i < this.records.length; i++) {
+            index(i);
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Builds a store holding {@code responses} in iteration order.
+     */
+    public static IndexedVMSDataStore of(Collection<VMSDataResponse> responses) {
+        return newBuilder().addAll(responses).build();
+    }
+
+    @Override
+    public VMSDataResponse get(String guid, int sourceid) {
+        int index = indexOf(guid, sourceid);
+        return index < 0 ? null : records[index];
+    }
+
+    @Override
+    public int indexOf(String guid, int sourceid) {
+        long numericGuid = FarmUtil.guidToLong(guid);
+        if (numericGuid < 0) {
+            Integer index = fallback.get(new Key(guid, sourceid));
+            return index == null ? -1 : index;
+        }
+        for (int slot = hash(numericGuid, sourceid) & mask; ; slot = (slot + 1) & mask) {
+            int index = slotRecords[slot];
+            if (index == EMPTY || (slotGuids[slot] == numericGuid && slotSourceids[slot] == sourceid)) {
+                return index;
+            }
+        }
+    }
+
+    @Override
+    public boolean mightContain(String guid, int sourceid) {
+        return filter.mightContain(guid, sourceid);
+    }
+
+    @Override
+    public VMSDataResponse get(int index) {
+        return records[index];
+    }
+
+    @Override
+    public int size() {
+        return records.length;
+    }
+
+    private void index(int index) {
+        Item item = records[index].getItem();
+        int sourceid = item.getSourceid();
+        filter.put(item.getGuid(), sourceid);
+        long numericGuid = FarmUtil.guidToLong(item.getGuid());
+        if (numericGuid < 0) {
+            Key key = new Key(item.getGuid(), sourceid);
+            // Keep the first record for a key, like the old linear scan did.
+            if (!fallback.containsKey(key)) {
+                fallback.put(key, index);
+            }
+            return;
+        }
+        int slot = hash(numericGuid, sourceid) & mask;
+        while (slotRecords[slot] != EMPTY) {
+            if (slotGuids[slot] == numericGuid && slotSourceids[slot] == sourceid) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slotGuids[slot] = numericGuid;
+        slotSourceids[slot] = sourceid;
+        slotRecords[slot] = index;
+    }
+
+    /**
+     * Smallest power of two keeping the load factor at or below 0.75.
+     */
+    static int tableSize(int entries) {
+        long wanted = Math.max(2L, (long) entries * 4 / 3 + 1);
+        if (wanted > (1 << 30)) {
+            throw new IllegalArgumentException("Too many records for the index: " + entries);
+        }
+        return Integer.highestOneBit((int) wanted - 1) << 1;
+    }
+
+    static int hash(long guid, int sourceid) {
+        long h = guid * 0x9E3779B97F4A7C15L + sourceid;
+        h ^= h >>> 32;
+        h *= 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    /**
+     * Key for guids that are not plain decimal numbers.
+     */
+    static final class Key {
+        private final String guid;
+        private final int sourceid;
+
+        Key(String guid, int sourceid) {
+            this.guid = guid;
+            this.sourceid = sourceid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return sourceid == other.sourceid && guid.equals(other.guid);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * guid.hashCode() + sourceid;
+        }
+    }
+
+    public static final class Builder {
+        private final List<VMSDataResponse> records = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        public Builder add(VMSDataResponse response) {
+            records.add(response);
+            return this;
+        }
+
+        public Builder addAll(Collection<VMSDataResponse> responses) {
+            records.addAll(responses);
+            return this;
+        }
+
+        public IndexedVMSDataStore build() {
+            return new IndexedVMSDataStore(records);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package io.grpc.proxy;
+
+import com.google.protobuf.CodedInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link VMSDataStore} over a memory-mapped {@link VMSDataSnapshot}.
+ *
+ * <p>The index is probed in place in the mapped file and only the matching record is parsed,
+ * so opening a snapshot costs the same no matter how many records it holds. Files larger than
+ * one mapping are split in 1 GiB regions; index slots and offsets are aligned so they never cross
+ * a region boundary. Records may, as each one is copied out before it is parsed.
+ */
+public final class MappedVMSDataStore implements VMSDataStore {
+
+    private static final int REGION_SHIFT = 30;
+    private static final long REGION_MASK = (1L << REGION_SHIFT) - 1;
+
+    private final File file;
+    private final MappedByteBuffer[] regions;
+    private final int size;
+    private final long offsetsPosition;
+    private final long slotsPosition;
+    private final int mask;
+    private final Map<IndexedVMSDataStore.Key, Integer> fallback;
+    private final VMSKeyFilter filter;
+
+    MappedVMSDataStore(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < VMSDataSnapshot.HEADER_SIZE + VMSDataSnapshot.FOOTER_SIZE) {
+                throw new IOException("Not a VMS snapshot: " + file);
+            }
+            int count = (int) ((length + REGION_MASK) >>> REGION_SHIFT);
+            regions = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << REGION_SHIFT;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << REGION_SHIFT, length - start));
+            }
+
+            checkMagic(0);
+            checkMagic(length - VMSDataSnapshot.MAGIC.length);
+            if (getInt(VMSDataSnapshot.MAGIC.length) != VMSDataSnapshot.VERSION) {
+                throw new IOException("Unsupported VMS snapshot version in " + file);
+            }
+            size = getInt(VMSDataSnapshot.MAGIC.length + 4);
+            // Unlike the sections it points to, the footer is not aligned.
+            ByteBuffer footer = ByteBuffer.wrap(read(length - VMSDataSnapshot.FOOTER_SIZE, 32));
+            offsetsPosition = footer.getLong();
+            long indexPosition = footer.getLong();
+            long fallbackPosition = footer.getLong();
+            long filterPosition = footer.getLong();
+            mask = getInt(indexPosition) - 1;
+            slotsPosition = indexPosition + 4;
+
+            // The filter is small enough to keep on the heap, about ten bits per record.
+            long[] words = new long[getInt(filterPosition)];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = getLong(filterPosition + 4 + 8L * i);
+            }
+            filter = VMSKeyFilter.wrap(words);
+
+            fallback = new HashMap<>();
+            int fallbackCount = getInt(fallbackPosition);
+            for (int i = 0; i < fallbackCount; i++) {
+                int index = getInt(fallbackPosition + 4 + 4L * i);
+                Item item = get(index).getItem();
+                IndexedVMSDataStore.Key key = new IndexedVMSDataStore.Key(item.getGuid(), item.getSourceid());
+                if (!fallback.containsKey(key)) {
+                    fallback.put(key, index);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public VMSDataResponse get(String guid, int sourceid) {
+        int index = indexOf(guid, sourceid);
+        return index < 0 ? null : get(index);
+    }
+
+    @Override
+    public int indexOf(String guid, int sourceid) {
+        long numericGuid = FarmUtil.guidToLong(guid);
+        if (numericGuid < 0) {
+            Integer index = fallback.get(new IndexedVMSDataStore.Key(guid, sourceid));
+            return index == null ? -1 : index;
+        }
+        for (int slot = IndexedVMSDataStore.hash(numericGuid, sourceid) & mask; ; slot = (slot + 1) & mask) {
+            long position = slotsPosition + (long) slot * VMSDataSnapshot.SLOT_SIZE;
+            int index = getInt(position + 12);
+            if (index == -1 || (getLong(position) == numericGuid && getInt(position + 8) == sourceid)) {
+                return index;
+            }
+        }
+    }
+
+    @Override
+    public boolean mightContain(String guid, int sourceid) {
+        return filter.mightContain(guid, sourceid);
+    }
+
+    @Override
+    public VMSDataResponse get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + size);
+        }
+        long start = getLong(offsetsPosition + 8L * index);
+        // The last record is followed by the offsets section, at most padded with zeros.
+        long end = index + 1 < size ? getLong(offsetsPosition + 8L * (index + 1)) : offsetsPosition;
+        try {
+            // Records are small; copying one out is cheaper than a decoder over the mapping.
+            CodedInputStream input = CodedInputStream.newInstance(read(start, (int) (end - start)));
+            int limit = input.pushLimit(input.readRawVarint32());
+            VMSDataResponse response = VMSDataResponse.parseFrom(input);
+            input.popLimit(limit);
+            return response;
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt record " + index + " in " + file, e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void checkMagic(long position) throws IOException {
+        byte[] magic = read(position, VMSDataSnapshot.MAGIC.length);
+        if (!Arrays.equals(magic, VMSDataSnapshot.MAGIC)) {
+            throw new IOException("Not a VMS snapshot: " + file);
+        }
+    }
+
+    private int getInt(long position) {
+        return regions[(int) (position >>> REGION_SHIFT)].getInt((int) (position & REGION_MASK));
+    }
+
+    private long getLong(long position) {
+        return regions[(int) (position >>> REGION_SHIFT)].getLong((int) (position & REGION_MASK));
+    }
+
+    /**
+     * Copies up to {@code length} bytes starting at {@code position}, across regions if needed.
+     */
+    private byte[] read(long position, int length) {
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            int region = (int) ((position + copied) >>> REGION_SHIFT);
+            if (region >= regions.length) {
+                return Arrays.copyOf(bytes, copied);
+            }
+            ByteBuffer buffer = regions[region].duplicate();
+            buffer.position((int) ((position + copied) & REGION_MASK));
+            int n = Math.min(length - copied, buffer.remaining());
+            buffer.get(bytes, copied, n);
+            copied += n;
+        }
+        return bytes;
+    }
+}
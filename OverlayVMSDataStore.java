@@ -0,0 +1,168 @@
+package io.grpc.proxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link VMSDataStore} of records ingested on top of a read-only base store.
+ *
+ * <p>Ingested records go to an append-only delta shared by every version of the overlay; a
+ * version sees the delta records appended before it was created, at the positions following
+ * the base records. Unlike the other stores, a lookup returns the latest record for a key, so
+ * ingesting a key again replaces it; a lookup on an older version may already see a newer
+ * record. Listings still return each replaced record until {@link #merged} folds the delta
+ * into a new base. Only one thread may append.
+ */
+public final class OverlayVMSDataStore implements VMSDataStore {
+
+    private final VMSDataStore base;
+    private final Delta delta;
+    private final int deltaSize;
+
+    public OverlayVMSDataStore(VMSDataStore base) {
+        this(base, new Delta(), 0);
+    }
+
+    private OverlayVMSDataStore(VMSDataStore base, Delta delta, int deltaSize) {
+        this.base = base;
+        this.delta = delta;
+        this.deltaSize = deltaSize;
+    }
+
+    /**
+     * Returns a new version also holding {@code responses}. This version is left as it was.
+     */
+    OverlayVMSDataStore append(List<VMSDataResponse> responses) {
+        for (VMSDataResponse response : responses) {
+            delta.add(response);
+        }
+        return new OverlayVMSDataStore(base, delta, delta.size);
+    }
+
+    /**
+     * Records of this version with every replaced record left out: the base records whose key
+     * is not in the delta, then the latest delta record of each key.
+     */
+    List<VMSDataResponse> merged() {
+        Set<IndexedVMSDataStore.Key> replaced = new HashSet<>(deltaSize * 2);
+        boolean[] latest = new boolean[deltaSize];
+        VMSDataResponse[] records = delta.records;
+        for (int i = deltaSize - 1; i >= 0; i--) {
+            latest[i] = replaced.add(Delta.key(records[i]));
+        }
+        List<VMSDataResponse> merged = new ArrayList<>(base.size() + replaced.size());
+        for (int i = 0; i < base.size(); i++) {
+            VMSDataResponse response = base.get(i);
+            if (replaced.isEmpty() || !replaced.contains(Delta.key(response))) {
+                merged.add(response);
+            }
+        }
+        for (int i = 0; i < deltaSize; i++) {
+            if (latest[i]) {
+                merged.add(records[i]);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns a version over {@code newBase} holding the delta records this version has and
+     * {@code merged} has not, where {@code merged} is an older version whose records
+     * {@code newBase} holds.
+     */
+    OverlayVMSDataStore rebase(VMSDataStore newBase, OverlayVMSDataStore merged) {
+        Delta rest = new Delta();
+        VMSDataResponse[] records = delta.records;
+        for (int i = merged.deltaSize; i < deltaSize; i++) {
+            rest.add(records[i]);
+        }
+        return new OverlayVMSDataStore(newBase, rest, rest.size);
+    }
+
+    VMSDataStore base() {
+        return base;
+    }
+
+    /**
+     * Number of ingested records in this version, replaced ones included.
+     */
+    int deltaSize() {
+        return deltaSize;
+    }
+
+    @Override
+    public VMSDataResponse get(String guid, int sourceid) {
+        int index = delta.indexOf(guid, sourceid);
+        return index >= 0 ? delta.records[index] : base.get(guid, sourceid);
+    }
+
+    @Override
+    public int indexOf(String guid, int sourceid) {
+        int index = delta.indexOf(guid, sourceid);
+        return index >= 0 ? base.size() + index : base.indexOf(guid, sourceid);
+    }
+
+    @Override
+    public boolean mightContain(String guid, int sourceid) {
+        return delta.indexOf(guid, sourceid) >= 0 || base.mightContain(guid, sourceid);
+    }
+
+    /**
+     * Returns the record at {@code index}. Positions returned by {@link #indexOf} are valid even
+     * when they belong to a newer version.
+     */
+    @Override
+    public VMSDataResponse get(int index) {
+        int baseSize = base.size();
+        if (index < baseSize) {
+            return base.get(index);
+        }
+        if (index - baseSize >= delta.size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        }
+        return delta.records[index - baseSize];
+    }
+
+    @Override
+    public int size() {
+        return base.size() + deltaSize;
+    }
+
+    /**
+     * Ingested records in append order and the position of the latest one for each key.
+     */
+    private static final class Delta {
+        // Replaced by a longer copy when full, so readers always find their records in it.
+        private volatile VMSDataResponse[] records = new VMSDataResponse[1024];
+        private volatile int size;
+        private final ConcurrentHashMap<IndexedVMSDataStore.Key, Integer> positions = new ConcurrentHashMap<>();
+
+        void add(VMSDataResponse response) {
+            VMSDataResponse[] current = records;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+                records = current;
+            }
+            current[size] = response;
+            positions.put(key(response), size);
+            size++;
+        }
+
+        int indexOf(String guid, int sourceid) {
+            if (positions.isEmpty()) {
+                return -1;
+            }
+            Integer index = positions.get(new IndexedVMSDataStore.Key(guid, sourceid));
+            return index == null ? -1 : index;
+        }
+
+        static IndexedVMSDataStore.Key key(VMSDataResponse response) {
+            Item item = response.getItem();
+            return new IndexedVMSDataStore.Key(item.getGuid(), item.getSourceid());
+        }
+    }
+}
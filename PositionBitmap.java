@@ -0,0 +1,238 @@
+package io.grpc.proxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable compressed set of record positions, laid out like a roaring bitmap.
+ *
+ * <p>Positions are split by their high 16 bits into chunks of 65536. A chunk holding at most
+ * {@value #ARRAY_MAX} positions keeps them as a sorted array of their low 16 bits; a fuller chunk
+ * keeps an 8 KiB bitmap. Sparse sets thus cost about two bytes per position and dense ones at
+ * most one bit per position in their range, and intersecting two sets only compares the chunks
+ * both have.
+ */
+final class PositionBitmap {
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    static final PositionBitmap EMPTY = new PositionBitmap(new char[0], new Object[0], 0);
+
+    // High 16 bits of each chunk, ascending.
+    private final char[] keys;
+    // A char[] of sorted low bits or a long[] bitmap per chunk.
+    private final Object[] containers;
+    private final int cardinality;
+
+    private PositionBitmap(char[] keys, Object[] containers, int cardinality) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * Set of the strictly ascending, non-negative {@code positions[from..to)}.
+     */
+    static PositionBitmap of(int[] positions, int from, int to) {
+        Chunks chunks = new Chunks();
+        int start = from;
+        while (start < to) {
+            int key = positions[start] >>> 16;
+            int end = start + 1;
+            while (end < to && positions[end] >>> 16 == key) {
+                end++;
+            }
+            int count = end - start;
+            if (count <= ARRAY_MAX) {
+                char[] lows = new char[count];
+                for (int i = 0; i < count; i++) {
+                    lows[i] = (char) positions[start + i];
+                }
+                chunks.add(key, lows, count);
+            } else {
+                long[] words = new long[BITMAP_WORDS];
+                for (int i = start; i < end; i++) {
+                    int low = positions[i] & 0xFFFF;
+                    words[low >>> 6] |= 1L << low;
+                }
+                chunks.add(key, words, count);
+            }
+            start = end;
+        }
+        return chunks.build();
+    }
+
+    /**
+     * Set of {@code positions[from..to)}, which may come in any order but hold no duplicates.
+     */
+    static PositionBitmap ofUnsorted(int[] positions, int from, int to) {
+        int[] sorted = Arrays.copyOfRange(positions, from, to);
+        Arrays.sort(sorted);
+        return of(sorted, 0, sorted.length);
+    }
+
+    int cardinality() {
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    boolean contains(int position) {
+        int chunk = Arrays.binarySearch(keys, (char) (position >>> 16));
+        if (position < 0 || chunk < 0) {
+            return false;
+        }
+        int low = position & 0xFFFF;
+        Object container = containers[chunk];
+        if (container instanceof char[]) {
+            return Arrays.binarySearch((char[]) container, (char) low) >= 0;
+        }
+        return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+    }
+
+    /**
+     * Positions in both sets.
+     */
+    PositionBitmap and(PositionBitmap other) {
+        Chunks chunks = new Chunks();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                and(keys[i], containers[i], other.containers[j], chunks);
+                i++;
+                j++;
+            }
+        }
+        return chunks.build();
+    }
+
+    private static void and(int key, Object a, Object b, Chunks chunks) {
+        if (a instanceof char[] && b instanceof char[]) {
+            char[] left = (char[]) a;
+            char[] right = (char[]) b;
+            char[] both = new char[Math.min(left.length, right.length)];
+            int count = 0;
+            for (int i = 0, j = 0; i < left.length && j < right.length; ) {
+                if (left[i] < right[j]) {
+                    i++;
+                } else if (left[i] > right[j]) {
+                    j++;
+                } else {
+                    both[count++] = left[i];
+                    i++;
+                    j++;
+                }
+            }
+            chunks.add(key, Arrays.copyOf(both, count), count);
+        } else if (a instanceof char[] || b instanceof char[]) {
+            char[] lows = (char[]) (a instanceof char[] ? a : b);
+            long[] words = (long[]) (a instanceof char[] ? b : a);
+            char[] both = new char[lows.length];
+            int count = 0;
+            for (char low : lows) {
+                if ((words[low >>> 6] & (1L << low)) != 0) {
+                    both[count++] = low;
+                }
+            }
+            chunks.add(key, Arrays.copyOf(both, count), count);
+        } else {
+            long[] left = (long[]) a;
+            long[] right = (long[]) b;
+            long[] both = new long[BITMAP_WORDS];
+            int count = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                both[i] = left[i] & right[i];
+                count += Long.bitCount(both[i]);
+            }
+            chunks.add(key, count <= ARRAY_MAX ? toArray(both, count) : both, count);
+        }
+    }
+
+    private static char[] toArray(long[] words, int count) {
+        char[] lows = new char[count];
+        int n = 0;
+        for (int i = 0; i < words.length; i++) {
+            for (long word = words[i]; word != 0; word &= word - 1) {
+                lows[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+            }
+        }
+        return lows;
+    }
+
+    /**
+     * Smallest position in the set that is at least {@code from}, or -1 if there is none.
+     */
+    int next(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        int chunk = Arrays.binarySearch(keys, (char) (from >>> 16));
+        if (chunk >= 0) {
+            int found = nextInChunk(chunk, from & 0xFFFF);
+            if (found >= 0) {
+                return found;
+            }
+            chunk++;
+        } else {
+            chunk = -chunk - 1;
+        }
+        return chunk < keys.length ? nextInChunk(chunk, 0) : -1;
+    }
+
+    private int nextInChunk(int chunk, int low) {
+        int base = keys[chunk] << 16;
+        Object container = containers[chunk];
+        if (container instanceof char[]) {
+            char[] lows = (char[]) container;
+            int found = Arrays.binarySearch(lows, (char) low);
+            int index = found >= 0 ? found : -found - 1;
+            return index < lows.length ? base + lows[index] : -1;
+        }
+        long[] words = (long[]) container;
+        int word = low >>> 6;
+        long bits = words[word] & (-1L << low);
+        while (true) {
+            if (bits != 0) {
+                return base + (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == BITMAP_WORDS) {
+                return -1;
+            }
+            bits = words[word];
+        }
+    }
+
+    /**
+     * Chunks collected in key order.
+     */
+    private static final class Chunks {
+        private final List<Object> containers = new ArrayList<>();
+        private char[] keys = new char[4];
+        private int cardinality;
+
+        void add(int key, Object container, int count) {
+            if (count == 0) {
+                return;
+            }
+            int size = containers.size();
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            keys[size] = (char) key;
+            containers.add(container);
+            cardinality += count;
+        }
+
+        PositionBitmap build() {
+            return new PositionBitmap(Arrays.copyOf(keys, containers.size()), containers.toArray(), cardinality);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.grpc.proxy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.protobuf.ProtoUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Serialized bytes of the {@link VMSDataResponse}s the server sends, so a hot record is encoded
+ * once instead of on every call.
+ *
+ * <p>Entries are keyed by the identity of the response object and weighted by the length of its
+ * bytes; the least recently used ones are evicted beyond {@code maximumBytes}. Keys are held
+ * weakly, so records dropped by a reload leave the cache with them. Only stores handing out the
+ * same object for a key, like the heap stores, get hits: {@link MappedVMSDataStore} parses a new
+ * object on every lookup.
+ */
+public final class SerializedResponseCache {
+
+    // Methods whose responses are VMSDataResponse messages.
+    private static final Set<String> METHODS = new HashSet<>(Arrays.asList(
+            FarmGrpc.getGetFarmMessageMethod().getFullMethodName(),
+            FarmGrpc.getListFarmMessageBySmallWrapperMethod().getFullMethodName(),
+            FarmGrpc.getQueryFarmMessagesMethod().getFullMethodName()));
+
+    private final Cache<VMSDataResponse, byte[]> cache;
+    private final MethodDescriptor.Marshaller<VMSDataResponse> marshaller = new CachingMarshaller();
+
+    public SerializedResponseCache(long maximumBytes) {
+        this.cache = CacheBuilder.newBuilder()
+                .weakKeys()
+                .maximumWeight(maximumBytes)
+                .weigher(new Weigher<VMSDataResponse, byte[]>() {
+                    @Override
+                    public int weigh(VMSDataResponse response, byte[] bytes) {
+                        return bytes.length;
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Serialized form of {@code response}, encoding and caching it on a miss.
+     */
+    public byte[] bytes(VMSDataResponse response) {
+        byte[] bytes = cache.getIfPresent(response);
+        if (bytes == null) {
+            bytes = response.toByteArray();
+            cache.put(response, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Response marshaller writing the cached bytes. Parsing is left to the protobuf marshaller.
+     */
+    public MethodDescriptor.Marshaller<VMSDataResponse> marshaller() {
+        return marshaller;
+    }
+
+    /**
+     * Returns {@code service} with the methods answering VMSDataResponse messages sending them
+     * through this cache. Other methods are kept as they are.
+     */
+    @SuppressWarnings("unchecked")
+    public ServerServiceDefinition intercept(ServerServiceDefinition service) {
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(service.getServiceDescriptor().getName());
+        for (ServerMethodDefinition<?, ?> method : service.getMethods()) {
+            if (METHODS.contains(method.getMethodDescriptor().getFullMethodName())) {
+                builder.addMethod(withCachedResponses((ServerMethodDefinition<Object, VMSDataResponse>) method));
+            } else {
+                builder.addMethod(method);
+            }
+        }
+        return builder.build();
+    }
+
+    private <ReqT> ServerMethodDefinition<ReqT, VMSDataResponse> withCachedResponses(
+            ServerMethodDefinition<ReqT, VMSDataResponse> method) {
+        MethodDescriptor<ReqT, VMSDataResponse> descriptor = method.getMethodDescriptor();
+        return ServerMethodDefinition.create(descriptor.toBuilder(descriptor.getRequestMarshaller(), marshaller).build(),
+                method.getServerCallHandler());
+    }
+
+    /**
+     * Hit, miss and eviction counters since the cache was created.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private final class CachingMarshaller implements MethodDescriptor.Marshaller<VMSDataResponse> {
+        private final MethodDescriptor.Marshaller<VMSDataResponse> proto =
+                ProtoUtils.marshaller(VMSDataResponse.getDefaultInstance());
+
+        @Override
+        public InputStream stream(VMSDataResponse value) {
+            return new SerializedStream(bytes(value));
+        }
+
+        @Override
+        public VMSDataResponse parse(InputStream stream) {
+            return proto.parse(stream);
+        }
+    }
+
+    /**
+     * Stream over cached bytes. The transport sees its length up front and drains it into its
+     * pooled outbound buffer in one copy.
+     */
+    private static final class SerializedStream extends ByteArrayInputStream implements Drainable, KnownLength {
+        SerializedStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int drainTo(OutputStream target) throws IOException {
+            int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
+    }
+}
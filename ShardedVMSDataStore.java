@@ -0,0 +1,151 @@
+package io.grpc.proxy;
+
+import java.util.Collection;
+
+/**
+ * {@link VMSDataStore} partitioned by a hash of (guid, sourceid) into independent
+ * {@link IndexedVMSDataStore} shards.
+ *
+ * <p>Each shard has its own records, probe table and key filter, so the threads serving one
+ * shard keep only that shard's arrays in their caches. A lookup touches exactly one shard.
+ * Positions keep the order records were added in, as in an unsharded store, so listings and
+ * {@code resume_after} do not depend on the shard count; a map from each position to its shard
+ * and the record's index there, and back, costs 12 bytes per record. Within a shard records keep
+ * their order too, so the first record of a duplicate key still wins.
+ */
+public final class ShardedVMSDataStore implements VMSDataStore {
+
+    private final IndexedVMSDataStore[] shards;
+    // Shard and index within it of the record at each position.
+    private final int[] shardAt;
+    private final int[] indexAt;
+    // Position of each record of each shard.
+    private final int[][] positions;
+
+    private ShardedVMSDataStore(IndexedVMSDataStore[] shards, int[] shardAt, int[] indexAt) {
+        this.shards = shards;
+        this.shardAt = shardAt;
+        this.indexAt = indexAt;
+        this.positions = new int[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            positions[i] = new int[shards[i].size()];
+        }
+        for (int position = 0; position < shardAt.length; position++) {
+            positions[shardAt[position]][indexAt[position]] = position;
+        }
+    }
+
+    /**
+     * Partitions {@code responses} into {@code shardCount} shards.
+     */
+    public static ShardedVMSDataStore of(Collection<VMSDataResponse> responses, int shardCount) {
+        Partition partition = new Partition(shardCount, responses.size());
+        for (VMSDataResponse response : responses) {
+            partition.add(response);
+        }
+        return partition.build();
+    }
+
+    /**
+     * Partitions the records of {@code store} into {@code shardCount} heap shards.
+     */
+    public static ShardedVMSDataStore partition(VMSDataStore store, int shardCount) {
+        Partition partition = new Partition(shardCount, store.size());
+        for (int i = 0; i < store.size(); i++) {
+            partition.add(store.get(i));
+        }
+        return partition.build();
+    }
+
+    /**
+     * Shard owning the key. Uses the high half of the filter hash, which the probe tables inside
+     * the shards do not depend on.
+     */
+    static int shardOf(String guid, int sourceid, int shardCount) {
+        long hash = VMSKeyFilter.hash(guid, sourceid) >>> 32;
+        return (int) ((hash * shardCount) >>> 32);
+    }
+
+    public int shardOf(String guid, int sourceid) {
+        return shardOf(guid, sourceid, shards.length);
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public VMSDataStore shard(int shard) {
+        return shards[shard];
+    }
+
+    @Override
+    public VMSDataResponse get(String guid, int sourceid) {
+        return shards[shardOf(guid, sourceid)].get(guid, sourceid);
+    }
+
+    @Override
+    public int indexOf(String guid, int sourceid) {
+        int shard = shardOf(guid, sourceid);
+        int index = shards[shard].indexOf(guid, sourceid);
+        return index < 0 ? -1 : positions[shard][index];
+    }
+
+    @Override
+    public boolean mightContain(String guid, int sourceid) {
+        return shards[shardOf(guid, sourceid)].mightContain(guid, sourceid);
+    }
+
+    @Override
+    public VMSDataResponse get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        }
+        return shards[shardAt[index]].get(indexAt[index]);
+    }
+
+    @Override
+    public int size() {
+        return shardAt.length;
+    }
+
+    /**
+     * Builds the shards, recording where each record went.
+     */
+    private static final class Partition {
+        private final IndexedVMSDataStore.Builder[] builders;
+        private final int[] sizes;
+        private final int[] shardAt;
+        private final int[] indexAt;
+        private int size;
+
+        Partition(int shardCount, int size) {
+            if (shardCount < 1) {
+                throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+            }
+            builders = new IndexedVMSDataStore.Builder[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                builders[i] = IndexedVMSDataStore.newBuilder();
+            }
+            sizes = new int[shardCount];
+            shardAt = new int[size];
+            indexAt = new int[size];
+        }
+
+        void add(VMSDataResponse response) {
+            Item item = response.getItem();
+            int shard = shardOf(item.getGuid(), item.getSourceid(), builders.length);
+            builders[shard].add(response);
+            shardAt[size] = shard;
+            indexAt[size] = sizes[shard]++;
+            size++;
+        }
+
+        ShardedVMSDataStore build() {
+            IndexedVMSDataStore[] shards = new IndexedVMSDataStore[builders.length];
+            for (int i = 0; i < builders.length; i++) {
+                shards[i] = builders[i].build();
+            }
+            return new ShardedVMSDataStore(shards, shardAt, indexAt);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.grpc.proxy;
+
+import io.grpc.Codec;
+import io.grpc.netty.shaded.io.netty.buffer.ByteBuf;
+import io.grpc.netty.shaded.io.netty.buffer.Unpooled;
+import io.grpc.netty.shaded.io.netty.handler.codec.compression.Snappy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The {@code snappy} message encoding: Snappy is several times faster than gzip at a lower
+ * ratio, which suits the repetitive Farm records.
+ *
+ * <p>A message is cut in blocks of at most {@value #BLOCK} bytes, each compressed with Netty's
+ * pure-Java Snappy and written after its compressed length as a varint. The block size is the
+ * one Netty's Snappy framing uses.
+ */
+public final class SnappyCodec implements Codec {
+    public static final String ENCODING = "snappy";
+
+    private static final int BLOCK = Short.MAX_VALUE;
+
+    @Override
+    public String getMessageEncoding() {
+        return ENCODING;
+    }
+
+    @Override
+    public OutputStream compress(final OutputStream os) {
+        // gRPC closes the stream once the whole message is written.
+        return new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                ByteBuf in = Unpooled.wrappedBuffer(buf, 0, count);
+                ByteBuf block = Unpooled.buffer(Math.min(count, BLOCK) + 32);
+                Snappy snappy = new Snappy();
+                while (in.isReadable()) {
+                    int length = Math.min(in.readableBytes(), BLOCK);
+                    block.clear();
+                    // Encoding only works from the start of its input, hence the slice.
+                    snappy.encode(in.readSlice(length), block, length);
+                    writeVarint(os, block.readableBytes());
+                    os.write(block.array(), block.arrayOffset(), block.readableBytes());
+                }
+                os.close();
+            }
+        };
+    }
+
+    @Override
+    public InputStream decompress(InputStream is) throws IOException {
+        ByteBuf in = Unpooled.wrappedBuffer(readFully(is));
+        ByteBuf out = Unpooled.buffer(in.readableBytes() * 4);
+        Snappy snappy = new Snappy();
+        while (in.isReadable()) {
+            int length = readVarint(in);
+            if (length > in.readableBytes()) {
+                throw new IOException("Truncated snappy block: " + length + " bytes, " + in.readableBytes() + " left");
+            }
+            snappy.decode(in.readSlice(length), out);
+            snappy.reset();
+        }
+        return new ByteArrayInputStream(out.array(), out.arrayOffset() + out.readerIndex(), out.readableBytes());
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(is.available(), 64));
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = is.read(chunk)) != -1) {
+            bytes.write(chunk, 0, read);
+        }
+        is.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeVarint(OutputStream os, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            os.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        os.write(value);
+    }
+
+    private static int readVarint(ByteBuf in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!in.isReadable()) {
+                throw new IOException("Truncated snappy block length");
+            }
+            byte b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed snappy block length");
+    }
+}
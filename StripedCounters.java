@@ -0,0 +1,61 @@
+package io.grpc.proxy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed set of counters spread over per-thread stripes, so that threads updating the same
+ * counter rarely contend on one cache line.
+ *
+ * <p>Each stripe is a row holding every counter, padded so that two rows never share a cache
+ * line. A thread always updates the row picked by its id; reading a counter sums the rows, so
+ * reads are slower than updates and may miss updates that are in progress.
+ */
+final class StripedCounters {
+    // Longs per 64-byte cache line.
+    private static final int LINE = 8;
+    private static final int MAX_STRIPES = 64;
+
+    private final int counters;
+    private final int rowWidth;
+    private final int stripeMask;
+    private final AtomicLongArray cells;
+
+    StripedCounters(int counters) {
+        this.counters = counters;
+        // Round up to whole lines and add one line so neighbouring rows do not false share.
+        this.rowWidth = ((counters + LINE - 1) / LINE + 1) * LINE;
+        int wanted = Math.min(MAX_STRIPES, 2 * Runtime.getRuntime().availableProcessors());
+        int stripes = Integer.highestOneBit(wanted);
+        if (stripes < wanted) {
+            stripes <<= 1;
+        }
+        this.stripeMask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * rowWidth);
+    }
+
+    void add(int counter, long delta) {
+        cells.getAndAdd(row() + counter, delta);
+    }
+
+    void increment(int counter) {
+        add(counter, 1);
+    }
+
+    long sum(int counter) {
+        long sum = 0;
+        for (int row = 0; row < cells.length(); row += rowWidth) {
+            sum += cells.get(row + counter);
+        }
+        return sum;
+    }
+
+    int size() {
+        return counters;
+    }
+
+    private int row() {
+        long id = Thread.currentThread().getId();
+        int stripe = (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & stripeMask;
+        return stripe * rowWidth;
+    }
+}
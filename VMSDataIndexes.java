@@ -0,0 +1,307 @@
+package io.grpc.proxy;
+
+import com.google.protobuf.FieldMask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Secondary indexes on {@link Item#getOwner() owner}, {@link Item#getMessagetype() messagetype}
+ * and {@link Item#getSourceid() sourceid} of one {@link VMSDataStore}.
+ *
+ * <p>Owners and messagetypes, which take few distinct values, map each value to a
+ * {@link PositionBitmap} of the records having it. Sourceids are indexed by sorting the record
+ * positions by sourceid, so any range of sourceids is one contiguous slice. A query turns each
+ * predicate into a bitmap and intersects them, smallest first, so records that do not match are
+ * never read from the store. Records ingested after the indexes were built, which an
+ * {@link OverlayVMSDataStore} places after the indexed ones, are tested one by one.
+ */
+final class VMSDataIndexes {
+
+    final VMSDataStore store;
+    private final Map<String, PositionBitmap> byOwner;
+    private final Map<Integer, PositionBitmap> byMessagetype;
+    // Record positions ordered by sourceid, then position, and the sourceid of each.
+    private final int[] sourceidOrder;
+    private final int[] sourceidKeys;
+
+    private VMSDataIndexes(VMSDataStore store, Map<String, PositionBitmap> byOwner,
+                           Map<Integer, PositionBitmap> byMessagetype, int[] sourceidOrder, int[] sourceidKeys) {
+        this.store = store;
+        this.byOwner = byOwner;
+        this.byMessagetype = byMessagetype;
+        this.sourceidOrder = sourceidOrder;
+        this.sourceidKeys = sourceidKeys;
+    }
+
+    static VMSDataIndexes build(VMSDataStore store) {
+        Map<String, Postings> owners = new HashMap<>();
+        Map<Integer, Postings> messagetypes = new HashMap<>();
+        // Sourceid in the high half so sorting orders by sourceid, then position.
+        long[] bySourceid = new long[store.size()];
+        for (int i = 0; i < store.size(); i++) {
+            Item item = store.get(i).getItem();
+            Postings.add(owners, item.getOwner(), i);
+            Postings.add(messagetypes, item.getMessagetype(), i);
+            bySourceid[i] = (long) item.getSourceid() << 32 | i;
+        }
+        Arrays.sort(bySourceid);
+        int[] sourceidOrder = new int[bySourceid.length];
+        int[] sourceidKeys = new int[bySourceid.length];
+        for (int i = 0; i < bySourceid.length; i++) {
+            sourceidOrder[i] = (int) bySourceid[i];
+            sourceidKeys[i] = (int) (bySourceid[i] >> 32);
+        }
+        return new VMSDataIndexes(store, Postings.toBitmaps(owners), Postings.toBitmaps(messagetypes),
+                sourceidOrder, sourceidKeys);
+    }
+
+    /**
+     * Query for the records matching every non-default field of {@code filter} but the guid.
+     */
+    static FarmQuery filter(Item filter) {
+        FarmQuery.Builder query = FarmQuery.newBuilder();
+        if (!filter.getOwner().isEmpty()) {
+            query.addPredicatesBuilder().setOwner(filter.getOwner());
+        }
+        if (filter.getMessagetype() != 0) {
+            query.addPredicatesBuilder().setMessagetype(filter.getMessagetype());
+        }
+        if (filter.getSourceid() != 0) {
+            query.addPredicatesBuilder().getSourceidBuilder().setFrom(filter.getSourceid()).setTo(filter.getSourceid());
+        }
+        return query.build();
+    }
+
+    /**
+     * Query for the records matching the fields of {@code filter} named by {@code mask}, relative
+     * to a {@link VMSDataRequest}, whatever their values.
+     *
+     * @throws IllegalArgumentException if the mask names a field that cannot be filtered on
+     */
+    static FarmQuery filter(Item filter, FieldMask mask) {
+        FarmQuery.Builder query = FarmQuery.newBuilder();
+        for (String path : mask.getPathsList()) {
+            switch (path) {
+                case "item.owner":
+                    query.addPredicatesBuilder().setOwner(filter.getOwner());
+                    break;
+                case "item.messagetype":
+                    query.addPredicatesBuilder().setMessagetype(filter.getMessagetype());
+                    break;
+                case "item.sourceid":
+                    query.addPredicatesBuilder().getSourceidBuilder()
+                            .setFrom(filter.getSourceid()).setTo(filter.getSourceid());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Cannot filter on " + path);
+            }
+        }
+        return query.build();
+    }
+
+    /**
+     * Returns the records of {@code version} matching every predicate of {@code query}, in store
+     * order and starting after position {@code after}. {@code version} is the indexed store or
+     * an overlay over it.
+     *
+     * @throws IllegalArgumentException if a predicate tests nothing
+     */
+    Scan query(VMSDataStore version, FarmQuery query, int after) {
+        List<PositionBitmap> matches = new ArrayList<>(query.getPredicatesCount());
+        for (FarmQuery.Predicate predicate : query.getPredicatesList()) {
+            switch (predicate.getTestCase()) {
+                case OWNER:
+                    matches.add(owner(predicate.getOwner()));
+                    break;
+                case MESSAGETYPE:
+                    matches.add(messagetype(predicate.getMessagetype()));
+                    break;
+                case SOURCEID:
+                    addSourceids(matches, predicate.getSourceid().getFrom(), predicate.getSourceid().getTo());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Predicate " + matches.size() + " tests nothing");
+            }
+        }
+        return new Scan(store.size(), intersect(matches), version, query.getPredicatesList(), after);
+    }
+
+    /**
+     * Like {@link #query} without indexes, testing every record of {@code version}.
+     */
+    static Scan testEach(VMSDataStore version, FarmQuery query, int after) {
+        for (int i = 0; i < query.getPredicatesCount(); i++) {
+            if (query.getPredicates(i).getTestCase() == FarmQuery.Predicate.TestCase.TEST_NOT_SET) {
+                throw new IllegalArgumentException("Predicate " + i + " tests nothing");
+            }
+        }
+        return new Scan(0, null, version, query.getPredicatesList(), after);
+    }
+
+    private static boolean matches(List<FarmQuery.Predicate> predicates, Item item) {
+        for (FarmQuery.Predicate predicate : predicates) {
+            switch (predicate.getTestCase()) {
+                case OWNER:
+                    if (!predicate.getOwner().equals(item.getOwner())) {
+                        return false;
+                    }
+                    break;
+                case MESSAGETYPE:
+                    if (predicate.getMessagetype() != item.getMessagetype()) {
+                        return false;
+                    }
+                    break;
+                default:
+                    FarmQuery.SourceidRange range = predicate.getSourceid();
+                    if (item.getSourceid() < range.getFrom() || item.getSourceid() > range.getTo()) {
+                        return false;
+                    }
+            }
+        }
+        return true;
+    }
+
+    private PositionBitmap owner(String owner) {
+        PositionBitmap matches = byOwner.get(owner);
+        return matches == null ? PositionBitmap.EMPTY : matches;
+    }
+
+    private PositionBitmap messagetype(int messagetype) {
+        PositionBitmap matches = byMessagetype.get(messagetype);
+        return matches == null ? PositionBitmap.EMPTY : matches;
+    }
+
+    /**
+     * Adds the records with a sourceid from {@code from} to {@code to}, both included. Adds
+     * nothing if that is every record.
+     */
+    private void addSourceids(List<PositionBitmap> matches, int from, int to) {
+        if (from > to) {
+            matches.add(PositionBitmap.EMPTY);
+            return;
+        }
+        int start = firstAtLeast(from);
+        int end = to == Integer.MAX_VALUE ? sourceidKeys.length : firstAtLeast(to + 1);
+        if (start == 0 && end == sourceidKeys.length) {
+            return;
+        }
+        // A single sourceid's slice is already in position order.
+        matches.add(from == to
+                ? PositionBitmap.of(sourceidOrder, start, end)
+                : PositionBitmap.ofUnsorted(sourceidOrder, start, end));
+    }
+
+    private int firstAtLeast(int sourceid) {
+        int low = 0;
+        int high = sourceidKeys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sourceidKeys[mid] < sourceid) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Intersection of {@code matches}, or null for all records when there are none.
+     */
+    private static PositionBitmap intersect(List<PositionBitmap> matches) {
+        if (matches.isEmpty()) {
+            return null;
+        }
+        Collections.sort(matches, new Comparator<PositionBitmap>() {
+            @Override
+            public int compare(PositionBitmap a, PositionBitmap b) {
+                return Integer.compare(a.cardinality(), b.cardinality());
+            }
+        });
+        PositionBitmap result = matches.get(0);
+        for (int i = 1; i < matches.size() && !result.isEmpty(); i++) {
+            result = result.and(matches.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Cursor over matching record positions.
+     */
+    static final class Scan {
+        private final int size;
+        // Null when every indexed record matches.
+        private final PositionBitmap matches;
+        // The scanned version, whose records from size to end are not indexed.
+        private final VMSDataStore version;
+        private final int end;
+        private final List<FarmQuery.Predicate> predicates;
+        private int next;
+
+        private Scan(int size, PositionBitmap matches, VMSDataStore version, List<FarmQuery.Predicate> predicates,
+                     int after) {
+            this.size = size;
+            this.matches = matches;
+            this.version = version;
+            this.end = version.size();
+            this.predicates = predicates;
+            this.next = after + 1;
+        }
+
+        /**
+         * Returns the next matching position, or -1 when the scan is done.
+         */
+        int next() {
+            if (next < size) {
+                int found = matches == null ? next : matches.next(next);
+                if (found >= 0) {
+                    next = found + 1;
+                    return found;
+                }
+                next = size;
+            }
+            while (next < end) {
+                int position = next++;
+                if (matches(predicates, version.get(position).getItem())) {
+                    return position;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Growable list of ascending positions.
+     */
+    private static final class Postings {
+        private int[] positions = new int[4];
+        private int size;
+
+        static <K> void add(Map<K, Postings> index, K value, int position) {
+            Postings postings = index.get(value);
+            if (postings == null) {
+                postings = new Postings();
+                index.put(value, postings);
+            }
+            if (postings.size == postings.positions.length) {
+                postings.positions = Arrays.copyOf(postings.positions, postings.size * 2);
+            }
+            postings.positions[postings.size++] = position;
+        }
+
+        static <K> Map<K, PositionBitmap> toBitmaps(Map<K, Postings> index) {
+            Map<K, PositionBitmap> bitmaps = new HashMap<>(index.size() * 2);
+            for (Map.Entry<K, Postings> entry : index.entrySet()) {
+                Postings postings = entry.getValue();
+                bitmaps.put(entry.getKey(), PositionBitmap.of(postings.positions, 0, postings.size));
+            }
+            return bitmaps;
+        }
+    }
+}
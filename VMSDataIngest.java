@@ -0,0 +1,240 @@
+package io.grpc.proxy;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes items streamed to a {@link FarmServer} durable and visible to lookups.
+ *
+ * <p>Items are appended to a {@link VMSDataLog} in {@code directory}. Once a group is on disk
+ * it is applied to the served store by publishing a new {@link OverlayVMSDataStore} version
+ * with a single {@link AtomicReference#set}, as a reload would. When the log closes a segment and
+ * the overlay holds at least an eighth of the base's records, a background thread merges the
+ * records of the current version into a snapshot file, {@code directory/snapshot.vms}, of the
+ * same store type as the base, indexes them and swaps in an overlay over the merged records
+ * holding only what was ingested since, and deletes the segments the snapshot covers. Smaller
+ * overlays wait, so compaction costs stay proportional to what was ingested. On start the
+ * segments left by a crash are replayed over the store, and compacted by the same rule;
+ * replaying a segment already in the snapshot just writes the same records again.
+ *
+ * <p>The ingest owns the served store: a {@link VMSDataReloader} on the same server would
+ * replace it and drop the ingested records that are not yet in the snapshot, so
+ * {@link FarmServer} does not start both.
+ */
+public final class VMSDataIngest implements VMSDataIngestMXBean {
+    private static final Logger logger = Logger.getLogger(VMSDataIngest.class.getName());
+
+    static final String SNAPSHOT = "snapshot.vms";
+    // Overlays smaller than this, or than an eighth of the base, are not compacted yet.
+    private static final int MIN_COMPACT_RECORDS = 1 << 16;
+
+    private final File directory;
+    private final AtomicReference<VMSDataVersion> target;
+    private final ExecutorService compactor;
+    // Held while publishing a version, so appends and compactions do not overwrite each other.
+    private final Object publishLock = new Object();
+    private VMSDataLog log;
+
+    private final AtomicLong ingested = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong failedCompactions = new AtomicLong();
+
+    private VMSDataIngest(File directory, AtomicReference<VMSDataVersion> target) {
+        this.directory = directory;
+        this.target = target;
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "vms-data-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Replays the segments in {@code directory} over {@code target} and starts logging,
+     * committing every {@code commitInterval} and closing segments at {@code segmentBytes}.
+     */
+    public static VMSDataIngest open(File directory, AtomicReference<VMSDataVersion> target, long commitInterval,
+                                     TimeUnit unit, long segmentBytes) throws IOException {
+        final VMSDataIngest ingest = new VMSDataIngest(directory, target);
+        final List<VMSDataResponse> replayed = new ArrayList<>();
+        List<File> segments = VMSDataLog.segments(directory);
+        for (File segment : segments) {
+            VMSDataLog.replay(segment, new VMSDataLoader.Sink() {
+                @Override
+                public void accept(VMSDataResponse response) {
+                    replayed.add(response);
+                }
+            });
+        }
+        if (!segments.isEmpty()) {
+            logger.info("Replayed " + replayed.size() + " records from " + segments.size() + " log segments");
+            ingest.apply(replayed);
+            ingest.compact(segments);
+        }
+        ingest.log = VMSDataLog.open(directory, commitInterval, unit, segmentBytes,
+                new VMSDataLog.Listener() {
+                    @Override
+                    public void committed(List<Item> items) {
+                        List<VMSDataResponse> responses = new ArrayList<>(items.size());
+                        for (Item item : items) {
+                            responses.add(VMSDataResponse.newBuilder().setItem(item).build());
+                        }
+                        ingest.apply(responses);
+                        ingest.ingested.addAndGet(items.size());
+                    }
+
+                    @Override
+                    public void rolled(File segment) {
+                        List<File> covered = new ArrayList<>();
+                        covered.add(segment);
+                        ingest.compact(covered);
+                    }
+                });
+        return ingest;
+    }
+
+    /**
+     * Snapshot an ingest in {@code directory} compacts into; serve it on restart.
+     */
+    public static File snapshotFile(File directory) {
+        return new File(directory, SNAPSHOT);
+    }
+
+    /**
+     * Appends {@code item}, returning a future completed once it is durable and visible to
+     * lookups. Never blocks.
+     */
+    public ListenableFuture<Void> append(Item item) {
+        return log.append(item);
+    }
+
+    private void apply(List<VMSDataResponse> responses) {
+        synchronized (publishLock) {
+            VMSDataVersion current = target.get();
+            OverlayVMSDataStore overlay = current.store() instanceof OverlayVMSDataStore
+                    ? (OverlayVMSDataStore) current.store()
+                    : new OverlayVMSDataStore(current.store());
+            // Same base, so the indexes still hold.
+            target.set(current.withStore(overlay.append(responses)));
+        }
+    }
+
+    /**
+     * Folds the version current when the compactor gets to it into the snapshot if its overlay
+     * is large enough, then deletes {@code segments} and the ones before, whose records that
+     * version holds.
+     */
+    private void compact(final List<File> segments) {
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (compact(target.get().store(), segments)) {
+                        compactions.incrementAndGet();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // The segments stay and are compacted again with the next one.
+                    failedCompactions.incrementAndGet();
+                    logger.log(Level.WARNING, "Compacting " + segments + " failed", e);
+                }
+            }
+        });
+    }
+
+    private boolean compact(VMSDataStore version, List<File> segments) throws IOException {
+        if (!(version instanceof OverlayVMSDataStore)) {
+            return false;
+        }
+        OverlayVMSDataStore merged = (OverlayVMSDataStore) version;
+        if (merged.deltaSize() < Math.max(MIN_COMPACT_RECORDS, merged.base().size() / 8)) {
+            // The segments stay until a later compaction covers them.
+            return false;
+        }
+        long start = System.nanoTime();
+        File snapshot = snapshotFile(directory);
+        List<VMSDataResponse> records = merged.merged();
+        VMSDataStore base = merged.base();
+        VMSDataStore compacted;
+        if (base instanceof CompactVMSDataStore) {
+            compacted = CompactVMSDataStore.of(records);
+        } else if (base instanceof ShardedVMSDataStore) {
+            compacted = ShardedVMSDataStore.of(records, ((ShardedVMSDataStore) base).shardCount());
+        } else {
+            compacted = IndexedVMSDataStore.of(records);
+        }
+        VMSDataSnapshot.write(compacted, snapshot);
+        if (base instanceof MappedVMSDataStore) {
+            // Keep serving from a mapped snapshot rather than holding every record on the heap.
+            compacted = VMSDataSnapshot.open(snapshot);
+        }
+        VMSDataIndexes indexes = VMSDataIndexes.build(compacted);
+        synchronized (publishLock) {
+            VMSDataStore current = target.get().store();
+            if (!(current instanceof OverlayVMSDataStore) || ((OverlayVMSDataStore) current).base() != base) {
+                logger.warning("Store was replaced during compaction, keeping log segments " + segments);
+                return false;
+            }
+            target.set(VMSDataVersion.of(((OverlayVMSDataStore) current).rebase(compacted, merged), indexes));
+        }
+        for (File segment : VMSDataLog.segments(directory)) {
+            // Earlier segments whose compaction failed are in this snapshot too.
+            if (segment.compareTo(segments.get(segments.size() - 1)) <= 0 && !segment.delete()) {
+                logger.warning("Could not delete compacted log segment " + segment);
+            }
+        }
+        logger.info("Compacted " + records.size() + " records into " + snapshot + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return true;
+    }
+
+    @Override
+    public long getIngestedCount() {
+        return ingested.get();
+    }
+
+    @Override
+    public long getCommitCount() {
+        return log.getCommitCount();
+    }
+
+    @Override
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    @Override
+    public long getFailedCompactionCount() {
+        return failedCompactions.get();
+    }
+
+    @Override
+    public int getPendingRecordCount() {
+        VMSDataStore current = target.get().store();
+        return current instanceof OverlayVMSDataStore ? ((OverlayVMSDataStore) current).deltaSize() : 0;
+    }
+
+    /**
+     * Commits what was appended and stops. Records not compacted yet stay in the log segments
+     * and are replayed on the next start.
+     */
+    public void close() throws InterruptedException {
+        log.close();
+        compactor.shutdown();
+        compactor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
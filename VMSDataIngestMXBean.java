@@ -0,0 +1,23 @@
+package io.grpc.proxy;
+
+/**
+ * JMX view of a {@link VMSDataIngest}.
+ */
+public interface VMSDataIngestMXBean {
+
+    long getIngestedCount();
+
+    /**
+     * Groups written and fsynced, each holding every item appended during one commit interval.
+     */
+    long getCommitCount();
+
+    long getCompactionCount();
+
+    long getFailedCompactionCount();
+
+    /**
+     * Ingested records not yet folded into the snapshot, replaced ones included.
+     */
+    int getPendingRecordCount();
+}
@@ -0,0 +1,533 @@
+package io.grpc.proxy;
+
+import com.google.common.io.BaseEncoding;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Streams the {@code response} array of a VMS database JSON file one record at a time.
+ *
+ * <p>Only the record being parsed is held in memory, so the file size does not bound the heap.
+ * Each record is read token by token straight into its protobuf builder, without a JSON tree
+ * or a second parse by {@code JsonFormat}.
+ *
+ * <p>With a parallelism above one, the reading thread only finds where each element of the
+ * array starts and ends, tracking nesting and strings character by character, and cuts the
+ * array into chunks of {@link #CHUNK_SIZE} raw records. A fixed pool reads each chunk into
+ * builders the same way. Chunks reach the sink in file order and at most two per worker are in
+ * flight, so memory stays bounded.
+ */
+public final class VMSDataLoader {
+    private static final Logger logger = Logger.getLogger(VMSDataLoader.class.getName());
+
+    private static final long DEFAULT_PROGRESS_INTERVAL = 1000000;
+
+    static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Receives each record as it is loaded.
+     */
+    public interface Sink {
+        void accept(VMSDataResponse response);
+    }
+
+    /**
+     * Notified every {@code progressInterval} records and once when loading is done.
+     */
+    public interface ProgressListener {
+        void onProgress(long records, long bytes);
+    }
+
+    private final int parallelism;
+    private final long progressInterval;
+    private final ProgressListener listener;
+
+    public VMSDataLoader() {
+        this(1);
+    }
+
+    /**
+     * A loader reading records on {@code parallelism} threads, or on the calling thread if it is one.
+     */
+    public VMSDataLoader(int parallelism) {
+        this(parallelism, DEFAULT_PROGRESS_INTERVAL, new ProgressListener() {
+            @Override
+            public void onProgress(long records, long bytes) {
+                logger.info("Loaded " + records + " VMS records (" + bytes + " bytes)");
+            }
+        });
+    }
+
+    public VMSDataLoader(long progressInterval, ProgressListener listener) {
+        this(1, progressInterval, listener);
+    }
+
+    public VMSDataLoader(int parallelism, long progressInterval, ProgressListener listener) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.progressInterval = progressInterval;
+        this.listener = listener;
+    }
+
+    /**
+     * Loads every record of {@code file} into {@code sink} and returns the number of records.
+     */
+    public long load(URL file, Sink sink) throws IOException {
+        CountingInputStream input = new CountingInputStream(file.openStream());
+        try {
+            Reader reader = new InputStreamReader(input, Charset.forName("UTF-8"));
+            try {
+                Progress progress = new Progress(input);
+                if (parallelism > 1) {
+                    RecordSplitter records = new RecordSplitter(reader);
+                    if (records.seekResponseArray()) {
+                        loadParallel(records, sink, progress);
+                    }
+                } else {
+                    JsonReader json = new JsonReader(reader);
+                    if (seekResponseArray(json)) {
+                        loadRecords(json, sink, progress);
+                    }
+                }
+                listener.onProgress(progress.records, input.count);
+                return progress.records;
+            } catch (JsonParseException | IllegalStateException e) {
+                throw new IOException("Malformed VMS database " + file, e);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Moves the reader into the top-level {@code response} array. Returns false if there is none.
+     */
+    private static boolean seekResponseArray(JsonReader json) throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            if (json.nextName().equals("response") && json.peek() == JsonToken.BEGIN_ARRAY) {
+                json.beginArray();
+                return true;
+            }
+            json.skipValue();
+        }
+        return false;
+    }
+
+    private static void loadRecords(JsonReader json, Sink sink, Progress progress) throws IOException {
+        while (json.hasNext()) {
+            VMSDataResponse.Builder builder = VMSDataResponse.newBuilder();
+            merge(json, builder);
+            sink.accept(builder.build());
+            progress.advance(1);
+        }
+    }
+
+    private void loadParallel(RecordSplitter records, Sink sink, Progress progress) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        // Chunks are drained in submission order; capping them bounds the records in flight.
+        ArrayDeque<Future<List<VMSDataResponse>>> pending = new ArrayDeque<>();
+        try {
+            while (true) {
+                final String chunk = records.nextChunk(CHUNK_SIZE);
+                if (chunk == null) {
+                    break;
+                }
+                pending.add(executor.submit(new Callable<List<VMSDataResponse>>() {
+                    @Override
+                    public List<VMSDataResponse> call() throws IOException {
+                        return readChunk(chunk);
+                    }
+                }));
+                if (pending.size() >= 2 * parallelism) {
+                    drain(pending.poll(), sink, progress);
+                }
+            }
+            while (!pending.isEmpty()) {
+                drain(pending.poll(), sink, progress);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads a chunk, a JSON array of raw records, into builders.
+     */
+    private static List<VMSDataResponse> readChunk(String chunk) throws IOException {
+        JsonReader json = new JsonReader(new StringReader(chunk));
+        List<VMSDataResponse> responses = new ArrayList<>(CHUNK_SIZE);
+        json.beginArray();
+        while (json.hasNext()) {
+            VMSDataResponse.Builder builder = VMSDataResponse.newBuilder();
+            merge(json, builder);
+            responses.add(builder.build());
+        }
+        json.endArray();
+        return responses;
+    }
+
+    private static void drain(Future<List<VMSDataResponse>> chunk, Sink sink, Progress progress) throws IOException {
+        List<VMSDataResponse> responses;
+        try {
+            responses = chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading VMS records", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        for (VMSDataResponse response : responses) {
+            sink.accept(response);
+        }
+        progress.advance(responses.size());
+    }
+
+    /**
+     * Reads one JSON object straight into {@code builder}, accepting what {@code JsonFormat}
+     * accepts for these messages: proto or JSON field names, numbers for string fields and
+     * quoted numbers for numeric ones, and null for a field left unset.
+     */
+    private static void merge(JsonReader json, Message.Builder builder) throws IOException {
+        Descriptors.Descriptor type = builder.getDescriptorForType();
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            Descriptors.FieldDescriptor field = type.findFieldByName(name);
+            if (field == null) {
+                field = findFieldByJsonName(type, name);
+            }
+            if (field == null) {
+                throw new IOException("Unknown field " + name + " in " + type.getFullName());
+            }
+            if (json.peek() == JsonToken.NULL) {
+                json.nextNull();
+            } else if (field.isRepeated()) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+                        Message.Builder element = builder.newBuilderForField(field);
+                        merge(json, element);
+                        builder.addRepeatedField(field, element.build());
+                    } else {
+                        builder.addRepeatedField(field, readValue(json, field));
+                    }
+                }
+                json.endArray();
+            } else if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+                merge(json, builder.getFieldBuilder(field));
+            } else {
+                builder.setField(field, readValue(json, field));
+            }
+        }
+        json.endObject();
+    }
+
+    private static Descriptors.FieldDescriptor findFieldByJsonName(Descriptors.Descriptor type, String name) {
+        for (Descriptors.FieldDescriptor field : type.getFields()) {
+            if (field.getJsonName().equals(name)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private static Object readValue(JsonReader json, Descriptors.FieldDescriptor field) throws IOException {
+        try {
+            switch (field.getJavaType()) {
+                case INT:
+                    return json.nextInt();
+                case LONG:
+                    return json.nextLong();
+                case FLOAT:
+                    return (float) json.nextDouble();
+                case DOUBLE:
+                    return json.nextDouble();
+                case BOOLEAN:
+                    return json.peek() == JsonToken.STRING
+                            ? Boolean.parseBoolean(json.nextString())
+                            : json.nextBoolean();
+                case STRING:
+                    return json.nextString();
+                case BYTE_STRING:
+                    return ByteString.copyFrom(BaseEncoding.base64().decode(json.nextString()));
+                case ENUM:
+                    Descriptors.EnumDescriptor type = field.getEnumType();
+                    Descriptors.EnumValueDescriptor value = json.peek() == JsonToken.NUMBER
+                            ? type.findValueByNumber(json.nextInt())
+                            : type.findValueByName(json.nextString());
+                    if (value == null) {
+                        throw new IOException("Invalid value for enum " + type.getFullName());
+                    }
+                    return value;
+                default:
+                    throw new IOException("Unsupported field " + field.getFullName());
+            }
+        } catch (NumberFormatException | IllegalStateException e) {
+            throw new IOException("Invalid value for " + field.getFullName(), e);
+        }
+    }
+
+    /**
+     * Finds the elements of the top-level {@code response} array without parsing them: it only
+     * follows nesting and strings, and copies each element's characters as they are.
+     */
+    private static final class RecordSplitter {
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private int position;
+        private int limit;
+        private boolean started;
+        private boolean done;
+
+        RecordSplitter(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Moves into the top-level {@code response} array. Returns false if there is none.
+         */
+        boolean seekResponseArray() throws IOException {
+            if (nextToken() != '{') {
+                throw new IOException("Expected a JSON object");
+            }
+            while (true) {
+                int c = nextToken();
+                if (c == '}') {
+                    return false;
+                }
+                if (c != '"') {
+                    throw new IOException("Expected a field name");
+                }
+                StringBuilder name = new StringBuilder();
+                copyString(name);
+                if (nextToken() != ':') {
+                    throw new IOException("Expected ':' after " + name);
+                }
+                c = nextToken();
+                if (c == '[' && name.toString().equals("\"response\"")) {
+                    return true;
+                }
+                copyValue(c, null);
+                c = nextToken();
+                if (c == '}') {
+                    return false;
+                }
+                if (c != ',') {
+                    throw new IOException("Expected ',' or '}' after " + name);
+                }
+            }
+        }
+
+        /**
+         * Returns the next at most {@code size} elements as a JSON array, or null after the last.
+         */
+        String nextChunk(int size) throws IOException {
+            if (done) {
+                return null;
+            }
+            StringBuilder chunk = new StringBuilder(size * 128).append('[');
+            for (int count = 0; count < size; count++) {
+                int c = nextToken();
+                if (c == ']') {
+                    done = true;
+                    break;
+                }
+                if (started) {
+                    if (c != ',') {
+                        throw new IOException("Expected ',' or ']' in the response array");
+                    }
+                    c = nextToken();
+                }
+                started = true;
+                if (count > 0) {
+                    chunk.append(',');
+                }
+                copyValue(c, chunk);
+            }
+            return chunk.length() > 1 ? chunk.append(']').toString() : null;
+        }
+
+        /**
+         * Copies the value starting with {@code first} to {@code out}, or skips it if null.
+         */
+        private void copyValue(int first, StringBuilder out) throws IOException {
+            if (first == '"') {
+                copyString(out);
+                return;
+            }
+            append(out, first);
+            if (first != '{' && first != '[') {
+                // A number or literal runs up to the next delimiter.
+                while (true) {
+                    int c = peek();
+                    if (c < 0 || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                        return;
+                    }
+                    append(out, read());
+                }
+            }
+            int depth = 1;
+            while (depth > 0) {
+                int c = read();
+                if (c < 0) {
+                    throw new IOException("Unexpected end of the VMS database");
+                }
+                if (c == '"') {
+                    copyString(out);
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                append(out, c);
+            }
+        }
+
+        /**
+         * Copies a string whose opening quote was just read, quotes included.
+         */
+        private void copyString(StringBuilder out) throws IOException {
+            append(out, '"');
+            while (true) {
+                int c = read();
+                if (c < 0) {
+                    throw new IOException("Unterminated string in the VMS database");
+                }
+                append(out, c);
+                if (c == '\\') {
+                    int escaped = read();
+                    if (escaped < 0) {
+                        throw new IOException("Unterminated string in the VMS database");
+                    }
+                    append(out, escaped);
+                } else if (c == '"') {
+                    return;
+                }
+            }
+        }
+
+        private static void append(StringBuilder out, int c) {
+            if (out != null) {
+                out.append((char) c);
+            }
+        }
+
+        private int nextToken() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c >= 0 && Character.isWhitespace(c));
+            if (c < 0) {
+                throw new IOException("Unexpected end of the VMS database");
+            }
+            return c;
+        }
+
+        private int peek() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position];
+        }
+
+        private int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position++];
+        }
+
+        private boolean fill() throws IOException {
+            int n = reader.read(buffer, 0, buffer.length);
+            if (n <= 0) {
+                return false;
+            }
+            position = 0;
+            limit = n;
+            return true;
+        }
+    }
+
+    private final class Progress {
+        private final CountingInputStream input;
+        private long records;
+        private long nextReport = progressInterval;
+
+        Progress(CountingInputStream input) {
+            this.input = input;
+        }
+
+        void advance(int count) {
+            records += count;
+            if (records >= nextReport) {
+                listener.onProgress(records, input.count);
+                nextReport = records + progressInterval;
+            }
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package io.grpc.proxy;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of ingested {@link Item}s with group commit.
+ *
+ * <p>Items appended from any thread join the current group. Every commit interval a single
+ * writer thread takes the group, encodes it into one buffer, writes it with one
+ * {@link FileChannel#write} and forces it to disk once; only then is the group handed to the
+ * {@link Listener} and its future completed. However many items arrive, each interval costs one
+ * write and one fsync. Appending never blocks; callers bound what they have pending by waiting
+ * for the futures, as {@link FarmServer} does with its inbound flow control window.
+ *
+ * <p>The log is a directory of segments named {@code wal-<sequence>.log}. Once a segment holds
+ * {@code segmentBytes} it is closed, reported to the listener, and a new one is started. Each
+ * record is an int length, the int CRC32 of the payload and the serialized Item. A record torn
+ * by a crash fails its length or checksum and ends the replay of its segment. After a write or
+ * fsync failure the log refuses further appends, since it can no longer tell what is on disk.
+ */
+public final class VMSDataLog {
+    private static final Logger logger = Logger.getLogger(VMSDataLog.class.getName());
+
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int RECORD_HEADER = 8;
+
+    /**
+     * Receives committed groups and closed segments, on the writer thread.
+     */
+    public interface Listener {
+        /**
+         * {@code items} are durable, in append order.
+         */
+        void committed(List<Item> items);
+
+        /**
+         * Every item of {@code segment} has been passed to {@link #committed}; no more will be
+         * written to it.
+         */
+        void rolled(File segment);
+    }
+
+    private final File directory;
+    private final long segmentBytes;
+    private final Listener listener;
+    private final ScheduledExecutorService writer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock.
+    private List<Item> group = new ArrayList<>();
+    private SettableFuture<Void> groupCommitted = SettableFuture.create();
+    private IOException failure;
+    private boolean closed;
+
+    // Only touched by the writer thread.
+    private long sequence;
+    private File segment;
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    private final CRC32 crc = new CRC32();
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong committedItems = new AtomicLong();
+
+    private VMSDataLog(File directory, long sequence, long segmentBytes, Listener listener) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.listener = listener;
+        this.sequence = sequence;
+        openSegment();
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "vms-data-log");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts a new segment after the existing ones of {@code directory} and commits every
+     * {@code commitInterval}. Replay the existing segments with {@link #replay} first.
+     */
+    public static VMSDataLog open(File directory, long commitInterval, TimeUnit unit, long segmentBytes,
+                                  Listener listener) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        if (segmentBytes < 1) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentBytes);
+        }
+        List<File> existing = segments(directory);
+        long next = existing.isEmpty() ? 1 : sequenceOf(existing.get(existing.size() - 1)) + 1;
+        final VMSDataLog log = new VMSDataLog(directory, next, segmentBytes, listener);
+        log.writer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                log.commit();
+            }
+        }, commitInterval, commitInterval, unit);
+        return log;
+    }
+
+    /**
+     * Segments of {@code directory}, oldest first.
+     */
+    public static List<File> segments(File directory) {
+        File[] files = directory.listFiles();
+        List<File> segments = new ArrayList<>();
+        if (files == null) {
+            return segments;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                segments.add(file);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Reads every intact record of {@code segment} into {@code sink} and returns their number.
+     */
+    public static long replay(File segment, VMSDataLoader.Sink sink) throws IOException {
+        long records = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 1 << 16));
+        try {
+            CRC32 crc = new CRC32();
+            byte[] payload = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return records;
+                }
+                int checksum = in.readInt();
+                if (length < 0 || length > segment.length()) {
+                    logger.warning("Torn record after " + records + " records of " + segment + ", ignoring the rest");
+                    return records;
+                }
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                in.readFully(payload, 0, length);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    logger.warning("Checksum mismatch after " + records + " records of " + segment + ", ignoring the rest");
+                    return records;
+                }
+                sink.accept(VMSDataResponse.newBuilder().setItem(Item.parseFrom(Arrays.copyOf(payload, length))).build());
+                records++;
+            }
+        } catch (EOFException e) {
+            logger.warning("Torn record after " + records + " records of " + segment + ", ignoring the rest");
+            return records;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Adds {@code item} to the current group and returns a future completed once the group is
+     * durable and applied, or failed if it could not be written. Never blocks.
+     */
+    public ListenableFuture<Void> append(Item item) {
+        lock.lock();
+        try {
+            if (failure != null) {
+                return Futures.immediateFailedFuture(failure);
+            }
+            if (closed) {
+                return Futures.immediateFailedFuture(new IOException("Log is closed"));
+            }
+            group.add(item);
+            return groupCommitted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commit() {
+        List<Item> items;
+        SettableFuture<Void> committed;
+        lock.lock();
+        try {
+            if (group.isEmpty() || failure != null) {
+                return;
+            }
+            items = group;
+            committed = groupCommitted;
+            group = new ArrayList<>(items.size());
+            groupCommitted = SettableFuture.create();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            write(items);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Writing to " + segment + " failed, refusing further appends", e);
+            lock.lock();
+            try {
+                failure = e;
+                groupCommitted.setException(e);
+            } finally {
+                lock.unlock();
+            }
+            committed.setException(e);
+            return;
+        }
+        commits.incrementAndGet();
+        committedItems.addAndGet(items.size());
+        try {
+            listener.committed(items);
+            committed.set(null);
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Applying " + items.size() + " committed items failed", e);
+            committed.setException(e);
+        }
+        if (channelSize() >= segmentBytes) {
+            roll();
+        }
+    }
+
+    private void write(List<Item> items) throws IOException {
+        buffer.clear();
+        for (Item item : items) {
+            byte[] payload = item.toByteArray();
+            if (buffer.remaining() < RECORD_HEADER + payload.length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + RECORD_HEADER + payload.length));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            buffer.putInt(payload.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(payload);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    private long channelSize() {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void roll() {
+        File closedSegment = segment;
+        try {
+            channel.close();
+            sequence++;
+            openSegment();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Starting a new segment after " + closedSegment + " failed, refusing further appends", e);
+            lock.lock();
+            try {
+                failure = e;
+                groupCommitted.setException(e);
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        listener.rolled(closedSegment);
+    }
+
+    private void openSegment() throws IOException {
+        segment = new File(directory, String.format("%s%016d%s", PREFIX, sequence, SUFFIX));
+        channel = new FileOutputStream(segment, true).getChannel();
+        // Otherwise a crash could lose the new segment's directory entry, and the groups in it.
+        FarmUtil.syncDirectory(directory);
+    }
+
+    private static long sequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Groups written and fsynced so far.
+     */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    public long getCommittedItemCount() {
+        return committedItems.get();
+    }
+
+    /**
+     * Commits what is pending, closes the current segment and stops the writer. Appends after
+     * this fail. Closing again does nothing.
+     */
+    public void close() throws InterruptedException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Closing " + segment + " failed", e);
+                }
+            }
+        });
+        writer.shutdown();
+        writer.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
@@ -0,0 +1,144 @@
+package io.grpc.proxy;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a JSON or snapshot data file and swaps a freshly built store in when it changes.
+ *
+ * <p>The new store and its indexes are built completely on a background thread and published
+ * with a single {@link AtomicReference#set}, so readers that fetched the old store keep using
+ * it undisturbed and never see a half-built one. A change is only picked up once the file
+ * looked the same on two polls in a row, so a file still being written is not loaded. If
+ * loading fails the old store stays in place and the next change is tried again.
+ */
+public final class VMSDataReloader implements VMSDataReloaderMXBean {
+    private static final Logger logger = Logger.getLogger(VMSDataReloader.class.getName());
+
+    private final File source;
+    private final AtomicReference<VMSDataVersion> target;
+    private final ScheduledExecutorService scheduler;
+
+    // Last loaded and last observed (modification time, length) of the source.
+    private long loadedModified;
+    private long loadedLength;
+    private long seenModified;
+    private long seenLength;
+
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong failedReloads = new AtomicLong();
+    private volatile long lastReloadMillis;
+    private volatile int recordCount;
+
+    public VMSDataReloader(File source, AtomicReference<VMSDataVersion> target) {
+        this.source = source;
+        this.target = target;
+        this.loadedModified = source.lastModified();
+        this.loadedLength = source.length();
+        this.seenModified = loadedModified;
+        this.seenLength = loadedLength;
+        VMSDataVersion current = target.get();
+        this.recordCount = current == null ? 0 : current.store().size();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "vms-data-reloader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts polling the source every {@code periodMillis}.
+     */
+    public VMSDataReloader start(long periodMillis) {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private void poll() {
+        long modified = source.lastModified();
+        long length = source.length();
+        if (modified == loadedModified && length == loadedLength) {
+            return;
+        }
+        if (modified != seenModified || length != seenLength) {
+            seenModified = modified;
+            seenLength = length;
+            return;
+        }
+        loadedModified = modified;
+        loadedLength = length;
+        reload();
+    }
+
+    /**
+     * Loads the source now and swaps it in. Returns false if loading failed. Reloads from JMX
+     * and from the poller run one at a time, so an older load never replaces a newer one.
+     */
+    @Override
+    public synchronized boolean reload() {
+        long start = System.nanoTime();
+        VMSDataStore store;
+        VMSDataVersion version;
+        try {
+            VMSDataStore current = target.get().store();
+            boolean compact = current instanceof CompactVMSDataStore;
+            store = FarmUtil.openStore(source.toURI().toURL(), compact);
+            // Keep the shape the server was started with.
+            if (current instanceof ShardedVMSDataStore) {
+                store = ShardedVMSDataStore.partition(store, ((ShardedVMSDataStore) current).shardCount());
+            } else if (compact && !(store instanceof CompactVMSDataStore)) {
+                store = CompactVMSDataStore.copyOf(store);
+            }
+            version = VMSDataVersion.indexed(store);
+        } catch (Exception e) {
+            failedReloads.incrementAndGet();
+            logger.log(Level.WARNING, "Reloading " + source + " failed, keeping the current data", e);
+            return false;
+        }
+        target.set(version);
+        lastReloadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        recordCount = store.size();
+        reloads.incrementAndGet();
+        logger.info("Reloaded " + recordCount + " records from " + source + " in " + lastReloadMillis + " ms");
+        return true;
+    }
+
+    @Override
+    public long getReloadCount() {
+        return reloads.get();
+    }
+
+    @Override
+    public long getFailedReloadCount() {
+        return failedReloads.get();
+    }
+
+    @Override
+    public long getLastReloadMillis() {
+        return lastReloadMillis;
+    }
+
+    @Override
+    public int getRecordCount() {
+        return recordCount;
+    }
+}
@@ -0,0 +1,20 @@
+package io.grpc.proxy;
+
+/**
+ * JMX view of a {@link VMSDataReloader}.
+ */
+public interface VMSDataReloaderMXBean {
+
+    long getReloadCount();
+
+    long getFailedReloadCount();
+
+    long getLastReloadMillis();
+
+    int getRecordCount();
+
+    /**
+     * Loads the source now, as if it had changed.
+     */
+    boolean reload();
+}
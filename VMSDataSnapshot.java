@@ -0,0 +1,207 @@
+package io.grpc.proxy;
+
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Binary snapshot of a VMS database that {@link MappedVMSDataStore} can serve straight from a
+ * memory-mapped file.
+ *
+ * <p>Layout, all numbers big-endian:
+ * <pre>
+ *   header   MAGIC, int version, int record count
+ *   records  length-delimited VMSDataResponse messages, in load order
+ *   offsets  long per record, position of its length prefix (8-byte aligned)
+ *   index    int capacity, then capacity slots of {long guid, int sourceid, int record}
+ *            (16-byte aligned, record is -1 for a free slot)
+ *   fallback int count, then the record numbers whose guid is not a plain decimal number
+ *   filter   int word count, then the {@link VMSKeyFilter} words (the words 8-byte aligned)
+ *   footer   long offsets position, long index position, long fallback position,
+ *            long filter position, MAGIC
+ * </pre>
+ * The index uses the same hash and linear probing as {@link IndexedVMSDataStore}.
+ */
+public final class VMSDataSnapshot {
+    private static final Logger logger = Logger.getLogger(VMSDataSnapshot.class.getName());
+
+    static final byte[] MAGIC = {'V', 'M', 'S', 'S', 'N', 'A', 'P', '1'};
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = MAGIC.length + 8;
+    static final int FOOTER_SIZE = 32 + MAGIC.length;
+    static final int SLOT_SIZE = 16;
+
+    private VMSDataSnapshot() {
+    }
+
+    /**
+     * Writes all records of {@code store} as a snapshot to {@code file}.
+     */
+    public static void write(VMSDataStore store, File file) throws IOException {
+        int count = store.size();
+        long[] offsets = new long[count];
+        int capacity = IndexedVMSDataStore.tableSize(count);
+        long[] slotGuids = new long[capacity];
+        int[] slotSourceids = new int[capacity];
+        int[] slotRecords = new int[capacity];
+        Arrays.fill(slotRecords, -1);
+        int[] fallback = new int[16];
+        int fallbackCount = 0;
+        VMSKeyFilter filter = VMSKeyFilter.create(count);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+
+            long position = HEADER_SIZE;
+            for (int i = 0; i < count; i++) {
+                VMSDataResponse response = store.get(i);
+                offsets[i] = position;
+                int size = response.getSerializedSize();
+                response.writeDelimitedTo(out);
+                position += CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+
+                Item item = response.getItem();
+                filter.put(item.getGuid(), item.getSourceid());
+                long guid = FarmUtil.guidToLong(item.getGuid());
+                if (guid < 0) {
+                    if (fallbackCount == fallback.length) {
+                        fallback = Arrays.copyOf(fallback, fallbackCount * 2);
+                    }
+                    fallback[fallbackCount++] = i;
+                    continue;
+                }
+                int mask = capacity - 1;
+                int slot = IndexedVMSDataStore.hash(guid, item.getSourceid()) & mask;
+                boolean duplicate = false;
+                while (slotRecords[slot] != -1) {
+                    if (slotGuids[slot] == guid && slotSourceids[slot] == item.getSourceid()) {
+                        duplicate = true;
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                if (!duplicate) {
+                    slotGuids[slot] = guid;
+                    slotSourceids[slot] = item.getSourceid();
+                    slotRecords[slot] = i;
+                }
+            }
+
+            position = pad(out, position, 8);
+            long offsetsPosition = position;
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            position += 8L * count;
+
+            // The capacity int sits just before the 16-byte aligned slots.
+            position = pad(out, position + 4, SLOT_SIZE) - 4;
+            long indexPosition = position;
+            out.writeInt(capacity);
+            for (int slot = 0; slot < capacity; slot++) {
+                out.writeLong(slotGuids[slot]);
+                out.writeInt(slotSourceids[slot]);
+                out.writeInt(slotRecords[slot]);
+            }
+            position += 4 + (long) SLOT_SIZE * capacity;
+
+            long fallbackPosition = position;
+            out.writeInt(fallbackCount);
+            for (int i = 0; i < fallbackCount; i++) {
+                out.writeInt(fallback[i]);
+            }
+            position += 4 + 4L * fallbackCount;
+
+            position = pad(out, position + 4, 8) - 4;
+            long filterPosition = position;
+            long[] words = filter.words();
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+
+            out.writeLong(offsetsPosition);
+            out.writeLong(indexPosition);
+            out.writeLong(fallbackPosition);
+            out.writeLong(filterPosition);
+            out.write(MAGIC);
+            // The ingest log deletes its segments once they are in a snapshot, so the snapshot must
+            // be on disk before it replaces the old one.
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // The rename itself is only durable once the directory is.
+        FarmUtil.syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Writes zeros until {@code position} is a multiple of {@code alignment}.
+     */
+    private static long pad(DataOutputStream out, long position, int alignment) throws IOException {
+        while (position % alignment != 0) {
+            out.write(0);
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Returns true if {@code file} starts with the snapshot magic.
+     */
+    public static boolean isSnapshot(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE + FOOTER_SIZE) {
+            return false;
+        }
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            new DataInputStream(input).readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Maps {@code file} and serves lookups from it.
+     */
+    public static MappedVMSDataStore open(File file) throws IOException {
+        return new MappedVMSDataStore(file);
+    }
+
+    /**
+     * Converts a JSON database into a snapshot.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: VMSDataSnapshot <vms_data_db.json> <snapshot file>");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        IndexedVMSDataStore store = FarmUtil.loadStore(new File(args[0]).toURI().toURL(),
+                Runtime.getRuntime().availableProcessors());
+        File snapshot = new File(args[1]);
+        write(store, snapshot);
+        logger.info("Wrote " + store.size() + " records to " + snapshot + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
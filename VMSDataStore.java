@@ -0,0 +1,36 @@
+package io.grpc.proxy;
+
+/**
+ * Read-only store of {@link VMSDataResponse} records served by {@link FarmServer}.
+ *
+ * <p>Records are addressed either by their (guid, sourceid) key or by their position in the
+ * order they were loaded.
+ */
+public interface VMSDataStore {
+
+    /**
+     * Returns the first record loaded with the given guid and sourceid, or {@code null} if none.
+     */
+    VMSDataResponse get(String guid, int sourceid);
+
+    /**
+     * Returns the position of the first record loaded with the given guid and sourceid, or -1.
+     */
+    int indexOf(String guid, int sourceid);
+
+    /**
+     * Returns false if no record has the given guid and sourceid. Cheaper than a lookup, and
+     * may return true for a missing key.
+     */
+    boolean mightContain(String guid, int sourceid);
+
+    /**
+     * Returns the record at {@code index}, where {@code 0 <= index < size()}.
+     */
+    VMSDataResponse get(int index);
+
+    /**
+     * Number of records in the store.
+     */
+    int size();
+}
@@ -0,0 +1,98 @@
+package io.grpc.proxy;
+
+import com.google.protobuf.FieldMask;
+
+/**
+ * One published version of the data a {@link FarmServer} serves: a {@link VMSDataStore} and the
+ * {@link VMSDataIndexes} of its records.
+ *
+ * <p>Whoever publishes a version, the server on start, a {@link VMSDataReloader} or a
+ * {@link VMSDataIngest}, builds its indexes first, so a request reads both with one
+ * {@code get()} and never builds anything. An {@link OverlayVMSDataStore} version shares the
+ * indexes of its base; the ingested records after it are tested one by one. A version may
+ * have no indexes yet, in which case listings test every record.
+ */
+public final class VMSDataVersion {
+    private final VMSDataStore store;
+    // Of the store, or of its base if it is an overlay; null if not built yet.
+    private final VMSDataIndexes indexes;
+
+    private VMSDataVersion(VMSDataStore store, VMSDataIndexes indexes) {
+        if (indexes != null && indexes.store != base(store)) {
+            throw new IllegalArgumentException("Indexes are not of this store");
+        }
+        this.store = store;
+        this.indexes = indexes;
+    }
+
+    /**
+     * Version of {@code store} without indexes.
+     */
+    public static VMSDataVersion of(VMSDataStore store) {
+        return new VMSDataVersion(store, null);
+    }
+
+    /**
+     * Version of {@code store} with indexes built on the calling thread.
+     */
+    public static VMSDataVersion indexed(VMSDataStore store) {
+        return new VMSDataVersion(store, VMSDataIndexes.build(base(store)));
+    }
+
+    /**
+     * Version of {@code store} with {@code indexes}, which were built for it or its base.
+     */
+    static VMSDataVersion of(VMSDataStore store, VMSDataIndexes indexes) {
+        return new VMSDataVersion(store, indexes);
+    }
+
+    /**
+     * Version of {@code overlay}, an overlay over the same base as this version, with the
+     * same indexes.
+     */
+    VMSDataVersion withStore(VMSDataStore overlay) {
+        return new VMSDataVersion(overlay, indexes);
+    }
+
+    public VMSDataStore store() {
+        return store;
+    }
+
+    VMSDataIndexes indexes() {
+        return indexes;
+    }
+
+    /**
+     * Store the indexes of {@code store} are built on.
+     */
+    static VMSDataStore base(VMSDataStore store) {
+        return store instanceof OverlayVMSDataStore ? ((OverlayVMSDataStore) store).base() : store;
+    }
+
+    /**
+     * Records matching every predicate of {@code query}, starting after position {@code after}.
+     *
+     * @throws IllegalArgumentException if a predicate tests nothing
+     */
+    VMSDataIndexes.Scan query(FarmQuery query, int after) {
+        return indexes != null ? indexes.query(store, query, after) : VMSDataIndexes.testEach(store, query, after);
+    }
+
+    /**
+     * Records matching every non-default field of {@code filter} but the guid, starting after
+     * position {@code after}.
+     */
+    VMSDataIndexes.Scan scan(Item filter, int after) {
+        return query(VMSDataIndexes.filter(filter), after);
+    }
+
+    /**
+     * Records matching the fields of {@code filter} named by {@code mask}, starting after
+     * position {@code after}.
+     *
+     * @throws IllegalArgumentException if the mask names a field that cannot be filtered on
+     */
+    VMSDataIndexes.Scan scan(Item filter, FieldMask mask, int after) {
+        return query(VMSDataIndexes.filter(filter, mask), after);
+    }
+}
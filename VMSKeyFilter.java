@@ -0,0 +1,100 @@
+package io.grpc.proxy;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Blocked Bloom filter over (guid, sourceid) keys, used to answer definite misses without
+ * touching the store.
+ *
+ * <p>All probe bits of a key fall in one 512-bit block, so a lookup costs a single cache line
+ * however many bits are tested. At about ten bits per key the false positive rate stays near 1%.
+ */
+public final class VMSKeyFilter {
+    private static final int BLOCK_WORDS = 8;
+    private static final int BITS_PER_KEY = 10;
+    private static final int PROBES = 7;
+
+    private final long[] words;
+    private final int blocks;
+
+    private VMSKeyFilter(long[] words) {
+        this.words = words;
+        this.blocks = words.length / BLOCK_WORDS;
+    }
+
+    /**
+     * Creates an empty filter sized for {@code expectedKeys}.
+     */
+    public static VMSKeyFilter create(int expectedKeys) {
+        long bits = Math.max(1L, expectedKeys) * BITS_PER_KEY;
+        long blocks = (bits + 64 * BLOCK_WORDS - 1) / (64 * BLOCK_WORDS);
+        return new VMSKeyFilter(new long[(int) (blocks * BLOCK_WORDS)]);
+    }
+
+    /**
+     * Wraps words previously returned by {@link #words()}.
+     */
+    static VMSKeyFilter wrap(long[] words) {
+        if (words.length == 0 || words.length % BLOCK_WORDS != 0) {
+            throw new IllegalArgumentException("Invalid filter size: " + words.length);
+        }
+        return new VMSKeyFilter(words);
+    }
+
+    public void put(String guid, int sourceid) {
+        long hash = hash(guid, sourceid);
+        int base = block(hash);
+        for (int i = 0; i < PROBES; i++) {
+            int bit = probe(hash, i);
+            words[base + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns false if the key was definitely never added.
+     */
+    public boolean mightContain(String guid, int sourceid) {
+        long hash = hash(guid, sourceid);
+        int base = block(hash);
+        for (int i = 0; i < PROBES; i++) {
+            int bit = probe(hash, i);
+            if ((words[base + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long[] words() {
+        return words;
+    }
+
+    private int block(long hash) {
+        return (int) ((hash >>> 32) % blocks) * BLOCK_WORDS;
+    }
+
+    /**
+     * Bit in [0, 512) for probe {@code i}, taken from the low half of the hash by double hashing.
+     */
+    private static int probe(long hash, int i) {
+        int h1 = (int) hash;
+        int h2 = Integer.rotateLeft(h1, 16) | 1;
+        return (h1 + i * h2) & (64 * BLOCK_WORDS - 1);
+    }
+
+    static long hash(String guid, int sourceid) {
+        long numericGuid = FarmUtil.guidToLong(guid);
+        long h;
+        if (numericGuid >= 0) {
+            h = numericGuid * 0x9E3779B97F4A7C15L + sourceid;
+        } else {
+            h = Hashing.murmur3_128().newHasher().putString(guid, Charsets.UTF_8).putInt(sourceid).hash().asLong();
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+}
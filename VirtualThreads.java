@@ -0,0 +1,88 @@
+package io.grpc.proxy;
+
+import io.grpc.netty.shaded.io.netty.buffer.ByteBufAllocator;
+import io.grpc.netty.shaded.io.netty.buffer.PooledByteBufAllocator;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Executors starting one virtual thread per task, for code that blocks: gRPC handlers and
+ * blocking stub calls. A parked virtual thread costs a few hundred bytes of heap instead of a
+ * platform thread's stack, so tens of thousands of calls can wait at once.
+ *
+ * <p>Virtual threads came with Java 21, while the project still compiles for older ones, so
+ * they are looked up by name. On an older JVM the executors fall back to a cached pool of
+ * platform threads, which is what grpc-java uses by default.
+ *
+ * <p>gRPC serializes a message into Netty buffers on the thread sending it, and Netty's default
+ * allocator gives every such thread a buffer cache of its own, some hundred KB each. Channels
+ * whose messages are sent from virtual threads use {@link #allocator} instead.
+ */
+public final class VirtualThreads {
+    private static final Logger logger = Logger.getLogger(VirtualThreads.class.getName());
+
+    private static final boolean AVAILABLE = newFactory("farm-probe") != null;
+
+    // Created on first use, so platform-thread servers and clients never make its arenas.
+    private static class AllocatorHolder {
+        static final ByteBufAllocator ALLOCATOR = new PooledByteBufAllocator(
+                PooledByteBufAllocator.defaultPreferDirect(),
+                PooledByteBufAllocator.defaultNumHeapArena(), PooledByteBufAllocator.defaultNumDirectArena(),
+                PooledByteBufAllocator.defaultPageSize(), PooledByteBufAllocator.defaultMaxOrder(),
+                PooledByteBufAllocator.defaultTinyCacheSize(), PooledByteBufAllocator.defaultSmallCacheSize(),
+                PooledByteBufAllocator.defaultNormalCacheSize(), false);
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Whether this JVM has virtual threads.
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Starts a virtual thread named {@code name-N} for every task, or runs the tasks on a cached
+     * pool of daemon platform threads where virtual threads are not available.
+     */
+    public static ExecutorService newExecutor(String name) {
+        ThreadFactory factory = AVAILABLE ? newFactory(name) : null;
+        if (factory == null) {
+            logger.warning("Virtual threads need Java 21, using platform threads for " + name);
+            return Executors.newCachedThreadPool(new DefaultThreadFactory(name, true));
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are available but their executor could not be created", e);
+        }
+    }
+
+    /**
+     * Netty's pooled allocator with buffer caches for Netty's own threads only, for
+     * {@code ChannelOption.ALLOCATOR} of channels used from virtual threads.
+     */
+    static ByteBufAllocator allocator() {
+        return AllocatorHolder.ALLOCATOR;
+    }
+
+    // Thread.ofVirtual().name(name + "-", 0).factory(), or null before Java 21.
+    private static ThreadFactory newFactory(String name) {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtual = builder.getMethod("name", String.class, long.class).invoke(virtual, name + "-", 0L);
+            return (ThreadFactory) builder.getMethod("factory").invoke(virtual);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Also on Java 19 and 20 without --enable-preview, where ofVirtual() throws.
+            return null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package io.grpc.proxy;
+
+import com.google.protobuf.util.JsonFormat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Synthetic VMS data shaped like vms_data_db.json: numeric guids, a few hundred repeating
+ * owners, two message types and a thousand sources.
+ */
+final class BenchmarkData {
+    static final long FIRST_GUID = 407838351L;
+    static final int FIRST_SOURCEID = 456123;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Keeps the per-call INFO logging of the interceptors out of the measurements.
+     */
+    static void quietLogging() {
+        Logger.getLogger("").setLevel(Level.WARNING);
+    }
+
+    static Item item(int i) {
+        return Item.newBuilder()
+                .setGuid(Long.toString(FIRST_GUID + i))
+                .setOwner("Storgården" + (i % 500))
+                .setMessagetype(1 + i % 2)
+                .setSourceid(FIRST_SOURCEID + i % 1000)
+                .build();
+    }
+
+    static List<VMSDataResponse> responses(int size) {
+        List<VMSDataResponse> responses = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            responses.add(VMSDataResponse.newBuilder().setItem(item(i)).build());
+        }
+        return responses;
+    }
+
+    static IndexedVMSDataStore store(int size) {
+        IndexedVMSDataStore.Builder store = IndexedVMSDataStore.newBuilder();
+        for (int i = 0; i < size; i++) {
+            store.add(VMSDataResponse.newBuilder().setItem(item(i)).build());
+        }
+        return store.build();
+    }
+
+    /**
+     * {@code count} lookup keys into a store of {@code size}; {@code hitRatio} of them exist.
+     */
+    static VMSDataRequest[] requests(int size, int count, double hitRatio, long seed) {
+        Random random = new Random(seed);
+        VMSDataRequest[] requests = new VMSDataRequest[count];
+        for (int i = 0; i < count; i++) {
+            int record = random.nextInt(size);
+            Item item = item(record);
+            if (random.nextDouble() >= hitRatio) {
+                item = item.toBuilder().setGuid(Long.toString(FIRST_GUID + size + record)).build();
+            }
+            requests[i] = VMSDataRequest.newBuilder().setItem(item).build();
+        }
+        return requests;
+    }
+
+    /**
+     * Writes {@code size} records as a vms_data_db.json style file.
+     */
+    static File writeJson(int size) throws IOException {
+        File file = File.createTempFile("vms_data_db-" + size + "-", ".json");
+        file.deleteOnExit();
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")));
+        try {
+            JsonFormat.Printer printer = JsonFormat.printer();
+            out.write("{\n  \"response\": [\n");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    out.write(",\n");
+                }
+                out.write(printer.print(VMSDataResponse.newBuilder().setItem(item(i)).build()));
+            }
+            out.write("\n  ]\n}\n");
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static File writeSnapshot(VMSDataStore store) throws IOException {
+        File file = File.createTempFile("vms_data_db-" + store.size() + "-", ".snapshot");
+        file.deleteOnExit();
+        VMSDataSnapshot.write(store, file);
+        return file;
+    }
+}
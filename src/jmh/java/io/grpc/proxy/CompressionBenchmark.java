@@ -0,0 +1,83 @@
+package io.grpc.proxy;
+
+import io.grpc.Codec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of the message encodings of {@link FarmCompression} against the bytes they save, on
+ * BatchGetFarmMessage responses of {@code records} records. A single record is the size of a
+ * GetFarmMessage response or of one streamed record.
+ *
+ * <p>The bytes each encoding puts on the wire are printed when a trial starts, for example
+ * {@code java -jar target/benchmarks.jar CompressionBenchmark -p records=1000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"gzip", "snappy"})
+    public String encoding;
+
+    @Param({"1", "100", "1000"})
+    public int records;
+
+    private Codec codec;
+    private byte[] message;
+    private byte[] compressed;
+    private final byte[] chunk = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        codec = (Codec) FarmCompression.compressors().lookupCompressor(encoding);
+        BatchVMSDataResponse.Builder batch = BatchVMSDataResponse.newBuilder();
+        for (VMSDataResponse response : BenchmarkData.responses(records)) {
+            batch.addResponses(response).addFound(true);
+        }
+        message = batch.build().toByteArray();
+        compressed = compress();
+        System.out.println(encoding + ", " + records + " records: " + message.length + " -> " + compressed.length
+                + " bytes (" + String.format("%.1f", (double) message.length / compressed.length) + "x)");
+    }
+
+    @Benchmark
+    public byte[] compress() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length);
+        OutputStream out = codec.compress(bytes);
+        out.write(message);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public int decompress() throws IOException {
+        InputStream in = codec.decompress(new ByteArrayInputStream(compressed));
+        int length = 0;
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            length += read;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,133 @@
+package io.grpc.proxy;
+
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * FarmChat fan-out latency: the time from one stream publishing a note until every subscriber
+ * of its topic has received it, as the number of subscribers grows. Subscribers are spread over
+ * {@value #CHANNELS} channels.
+ *
+ * <p>For example {@code java -jar target/benchmarks.jar FarmChatBenchmark -p transport=netty};
+ * the sample mode reports p50/p99/p99.9.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FarmChatBenchmark {
+    private static final int CHANNELS = 8;
+
+    @Param({"inprocess", "netty"})
+    public String transport;
+
+    @Param({"100", "1000", "10000"})
+    public int subscribers;
+
+    private FarmServer server;
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final List<StreamObserver<ItemNote>> calls = new ArrayList<>();
+    private final AtomicReference<CountDownLatch> delivered = new AtomicReference<>();
+    private StreamObserver<ItemNote> publisher;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.quietLogging();
+        VMSDataStore store = BenchmarkData.store(1000);
+        String name = "farm-chat-benchmark-" + System.nanoTime();
+        if ("inprocess".equals(transport)) {
+            server = new FarmServer(InProcessServerBuilder.forName(name), 0, store);
+        } else {
+            server = new FarmServer(NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0)), 0, store);
+        }
+        server.start();
+        for (int i = 0; i < CHANNELS; i++) {
+            channels.add("inprocess".equals(transport)
+                    ? InProcessChannelBuilder.forName(name).build()
+                    : NettyChannelBuilder.forAddress("127.0.0.1", server.getPort()).usePlaintext().build());
+        }
+        StreamObserver<ItemNote> receiver = new StreamObserver<ItemNote>() {
+            @Override
+            public void onNext(ItemNote note) {
+                CountDownLatch latch = delivered.get();
+                if (latch != null) {
+                    latch.countDown();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+        for (int i = 0; i < subscribers; i++) {
+            StreamObserver<ItemNote> call = FarmGrpc.newStub(channels.get(i % CHANNELS)).farmChat(receiver);
+            // An empty message only subscribes.
+            call.onNext(note(""));
+            calls.add(call);
+        }
+        publisher = FarmGrpc.newStub(channels.get(0)).farmChat(receiver);
+        // Subscribing is asynchronous: publish until a note reaches everyone.
+        while (!publish(5, TimeUnit.SECONDS)) {
+            // Some subscribers had not joined yet.
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (StreamObserver<ItemNote> call : calls) {
+            call.onCompleted();
+        }
+        publisher.onCompleted();
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        server.stop();
+    }
+
+    @Benchmark
+    public boolean fanOut() throws InterruptedException {
+        return publish(1, TimeUnit.MINUTES);
+    }
+
+    private boolean publish(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(subscribers);
+        delivered.set(latch);
+        publisher.onNext(note("note " + next++));
+        return latch.await(timeout, unit);
+    }
+
+    private static ItemNote note(String message) {
+        return ItemNote.newBuilder().setItem(BenchmarkData.item(1)).setMessage(message).build();
+    }
+}
@@ -0,0 +1,223 @@
+package io.grpc.proxy;
+
+import io.grpc.ClientInterceptors;
+import io.grpc.ManagedChannel;
+import io.grpc.Channel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The Farm RPCs end to end, over the in-process transport and over Netty on loopback.
+ *
+ * <p>Run with {@code -bm sample} for p50/p99/p99.9 latency and {@code -prof gc} for allocation
+ * rate, for example
+ * {@code java -jar target/benchmarks.jar FarmServiceBenchmark -bm thrpt,sample -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FarmServiceBenchmark {
+    private static final int KEYS = 1 << 12;
+    private static final int BATCH = 100;
+    private static final int SUMMARY_ITEMS = 1000;
+    private static final int CHAT_NOTES = 16;
+
+    @Param({"inprocess", "netty"})
+    public String transport;
+
+    @Param({"10000", "1000000"})
+    public int size;
+
+    private FarmServer server;
+    private ManagedChannel channel;
+    private FarmGrpc.FarmBlockingStub blockingStub;
+    private FarmGrpc.FarmStub asyncStub;
+    private VMSDataRequest[] requests;
+    private BatchVMSDataRequest batch;
+    private RequestWrapperSmall listByOwner;
+    private FarmQuery query;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.quietLogging();
+        VMSDataStore store = BenchmarkData.store(size);
+        if ("inprocess".equals(transport)) {
+            String name = "farm-benchmark-" + System.nanoTime();
+            server = new FarmServer(InProcessServerBuilder.forName(name), 0, store);
+            server.start();
+            channel = InProcessChannelBuilder.forName(name).build();
+        } else {
+            server = new FarmServer(NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0)), 0, store);
+            server.start();
+            channel = NettyChannelBuilder.forAddress("127.0.0.1", server.getPort()).usePlaintext().build();
+        }
+        Channel intercepted = ClientInterceptors.intercept(channel, new HeaderClientInterceptor());
+        blockingStub = FarmGrpc.newBlockingStub(intercepted);
+        asyncStub = FarmGrpc.newStub(intercepted);
+
+        requests = BenchmarkData.requests(size, KEYS, 0.9, 1);
+        batch = BatchVMSDataRequest.newBuilder().addAllRequests(Arrays.asList(requests).subList(0, BATCH)).build();
+        listByOwner = RequestWrapperSmall.newBuilder()
+                .setReq1(VMSDataRequest.newBuilder().setItem(Item.newBuilder().setOwner("Storgården7")))
+                .build();
+        query = FarmQuery.newBuilder()
+                .addPredicates(FarmQuery.Predicate.newBuilder().setMessagetype(2))
+                .addPredicates(FarmQuery.Predicate.newBuilder().setSourceid(FarmQuery.SourceidRange.newBuilder()
+                        .setFrom(BenchmarkData.FIRST_SOURCEID).setTo(BenchmarkData.FIRST_SOURCEID + 9)))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.stop();
+    }
+
+    @Benchmark
+    public VMSDataResponse getFarmMessage() {
+        return blockingStub.getFarmMessage(requests[next++ & (KEYS - 1)]);
+    }
+
+    /**
+     * {@value #BATCH} keys as one BatchGetFarmMessage call; compare with {@link #unaryGetFarmMessage}.
+     */
+    @Benchmark
+    public BatchVMSDataResponse batchGetFarmMessage() {
+        return blockingStub.batchGetFarmMessage(batch);
+    }
+
+    /**
+     * The same {@value #BATCH} keys as {@link #batchGetFarmMessage}, one GetFarmMessage call each.
+     */
+    @Benchmark
+    public void unaryGetFarmMessage(Blackhole blackhole) {
+        for (VMSDataRequest request : batch.getRequestsList()) {
+            blackhole.consume(blockingStub.getFarmMessage(request));
+        }
+    }
+
+    @Benchmark
+    public int listFarmMessageBySmallWrapper() {
+        int count = 0;
+        Iterator<VMSDataResponse> responses = blockingStub.listFarmMessageBySmallWrapper(listByOwner);
+        while (responses.hasNext()) {
+            responses.next();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Messagetype 2 from ten sourceids, answered by intersecting the index bitmaps.
+     */
+    @Benchmark
+    public int queryFarmMessages() {
+        int count = 0;
+        Iterator<VMSDataResponse> responses = blockingStub.queryFarmMessages(query);
+        while (responses.hasNext()) {
+            responses.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public FarmsSummary getFarmsSummaryMessage() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<FarmsSummary> summary = new AtomicReference<>();
+        asyncStub.getFarmsSummaryMessage(new ClientResponseObserver<Item, FarmsSummary>() {
+            private int sent;
+
+            @Override
+            public void beforeStart(final ClientCallStreamObserver<Item> call) {
+                call.setOnReadyHandler(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (sent < SUMMARY_ITEMS && call.isReady()) {
+                            call.onNext(requests[sent++ & (KEYS - 1)].getItem());
+                        }
+                        if (sent == SUMMARY_ITEMS) {
+                            sent++;
+                            call.onCompleted();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(FarmsSummary value) {
+                summary.set(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        });
+        done.await();
+        return summary.get();
+    }
+
+    @Benchmark
+    public int farmChat() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] received = new int[1];
+        StreamObserver<ItemNote> call = asyncStub.farmChat(new StreamObserver<ItemNote>() {
+            @Override
+            public void onNext(ItemNote note) {
+                received[0]++;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        });
+        for (int i = 0; i < CHAT_NOTES; i++) {
+            call.onNext(ItemNote.newBuilder().setItem(requests[i].getItem()).setMessage("note " + i).build());
+        }
+        call.onCompleted();
+        done.await();
+        return received[0];
+    }
+}
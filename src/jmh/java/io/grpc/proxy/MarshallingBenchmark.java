@@ -0,0 +1,73 @@
+package io.grpc.proxy;
+
+import com.google.common.io.ByteStreams;
+import io.grpc.Drainable;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the gRPC protobuf marshaller for one VMSDataResponse in each direction, and of
+ * sending it from a warm {@link SerializedResponseCache} instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarshallingBenchmark {
+    private final MethodDescriptor.Marshaller<VMSDataResponse> marshaller =
+            ProtoUtils.marshaller(VMSDataResponse.getDefaultInstance());
+
+    private final SerializedResponseCache cache = new SerializedResponseCache(1 << 20);
+    // Stands in for the transport's outbound buffer, which both marshallers drain into.
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream(4096);
+
+    private VMSDataResponse response;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        response = VMSDataResponse.newBuilder().setItem(BenchmarkData.item(42)).build();
+        bytes = response.toByteArray();
+        cache.bytes(response);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        InputStream stream = marshaller.stream(response);
+        return ByteStreams.toByteArray(stream);
+    }
+
+    @Benchmark
+    public int drain() throws Exception {
+        sink.reset();
+        return ((Drainable) marshaller.stream(response)).drainTo(sink);
+    }
+
+    @Benchmark
+    public int drainCached() throws Exception {
+        sink.reset();
+        return ((Drainable) cache.marshaller().stream(response)).drainTo(sink);
+    }
+
+    @Benchmark
+    public VMSDataResponse parse() {
+        return marshaller.parse(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,83 @@
+package io.grpc.proxy;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency a {@link FarmProxy} hop adds: GetFarmMessage over Netty on loopback, straight to a
+ * FarmServer or through a proxy in front of it. The p99 of {@code proxy} minus that of
+ * {@code direct} is the per-hop overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ProxyBenchmark {
+    private static final int SIZE = 100000;
+    private static final int KEYS = 1 << 12;
+
+    @Param({"direct", "proxy", "proxy-hedged"})
+    public String hop;
+
+    private FarmServer server;
+    private FarmProxy proxy;
+    private ManagedChannel channel;
+    private FarmGrpc.FarmBlockingStub stub;
+    private VMSDataRequest[] requests;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.quietLogging();
+        server = new FarmServer(NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0)), 0,
+                BenchmarkData.store(SIZE));
+        server.start();
+        int port = server.getPort();
+        if (!"direct".equals(hop)) {
+            FarmBackendPool backends = new FarmBackendPool(
+                    Collections.singletonList(new InetSocketAddress("127.0.0.1", port)), 2, 5, 1000);
+            // With one backend a hedge has nowhere to go; this measures arming the timer.
+            long hedgeMillis = "proxy-hedged".equals(hop) ? 10 : 0;
+            proxy = new FarmProxy(NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0)), 0, backends,
+                    hedgeMillis, TimeUnit.MILLISECONDS).start();
+            port = proxy.getPort();
+        }
+        channel = NettyChannelBuilder.forAddress("127.0.0.1", port).usePlaintext().build();
+        stub = FarmGrpc.newBlockingStub(channel);
+        requests = BenchmarkData.requests(SIZE, KEYS, 0.9, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        if (proxy != null) {
+            proxy.stop();
+        }
+        server.stop();
+    }
+
+    @Benchmark
+    public VMSDataResponse getFarmMessage() {
+        return stub.getFarmMessage(requests[next++ & (KEYS - 1)]);
+    }
+}
@@ -0,0 +1,127 @@
+package io.grpc.proxy;
+
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks consistent-hash routing end to end against loopback FarmServers, and fails if a key is
+ * answered by any replica but its owner. Not a JMH benchmark, since it asserts where calls go
+ * rather than timing them:
+ * {@code java -cp target/benchmarks.jar io.grpc.proxy.ReplicaRouting 4 10000}.
+ *
+ * <p>Every replica serves the same keys, with its own name as the owner of each record, so a
+ * response tells which replica answered. Each key is looked up twice through a
+ * {@link FarmClient} over all replicas and must be answered by its owner on the
+ * {@link ConsistentHashRing} both times. Then the first replica is stopped: its keys must move to
+ * their owners on a ring without it, and every other key must stay where it was.
+ */
+public final class ReplicaRouting {
+
+    private ReplicaRouting() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int replicaCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        BenchmarkData.quietLogging();
+
+        List<FarmServer> servers = new ArrayList<>(replicaCount);
+        List<InetSocketAddress> addresses = new ArrayList<>(replicaCount);
+        List<String> names = new ArrayList<>(replicaCount);
+        for (int i = 0; i < replicaCount; i++) {
+            List<VMSDataResponse> records = new ArrayList<>(keys);
+            for (VMSDataResponse record : BenchmarkData.responses(keys)) {
+                records.add(record.toBuilder().setItem(record.getItem().toBuilder().setOwner("replica-" + i)).build());
+            }
+            FarmServer server = new FarmServer(NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0)), 0,
+                    IndexedVMSDataStore.of(records));
+            server.start();
+            servers.add(server);
+            addresses.add(new InetSocketAddress("127.0.0.1", server.getPort()));
+            names.add(ConsistentHashRing.nodeName(addresses.get(i)));
+        }
+        ConsistentHashRing ring = new ConsistentHashRing(names);
+        FarmClient client = new FarmClient(addresses);
+        try {
+            int[] owners = new int[keys];
+            for (int key = 0; key < keys; key++) {
+                owners[key] = ring.ownerOf(BenchmarkData.item(key).getGuid());
+            }
+            // Until a replica is connected its keys go to the next one along the ring.
+            for (int replica = 0; replica < replicaCount; replica++) {
+                await(client, owners, replica, true);
+            }
+            for (int pass = 0; pass < 2; pass++) {
+                for (int key = 0; key < keys; key++) {
+                    check(key, owners[key], replicaOf(client, key));
+                }
+            }
+            System.out.println(keys + " keys answered by their owners on " + replicaCount + " replicas, twice");
+
+            servers.get(0).stop();
+            ConsistentHashRing without = new ConsistentHashRing(names.subList(1, names.size()));
+            await(client, owners, 0, false);
+            int moved = 0;
+            for (int key = 0; key < keys; key++) {
+                int expected = owners[key] == 0
+                        ? 1 + without.ownerOf(BenchmarkData.item(key).getGuid())
+                        : owners[key];
+                check(key, expected, replicaOf(client, key));
+                if (owners[key] == 0) {
+                    moved++;
+                }
+            }
+            System.out.printf("Replica 0 stopped: %d keys (%.1f%%) moved to the next owner, the other %d stayed%n",
+                    moved, 100.0 * moved / keys, keys - moved);
+        } finally {
+            client.shutdown();
+            for (FarmServer server : servers) {
+                server.stop();
+            }
+        }
+    }
+
+    private static int replicaOf(FarmClient client, int key) {
+        Item item = BenchmarkData.item(key);
+        VMSDataResponse response = client.getFarmMessage(VMSDataRequest.newBuilder().setItem(item).build());
+        return Integer.parseInt(response.getItem().getOwner().substring("replica-".length()));
+    }
+
+    private static void check(int key, int expected, int actual) {
+        if (expected != actual) {
+            throw new AssertionError("Key " + key + " answered by replica " + actual + ", owner is " + expected);
+        }
+    }
+
+    /**
+     * Waits until the client routes the keys of {@code replica} to it, or once it is stopped,
+     * away from it, by looking up one of its keys.
+     */
+    private static void await(FarmClient client, int[] owners, int replica, boolean connected)
+            throws InterruptedException {
+        int probe = 0;
+        while (probe < owners.length && owners[probe] != replica) {
+            probe++;
+        }
+        if (probe == owners.length) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            try {
+                if ((replicaOf(client, probe) == replica) == connected) {
+                    return;
+                }
+            } catch (StatusRuntimeException e) {
+                // Sent to the replica while it was shutting down.
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Client " + (connected ? "never routed to" : "still routes to") + " replica " + replica);
+    }
+}
@@ -0,0 +1,127 @@
+package io.grpc.proxy;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GetFarmMessage throughput over loopback Netty for each {@link FarmServerOptions} setting, one
+ * at a time against the defaults, plus sharding with and without the direct executor. All
+ * benchmark threads share one channel, so the per-connection settings apply to every call.
+ *
+ * <p>For example {@code java -jar target/benchmarks.jar ServerTransportBenchmark -t 16}; add
+ * {@code -p options=default,response-cache -prof gc} to compare the allocation per call with
+ * and without the serialized response cache.
+ *
+ * <p>The sharded settings use one shard per available core, so pinning the JVM to more and more
+ * cores measures how sharding scales, for example
+ * {@code for n in 1 2 4 8; do taskset -c 0-$((n-1)) java -jar target/benchmarks.jar
+ * ServerTransportBenchmark -p options=default,sharded -t $((2*n)); done}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Threads(8)
+public class ServerTransportBenchmark {
+    private static final int SIZE = 100000;
+    private static final int KEYS = 1 << 12;
+
+    @Param({"default", "epoll", "workers-1", "workers-4", "direct", "bounded", "window-1m", "max-calls-4",
+            "max-message-64k", "keepalive", "sharded", "sharded-direct", "response-cache"})
+    public String options;
+
+    private FarmServer server;
+    private ManagedChannel channel;
+    private FarmGrpc.FarmBlockingStub stub;
+    private VMSDataRequest[] requests;
+
+    static FarmServerOptions options(String name) {
+        FarmServerOptions.Builder builder = FarmServerOptions.newBuilder();
+        switch (name) {
+            case "default":
+                break;
+            case "epoll":
+                builder.transport(FarmServerOptions.Transport.EPOLL);
+                break;
+            case "workers-1":
+                builder.eventLoops(1, 1);
+                break;
+            case "workers-4":
+                builder.eventLoops(1, 4);
+                break;
+            case "direct":
+                builder.executor(FarmServerOptions.Executor.DIRECT);
+                break;
+            case "bounded":
+                builder.executor(FarmServerOptions.Executor.BOUNDED, Runtime.getRuntime().availableProcessors(), 256);
+                break;
+            case "window-1m":
+                builder.flowControlWindow(1 << 20);
+                break;
+            case "max-calls-4":
+                builder.maxConcurrentCallsPerConnection(4);
+                break;
+            case "max-message-64k":
+                builder.maxInboundMessageSize(1 << 16);
+                break;
+            case "keepalive":
+                builder.keepAlive(1, 1, TimeUnit.SECONDS).permitKeepAlive(1, true, TimeUnit.SECONDS);
+                break;
+            case "sharded":
+                builder.shards(Runtime.getRuntime().availableProcessors());
+                break;
+            case "sharded-direct":
+                builder.shards(Runtime.getRuntime().availableProcessors()).executor(FarmServerOptions.Executor.DIRECT);
+                break;
+            case "response-cache":
+                builder.responseCache(64L << 20);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown options " + name);
+        }
+        return builder.build();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.quietLogging();
+        server = new FarmServer(NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0)), 0,
+                BenchmarkData.store(SIZE), options(options));
+        server.start();
+        channel = NettyChannelBuilder.forAddress("127.0.0.1", server.getPort()).usePlaintext().build();
+        stub = FarmGrpc.newBlockingStub(channel);
+        requests = BenchmarkData.requests(SIZE, KEYS, 0.9, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.stop();
+    }
+
+    @Benchmark
+    public VMSDataResponse getFarmMessage() {
+        return stub.getFarmMessage(requests[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+}
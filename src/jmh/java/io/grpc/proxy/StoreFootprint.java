@@ -0,0 +1,53 @@
+package io.grpc.proxy;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+
+/**
+ * Heap bytes per record of each in-memory layout, measured as the growth of the used heap after
+ * a full collection. Not a JMH benchmark, since JMH measures time rather than footprint:
+ * {@code java -Xmx4g -cp target/benchmarks.jar io.grpc.proxy.StoreFootprint 1000000}.
+ */
+public final class StoreFootprint {
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private StoreFootprint() {
+    }
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        BenchmarkData.quietLogging();
+
+        long before = usedHeap();
+        List<VMSDataResponse> responses = BenchmarkData.responses(size);
+        long list = usedHeap() - before;
+        report("protobuf list", list, size);
+
+        before = usedHeap();
+        IndexedVMSDataStore indexed = IndexedVMSDataStore.of(responses);
+        // The records are shared with the list; the store adds its index on top.
+        report("indexed store", list + usedHeap() - before, size);
+
+        responses = null;
+        before = usedHeap();
+        CompactVMSDataStore compact = CompactVMSDataStore.copyOf(indexed);
+        report("compact store", usedHeap() - before, size);
+
+        // Keep both stores reachable until they have been measured.
+        if (indexed.size() != compact.size()) {
+            throw new AssertionError();
+        }
+    }
+
+    private static void report(String layout, long bytes, int size) {
+        System.out.printf("%-14s %,15d bytes %8.1f bytes/record%n", layout, bytes, (double) bytes / size);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,97 @@
+package io.grpc.proxy;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.handler.ssl.SslContext;
+import io.grpc.netty.shaded.io.netty.handler.ssl.SslProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mutual TLS connection rate: each operation opens a channel to a TLS FarmServer, makes one
+ * GetFarmMessage call and closes it, as a short-lived client would.
+ *
+ * <p>{@code provider} is the server's TLS provider. With {@code client=shared} every connection
+ * uses the one context {@link FarmTls#clientContext} keeps and resumes the session of the
+ * previous one; with {@code client=perConnection} each builds its context from the files, as
+ * FarmClient used to, and makes a full handshake.
+ *
+ * <p>Run from the repository root, where the test certificates are: the server presents
+ * server.crt, whose key is server_key.pem, and requires client.crt, whose key is client.pem.
+ * Each certificate is self-signed and trusted directly by the other side. They expired long
+ * ago, which the JDK trust manager does not check for a certificate it trusts directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsHandshakeBenchmark {
+    private static final File SERVER_CERT = new File("server.crt");
+    private static final File SERVER_KEY = new File("server_key.pem");
+    private static final File CLIENT_CERT = new File("client.crt");
+    private static final File CLIENT_KEY = new File("client.pem");
+
+    @Param({"OPENSSL", "JDK"})
+    public SslProvider provider;
+
+    @Param({"shared", "perConnection"})
+    public String client;
+
+    private FarmServer server;
+    private FarmTls tls;
+    private VMSDataRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.quietLogging();
+        tls = FarmTls.forServer(SERVER_CERT, SERVER_KEY)
+                .trustCertCollection(CLIENT_CERT)
+                .provider(provider)
+                .build();
+        server = new FarmServer(NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0)), 0,
+                BenchmarkData.store(1000), tls);
+        server.start();
+        request = BenchmarkData.requests(1000, 1, 1.0, 42)[0];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public VMSDataResponse connect() throws Exception {
+        SslContext context = "shared".equals(client)
+                ? FarmTls.clientContext(SERVER_CERT, CLIENT_CERT, CLIENT_KEY)
+                : FarmTls.newClientContext(SERVER_CERT, CLIENT_CERT, CLIENT_KEY);
+        // The certificates are issued to localhost, which the client checks the server against.
+        // Without the port the JDK client does not cache the session.
+        ManagedChannel channel = NettyChannelBuilder.forAddress("127.0.0.1", server.getPort())
+                .overrideAuthority("localhost:" + server.getPort())
+                .sslContext(context)
+                .build();
+        try {
+            return FarmGrpc.newBlockingStub(channel).getFarmMessage(request);
+        } finally {
+            channel.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package io.grpc.proxy;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sustained append throughput of {@link VMSDataIngest} for a few commit intervals. Like a
+ * {@code GetFarmsSummaryMessage} stream, each appender keeps at most {@link #WINDOW} items
+ * pending and waits for the oldest to be committed before appending more, so the score is what
+ * the group commits keep up with, fsyncs and publishing to the served store included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Threads(8)
+public class VMSDataIngestBenchmark {
+    private static final int SIZE = 100000;
+    // Items each appender may have pending, as the server's inbound window.
+    private static final int WINDOW = 1024;
+
+    @Param({"1", "2", "10"})
+    public long commitMillis;
+
+    private File directory;
+    private VMSDataIngest ingest;
+    private final AtomicInteger next = new AtomicInteger(SIZE);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.quietLogging();
+        directory = Files.createTempDirectory("vms-ingest-").toFile();
+        AtomicReference<VMSDataVersion> store = new AtomicReference<>(VMSDataVersion.of(BenchmarkData.store(SIZE)));
+        ingest = VMSDataIngest.open(directory, store, commitMillis, TimeUnit.MILLISECONDS, 64L << 20);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        ingest.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Pending {
+        final ArrayDeque<ListenableFuture<Void>> appends = new ArrayDeque<>();
+    }
+
+    @Benchmark
+    public ListenableFuture<Void> append(Pending pending) throws Exception {
+        if (pending.appends.size() == WINDOW) {
+            pending.appends.poll().get();
+        }
+        ListenableFuture<Void> append = ingest.append(BenchmarkData.item(next.getAndIncrement()));
+        pending.appends.add(append);
+        return append;
+    }
+}
@@ -0,0 +1,85 @@
+package io.grpc.proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup cost of the data set: FarmUtil.parseResponse, the streaming loaders, sequential and on
+ * one thread per core, and opening a snapshot of the same records. The {@code ...AndGet} variants
+ * also answer one lookup, since the mapped store only touches its pages when first read: together
+ * they compare the time until a server started from JSON or from a snapshot serves its first
+ * request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class VMSDataLoadBenchmark {
+
+    @Param({"10000", "1000000"})
+    public int size;
+
+    private URL json;
+    private File snapshot;
+    private Item last;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkData.quietLogging();
+        File file = BenchmarkData.writeJson(size);
+        json = file.toURI().toURL();
+        snapshot = BenchmarkData.writeSnapshot(FarmUtil.loadStore(json));
+        last = BenchmarkData.item(size - 1);
+    }
+
+    @Benchmark
+    public List<VMSDataResponse> parseResponse() throws Exception {
+        return FarmUtil.parseResponse(json);
+    }
+
+    @Benchmark
+    public VMSDataStore loadStore() throws Exception {
+        return FarmUtil.loadStore(json);
+    }
+
+    @Benchmark
+    public VMSDataStore loadStoreParallel() throws Exception {
+        return FarmUtil.loadStore(json, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    @Benchmark
+    public VMSDataStore loadCompactStore() throws Exception {
+        return FarmUtil.loadCompactStore(json);
+    }
+
+    @Benchmark
+    public VMSDataStore openSnapshot() throws Exception {
+        return VMSDataSnapshot.open(snapshot);
+    }
+
+    @Benchmark
+    public VMSDataResponse loadStoreAndGet() throws Exception {
+        return FarmUtil.loadStore(json).get(last.getGuid(), last.getSourceid());
+    }
+
+    @Benchmark
+    public VMSDataResponse openSnapshotAndGet() throws Exception {
+        return VMSDataSnapshot.open(snapshot).get(last.getGuid(), last.getSourceid());
+    }
+}
@@ -0,0 +1,136 @@
+package io.grpc.proxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Key lookups against the heap, compact and memory-mapped stores, and
+ * FarmService.checkVMSDataResponse on top of them. The {@code linear} store is the baseline:
+ * the list the server used to scan for every request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class VMSDataStoreBenchmark {
+    private static final int KEYS = 1 << 16;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"linear", "indexed", "compact", "mapped"})
+    public String store;
+
+    private VMSDataStore data;
+    private FarmServer.FarmService service;
+    private VMSDataRequest[] hits;
+    private VMSDataRequest[] misses;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.quietLogging();
+        if ("linear".equals(store)) {
+            setUp(new LinearScanStore(BenchmarkData.responses(size)));
+            return;
+        }
+        IndexedVMSDataStore indexed = BenchmarkData.store(size);
+        if ("mapped".equals(store)) {
+            data = VMSDataSnapshot.open(BenchmarkData.writeSnapshot(indexed));
+        } else if ("compact".equals(store)) {
+            data = CompactVMSDataStore.copyOf(indexed);
+        } else {
+            data = indexed;
+        }
+        setUp(data);
+    }
+
+    private void setUp(VMSDataStore data) {
+        this.data = data;
+        service = new FarmServer.FarmService(new AtomicReference<>(VMSDataVersion.of(data)));
+        hits = BenchmarkData.requests(size, KEYS, 1.0, 1);
+        misses = BenchmarkData.requests(size, KEYS, 0.0, 2);
+    }
+
+    @Benchmark
+    public VMSDataResponse getHit() {
+        Item item = hits[next++ & (KEYS - 1)].getItem();
+        return data.get(item.getGuid(), item.getSourceid());
+    }
+
+    @Benchmark
+    public VMSDataResponse getMiss() {
+        Item item = misses[next++ & (KEYS - 1)].getItem();
+        return data.get(item.getGuid(), item.getSourceid());
+    }
+
+    @Benchmark
+    public VMSDataResponse checkVMSDataResponseHit() {
+        return service.checkVMSDataResponse(hits[next++ & (KEYS - 1)]);
+    }
+
+    @Benchmark
+    public VMSDataResponse checkVMSDataResponseMiss() {
+        return service.checkVMSDataResponse(misses[next++ & (KEYS - 1)]);
+    }
+
+    /**
+     * Compares every record in load order until the key matches, as the original
+     * checkVMSDataResponse did.
+     */
+    static final class LinearScanStore implements VMSDataStore {
+        private final List<VMSDataResponse> responses;
+
+        LinearScanStore(List<VMSDataResponse> responses) {
+            this.responses = responses;
+        }
+
+        @Override
+        public VMSDataResponse get(String guid, int sourceid) {
+            int index = indexOf(guid, sourceid);
+            return index >= 0 ? responses.get(index) : null;
+        }
+
+        @Override
+        public int indexOf(String guid, int sourceid) {
+            for (int i = 0; i < responses.size(); i++) {
+                Item item = responses.get(i).getItem();
+                if (item.getGuid().equals(guid) && item.getSourceid() == sourceid) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean mightContain(String guid, int sourceid) {
+            return true;
+        }
+
+        @Override
+        public VMSDataResponse get(int index) {
+            return responses.get(index);
+        }
+
+        @Override
+        public int size() {
+            return responses.size();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package io.grpc.proxy;
+
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Time to make {@code calls} concurrent GetFarmMessage calls over loopback Netty and wait for
+ * all of them, per way of waiting:
+ * <ul>
+ * <li>{@code platform}: blocking stub calls on a pool of 200 platform threads, as a
+ * thread-per-request caller does; calls beyond 200 wait for a thread.
+ * <li>{@code virtual}: {@link FarmClient#getFarmMessages}, a blocking call on a virtual thread
+ * each.
+ * <li>{@code async}: the async {@code FarmStub}, no thread waits at all.
+ * </ul>
+ * {@code server} is the server's {@link FarmServerOptions.Executor}.
+ *
+ * <p>Virtual threads need Java 21; on older JVMs {@code virtual} falls back to the future stub
+ * and the {@code VIRTUAL} server executor to a cached pool of platform threads. Add {@code -prof gc} for the allocation per operation; the peak thread count is
+ * printed when a trial ends. For example
+ * {@code java -jar target/benchmarks.jar VirtualThreadBenchmark -p calls=10000 -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class VirtualThreadBenchmark {
+    private static final int SIZE = 100000;
+    private static final int PLATFORM_THREADS = 200;
+
+    @Param({"DEFAULT", "VIRTUAL"})
+    public FarmServerOptions.Executor server;
+
+    @Param({"platform", "virtual", "async"})
+    public String client;
+
+    @Param({"1000", "10000"})
+    public int calls;
+
+    private FarmServer farmServer;
+    private FarmClient farmClient;
+    private ExecutorService platform;
+    private List<VMSDataRequest> requests;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkData.quietLogging();
+        farmServer = new FarmServer(NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0)), 0,
+                BenchmarkData.store(SIZE), FarmServerOptions.newBuilder().executor(server).build());
+        farmServer.start();
+        farmClient = new FarmClient("127.0.0.1", farmServer.getPort());
+        platform = Executors.newFixedThreadPool(PLATFORM_THREADS);
+        requests = Arrays.asList(BenchmarkData.requests(SIZE, calls, 0.9, 1));
+        System.out.println("Virtual threads " + (VirtualThreads.isAvailable() ? "available" : "not available"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.out.println("Peak threads: " + ManagementFactory.getThreadMXBean().getPeakThreadCount());
+        platform.shutdownNow();
+        farmClient.shutdown();
+        farmServer.stop();
+    }
+
+    @Benchmark
+    public int getFarmMessages() throws Exception {
+        switch (client) {
+            case "platform":
+                return platform();
+            case "virtual":
+                return farmClient.getFarmMessages(requests).size();
+            default:
+                return async();
+        }
+    }
+
+    private int platform() throws Exception {
+        List<Future<VMSDataResponse>> responses = new ArrayList<>(requests.size());
+        for (final VMSDataRequest request : requests) {
+            responses.add(platform.submit(new Callable<VMSDataResponse>() {
+                @Override
+                public VMSDataResponse call() {
+                    return farmClient.getFarmMessage(request);
+                }
+            }));
+        }
+        for (Future<VMSDataResponse> response : responses) {
+            response.get();
+        }
+        return responses.size();
+    }
+
+    private int async() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(requests.size());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        StreamObserver<VMSDataResponse> observer = new StreamObserver<VMSDataResponse>() {
+            @Override
+            public void onNext(VMSDataResponse response) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                failure.compareAndSet(null, t);
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        };
+        for (VMSDataRequest request : requests) {
+            farmClient.getAsyncStub().getFarmMessage(request, observer);
+        }
+        done.await();
+        if (failure.get() != null) {
+            throw new IllegalStateException(failure.get());
+        }
+        return requests.size();
+    }
+}